@@ -0,0 +1,83 @@
+package com.rc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZoneOffset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting single numeric cells, per cell: the CellConverter and CSV
+ * sink the XLSB reader goes through, against writing the same numbers
+ * straight to an output buffer with NumberText, the floor of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CellFormatBenchmark {
+
+    private static final int CELLS = 1024;
+
+    @Param({"NUMERIC", "DATES"})
+    public String content;
+
+    private final double[] values = new double[CELLS];
+    private ColumnType type;
+    private StyleCache.CellFormat format;
+    private CellConverter converter;
+    private RowSink sink;
+    private NumberText numberText;
+    private OutputBuffer buffer;
+
+    @Setup
+    public void setup() {
+        final boolean dates = "DATES".equals(content);
+        final var random = new Random(42);
+        for (int i = 0; i < CELLS; i++) {
+            values[i] = dates
+                    ? 40000 + random.nextInt(8000) + random.nextInt(1440) / 1440.0
+                    : random.nextInt(10_000_000) / 100.0;
+        }
+        type = dates ? ColumnType.DATETIME : ColumnType.DECIMAL;
+        final var styles = StyleCache.empty().withDates(new SerialDates(ZoneOffset.UTC, false));
+        format = dates ? styles.forFormat(164, "yyyy-mm-dd hh:mm") : styles.forFormat(2, "0.00");
+        sink = OutputFormat.CSV.open(new NullChannel(), new ColumnType[]{type});
+        converter = new CellConverter(sink, null, styles.dates());
+        numberText = new NumberText();
+        buffer = new OutputBuffer(new NullChannel());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public void cellConverter() {
+        for (int i = 0; i < CELLS; i++) {
+            sink.startRow(i);
+            converter.number(0, type, values[i], format);
+            sink.endRow(i);
+        }
+        sink.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public void numberText() {
+        for (double value : values) {
+            numberText.append(buffer, value);
+        }
+        buffer.flush();
+    }
+}
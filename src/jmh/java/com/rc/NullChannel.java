@@ -0,0 +1,29 @@
+package com.rc;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Discards what is written, counting the bytes.
+ */
+final class NullChannel implements WritableByteChannel {
+
+    long bytes;
+
+    @Override
+    public int write(ByteBuffer src) {
+        final int n = src.remaining();
+        src.position(src.limit());
+        bytes += n;
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
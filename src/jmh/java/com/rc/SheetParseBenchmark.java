@@ -0,0 +1,111 @@
+package com.rc;
+
+import org.apache.poi.util.XMLHelper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts one synthetic sheet to CSV, from the sheet part's bytes to the
+ * output channel, so ZIP inflation and disk I/O aren't measured.
+ *
+ * The score is sheets per second, the aux counters cells and output bytes
+ * per second; run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SheetParseBenchmark {
+
+    // Names of SyntheticWorkbook.Shape and Content; JMH only sets public types
+    @Param({"WIDE", "TALL"})
+    public String shape;
+
+    @Param({"NUMERIC", "STRINGS", "DATES", "SPARSE"})
+    public String content;
+
+    private SyntheticWorkbook workbook;
+    private StyleCache styles;
+    private StyleCache binaryStyles;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long cells;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            cells = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        workbook = SyntheticWorkbook.generate(
+                SyntheticWorkbook.Shape.valueOf(shape), SyntheticWorkbook.Content.valueOf(content));
+        styles = StyleCache.of(workbook.styles);
+        binaryStyles = StyleCache.ofBinary(new ByteArrayInputStream(workbook.stylesBin));
+    }
+
+    @Benchmark
+    public long xlsx(Throughput throughput) throws Exception {
+        final var out = new NullChannel();
+        final var sink = OutputFormat.CSV.open(out, workbook.columnTypes);
+        sink.startSheet("Sheet1");
+        final var parser = XMLHelper.newXMLReader();
+        parser.setContentHandler(new XlsxSheetHandler(styles, workbook.strings, workbook.columnTypes, sink));
+        parser.parse(new InputSource(new ByteArrayInputStream(workbook.sheetXml)));
+        sink.endSheet();
+        sink.flush();
+        return count(throughput, out);
+    }
+
+    @Benchmark
+    public long xlsxScanner(Throughput throughput) throws Exception {
+        final var out = new NullChannel();
+        final var sink = OutputFormat.CSV.open(out, workbook.columnTypes);
+        sink.startSheet("Sheet1");
+        SheetXmlScanner.parse(new ByteArrayInputStream(workbook.sheetXml),
+                new XlsxSheetHandler(styles, workbook.strings, workbook.columnTypes, sink));
+        sink.endSheet();
+        sink.flush();
+        return count(throughput, out);
+    }
+
+    @Benchmark
+    public long xlsb(Throughput throughput) throws Exception {
+        final var out = new NullChannel();
+        final var sink = OutputFormat.CSV.open(out, workbook.columnTypes);
+        sink.startSheet("Sheet1");
+        new XlsbSheetHandler(binaryStyles, workbook.strings, workbook.columnTypes, sink)
+                .parse(new ByteArrayInputStream(workbook.sheetBin));
+        sink.endSheet();
+        sink.flush();
+        return count(throughput, out);
+    }
+
+    private long count(Throughput throughput, NullChannel out) {
+        throughput.cells += workbook.cells;
+        throughput.bytes += out.bytes;
+        return out.bytes;
+    }
+}
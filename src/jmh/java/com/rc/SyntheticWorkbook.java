@@ -0,0 +1,218 @@
+package com.rc;
+
+import org.apache.poi.xssf.model.StylesTable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates the parts of a workbook of a given shape, in both the XLSX
+ * (sheet XML) and XLSB (BIFF12 records) forms, so the two readers can be
+ * measured on the same cells.
+ *
+ * Styles are: 0 General, 1 a custom date format, 2 the builtin "0.00".
+ * The first row is a header of shared strings.
+ */
+final class SyntheticWorkbook {
+
+    enum Shape {
+        WIDE(200, 500),
+        TALL(8, 25000);
+
+        final int columns;
+        final int rows;
+
+        Shape(int columns, int rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    enum Content {
+        // Plain and 2dp numbers
+        NUMERIC,
+        // Shared strings, a few hundred distinct values
+        STRINGS,
+        // Date formatted numbers
+        DATES,
+        // One cell in ten, columns alternate number, string, date, boolean
+        SPARSE
+    }
+
+    static final int DISTINCT_STRINGS = 500;
+
+    final ColumnType[] columnTypes;
+    final byte[] sheetXml;
+    final byte[] sheetBin;
+    final byte[] stylesBin;
+    final StylesTable styles;
+    final CompactSharedStrings strings;
+    // Data cells, not counting the header
+    long cells;
+
+    private SyntheticWorkbook(Shape shape, Content content, long seed) {
+        columnTypes = new ColumnType[shape.columns];
+        for (int c = 0; c < shape.columns; c++) {
+            columnTypes[c] = typeOf(content, c);
+        }
+
+        strings = new CompactSharedStrings(CompactSharedStrings.DEFAULT_SPILL_THRESHOLD);
+        for (int i = 0; i < DISTINCT_STRINGS; i++) {
+            strings.add("category " + i + (i % 3 == 0 ? " \u00e9, \"q\"" : ""));
+        }
+        strings.finish();
+
+        styles = new StylesTable();
+        final var dateStyle = styles.createCellStyle();
+        dateStyle.setDataFormat(styles.putNumberFormat("yyyy-mm-dd hh:mm"));
+        final var decimalStyle = styles.createCellStyle();
+        decimalStyle.setDataFormat((short) 2);
+        stylesBin = stylesBin();
+
+        final var random = new Random(seed);
+        final var xml = new StringBuilder(shape.rows * shape.columns * 32);
+        final var bin = new Biff(shape.rows * shape.columns * 16);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>")
+                .append("<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+        for (int r = 0; r < shape.rows; r++) {
+            xml.append("<row r=\"").append(r + 1).append("\">");
+            bin.rowHeader(r);
+            for (int c = 0; c < shape.columns; c++) {
+                if (r > 0 && content == Content.SPARSE && random.nextInt(10) != 0) {
+                    continue;
+                }
+                final var ref = cellRef(c, r);
+                final var type = r == 0 ? ColumnType.STRING : columnTypes[c];
+                switch (type) {
+                    case DECIMAL -> {
+                        final boolean whole = random.nextBoolean();
+                        final double value = whole ? random.nextInt(1_000_000) : random.nextInt(10_000_000) / 100.0;
+                        final int style = whole ? 0 : 2;
+                        xml.append("<c r=\"").append(ref).append("\" s=\"").append(style).append("\"><v>")
+                                .append(whole ? Integer.toString((int) value) : Double.toString(value)).append("</v></c>");
+                        bin.real(c, style, value);
+                    }
+                    case STRING -> {
+                        final int index = r == 0 ? c % DISTINCT_STRINGS : random.nextInt(DISTINCT_STRINGS);
+                        xml.append("<c r=\"").append(ref).append("\" t=\"s\"><v>").append(index).append("</v></c>");
+                        bin.sst(c, index);
+                    }
+                    case DATETIME -> {
+                        final double serial = 40000 + random.nextInt(8000) + random.nextInt(1440) / 1440.0;
+                        xml.append("<c r=\"").append(ref).append("\" s=\"1\"><v>").append(serial).append("</v></c>");
+                        bin.real(c, 1, serial);
+                    }
+                    case BOOLEAN -> {
+                        final boolean value = random.nextBoolean();
+                        xml.append("<c r=\"").append(ref).append("\" t=\"b\"><v>").append(value ? 1 : 0).append("</v></c>");
+                        bin.bool(c, value);
+                    }
+                }
+                if (r > 0) {
+                    cells++;
+                }
+            }
+            xml.append("</row>");
+        }
+        xml.append("</sheetData></worksheet>");
+        bin.record(146, new byte[0]);
+
+        sheetXml = xml.toString().getBytes(StandardCharsets.UTF_8);
+        sheetBin = bin.toByteArray();
+    }
+
+    static SyntheticWorkbook generate(Shape shape, Content content) {
+        return new SyntheticWorkbook(shape, content, 42);
+    }
+
+    private static ColumnType typeOf(Content content, int column) {
+        return switch (content) {
+            case NUMERIC -> ColumnType.DECIMAL;
+            case STRINGS -> ColumnType.STRING;
+            case DATES -> ColumnType.DATETIME;
+            case SPARSE -> ColumnType.values()[column % 4];
+        };
+    }
+
+    private static String cellRef(int column, int row) {
+        final var letters = new StringBuilder();
+        for (int c = column + 1; c > 0; c = (c - 1) / 26) {
+            letters.insert(0, (char) ('A' + (c - 1) % 26));
+        }
+        return letters.append(row + 1).toString();
+    }
+
+    /**
+     * A styles.bin with the same three cell formats as the XLSX styles.
+     */
+    private static byte[] stylesBin() {
+        final var bin = new Biff(256);
+        bin.record(615, new byte[0]);
+        final var format = "yyyy-mm-dd hh:mm";
+        final var fmt = bin.buffer(2 + 4 + format.length() * 2).putShort((short) 164).putInt(format.length());
+        for (char ch : format.toCharArray()) {
+            fmt.putChar(ch);
+        }
+        bin.record(44, fmt.array());
+        bin.record(616, new byte[0]);
+        bin.record(617, new byte[0]);
+        for (int formatIndex : new int[]{0, 164, 2}) {
+            bin.record(47, bin.buffer(16).putShort((short) 0xFFFF).putShort((short) formatIndex).array());
+        }
+        bin.record(618, new byte[0]);
+        return bin.toByteArray();
+    }
+
+    /**
+     * Writes BIFF12 records: a 1 or 2 byte id, a 7 bits per byte length,
+     * then the little endian payload.
+     */
+    static final class Biff extends ByteArrayOutputStream {
+
+        Biff(int size) {
+            super(size);
+        }
+
+        ByteBuffer buffer(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void record(int id, byte[] data) {
+            if (id < 0x80) {
+                write(id);
+            } else {
+                write((id & 0x7F) | 0x80);
+                write(id >> 7);
+            }
+            int length = data.length;
+            do {
+                write((length & 0x7F) | (length > 0x7F ? 0x80 : 0));
+                length >>>= 7;
+            } while (length > 0);
+            write(data, 0, data.length);
+        }
+
+        void rowHeader(int row) {
+            record(0, buffer(17).putInt(row).putInt(0).putShort((short) 300).array());
+        }
+
+        private ByteBuffer cell(int column, int style, int size) {
+            return buffer(8 + size).putInt(column).put((byte) style).put((byte) (style >> 8)).put((byte) (style >> 16)).put((byte) 0);
+        }
+
+        void real(int column, int style, double value) {
+            record(5, cell(column, style, 8).putDouble(value).array());
+        }
+
+        void sst(int column, int index) {
+            record(7, cell(column, 0, 4).putInt(index).array());
+        }
+
+        void bool(int column, boolean value) {
+            record(4, cell(column, 0, 1).put((byte) (value ? 1 : 0)).array());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.rc;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the rows of a synthetic sheet as an XLSX workbook, with
+ * XlsxRowSink and with POI's SXSSF, to a stream that discards them.
+ *
+ * Both get the same typed values, a header row and a date style, and
+ * deflate the sheet; SXSSF keeps its default 100 row window and inline
+ * strings. The score is workbooks per second, the aux counters rows and
+ * cells per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XlsxWriteBenchmark {
+
+    // Names of SyntheticWorkbook.Shape and Content; JMH only sets public types
+    @Param({"WIDE", "TALL"})
+    public String shape;
+
+    @Param({"NUMERIC", "STRINGS", "DATES", "SPARSE"})
+    public String content;
+
+    private ColumnType[] types;
+    // Each row's cells by column, a Double, String, Long epoch millis or Boolean as its type says, null for none
+    private Object[][] rows;
+    private long cells;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long rows;
+        public long cells;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            rows = 0;
+            cells = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() {
+        final var workbook = SyntheticWorkbook.generate(
+                SyntheticWorkbook.Shape.valueOf(shape), SyntheticWorkbook.Content.valueOf(content));
+        types = workbook.columnTypes;
+        final var size = SyntheticWorkbook.Shape.valueOf(shape);
+        final boolean sparse = SyntheticWorkbook.Content.valueOf(content) == SyntheticWorkbook.Content.SPARSE;
+        final var random = new Random(42);
+        rows = new Object[size.rows][types.length];
+        cells = 0;
+        for (Object[] row : rows) {
+            for (int c = 0; c < types.length; c++) {
+                if (sparse && random.nextInt(10) != 0) {
+                    continue;
+                }
+                row[c] = switch (types[c]) {
+                    case DECIMAL -> random.nextBoolean() ? random.nextInt(1_000_000) : random.nextInt(10_000_000) / 100.0;
+                    case STRING -> workbook.strings.getString(random.nextInt(SyntheticWorkbook.DISTINCT_STRINGS));
+                    case DATETIME -> 1_200_000_000_000L + random.nextInt(8000) * 86_400_000L + random.nextInt(1440) * 60_000L;
+                    case BOOLEAN -> random.nextBoolean();
+                };
+                cells++;
+            }
+        }
+    }
+
+    @Benchmark
+    public long rowSink(Throughput throughput) {
+        final var out = new NullChannel();
+        final var sink = new XlsxRowSink(out, types, ZoneOffset.UTC);
+        sink.startSheet("Sheet1");
+        for (int r = 0; r < rows.length; r++) {
+            sink.startRow(r);
+            final Object[] row = rows[r];
+            for (int c = 0; c < row.length; c++) {
+                final Object value = row[c];
+                if (value == null) {
+                    continue;
+                }
+                switch (types[c]) {
+                    case DECIMAL -> sink.number(c, (Double) value);
+                    case STRING -> sink.cell(c, (String) value);
+                    case DATETIME -> sink.datetime(c, (Long) value);
+                    case BOOLEAN -> sink.bool(c, (Boolean) value);
+                }
+            }
+            sink.endRow(r);
+        }
+        sink.endSheet();
+        sink.flush();
+        return count(throughput, out.bytes);
+    }
+
+    @Benchmark
+    public long sxssf(Throughput throughput) throws Exception {
+        final var workbook = new SXSSFWorkbook();
+        try {
+            final var sheet = workbook.createSheet("Sheet1");
+            final CellStyle dates = workbook.createCellStyle();
+            dates.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd hh:mm:ss"));
+            final var header = sheet.createRow(0);
+            for (int c = 0; c < types.length; c++) {
+                header.createCell(c).setCellValue(XlsxSheetHandler.columnName(c));
+            }
+            for (int r = 0; r < rows.length; r++) {
+                final var row = sheet.createRow(r + 1);
+                final Object[] values = rows[r];
+                for (int c = 0; c < values.length; c++) {
+                    final Object value = values[c];
+                    if (value == null) {
+                        continue;
+                    }
+                    final var cell = row.createCell(c);
+                    switch (types[c]) {
+                        case DECIMAL -> cell.setCellValue((Double) value);
+                        case STRING -> cell.setCellValue((String) value);
+                        case DATETIME -> {
+                            cell.setCellValue(new Date((Long) value));
+                            cell.setCellStyle(dates);
+                        }
+                        case BOOLEAN -> cell.setCellValue((Boolean) value);
+                    }
+                }
+            }
+            workbook.write(OutputStream.nullOutputStream());
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        return count(throughput, 0);
+    }
+
+    private long count(Throughput throughput, long bytes) {
+        throughput.rows += rows.length;
+        throughput.cells += cells;
+        return bytes;
+    }
+}
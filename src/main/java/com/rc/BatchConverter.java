@@ -0,0 +1,311 @@
+package com.rc;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Converts many workbooks in one JVM, for --batch.
+ *
+ * Each workbook is a task on one work stealing pool, biggest first so the
+ * large ones don't start last and straggle. A workbook whose sheets are
+ * big is split: its sheets become tasks of their own on the same pool,
+ * each into a spill file, copied out in order. A thread waiting for a
+ * workbook's sheets helps convert them, as ForkJoinTask.get does.
+ *
+ * Before a workbook is opened, the memory it needs is estimated from its
+ * ZIP central directory: the uncompressed size of its shared strings and
+ * styles, the parts loaded whole, plus a working set per sheet converted
+ * at once. It waits until that fits in the memory budget with everything
+ * else in flight, so several huge workbooks are taken one or two at a
+ * time. The waiting thread runs nothing else: the pool starts a spare
+ * thread in its place, which takes the next workbook and may wait too,
+ * until one small enough to fit comes up.
+ *
+ * Outputs go to --output-dir, named after the workbook. A workbook that
+ * fails is logged and counted and its output removed; the rest carry on.
+ */
+final class BatchConverter {
+
+    static final Logger logger = LogManager.getLogger(BatchConverter.class.getName());
+
+    // Sheets of a workbook bigger than this, uncompressed, are converted as separate tasks
+    static final long SPLIT_BYTES = 32L << 20;
+    // Heap taken by a sheet being converted: parse and output buffers, and the sample's mark
+    static final long SHEET_WORKING_BYTES = 8L << 20;
+    // Heap taken by a loaded part, for each byte of its XML: compact strings keep
+    // the text as UTF-8, POI's table a String per entry, StylesTable a whole DOM
+    private static final int COMPACT_STRINGS_FACTOR = 1;
+    private static final int POI_STRINGS_FACTOR = 3;
+    private static final int STYLES_FACTOR = 8;
+
+    private final Options options;
+    private final ForkJoinPool pool;
+    private final Budget budget;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    BatchConverter(Options options) {
+        this.options = options;
+        this.pool = new ForkJoinPool(options.batchThreads);
+        this.budget = new Budget(options.batchMemoryBytes);
+    }
+
+    /**
+     * Converts every workbook of options.batch, returning how many failed.
+     */
+    int run() throws Exception {
+        final List<Path> files = find(options.batch);
+        logger.info("Converting {} workbooks on {} threads, with {}MB for them", files.size(),
+                pool.getParallelism(), budget.total >> 20);
+        final List<Workbook> workbooks = new ArrayList<>();
+        for (Path file : files) {
+            workbooks.add(new Workbook(file));
+        }
+        workbooks.sort(Comparator.comparingLong((Workbook w) -> w.fileSize).reversed());
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(workbooks)).get();
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info("Converted {} workbooks, {} failed", files.size() - failures.get(), failures.get());
+        return failures.get();
+    }
+
+    /**
+     * The workbooks of a spec: a directory's .xlsx and .xlsb files, a glob
+     * such as data/**.xlsx, or @manifest, a file listing one per line.
+     */
+    static List<Path> find(String spec) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        if (spec.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(spec.substring(1)))) {
+                if (!line.isBlank() && !line.startsWith("#")) {
+                    files.add(Paths.get(line.trim()));
+                }
+            }
+            return files;
+        }
+        final boolean glob = isGlob(spec);
+        final var matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+        try (Stream<Path> walk = glob ? Files.walk(base(spec)) : Files.list(base(spec))) {
+            walk.filter(Files::isRegularFile)
+                    .filter(path -> glob ? matcher.matches(path.normalize()) : isWorkbook(path))
+                    .sorted()
+                    .forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * The directory a spec's workbooks are found under, null for a manifest:
+     * the directory itself, or a glob's up to its first wildcard.
+     */
+    static Path base(String spec) {
+        if (spec.startsWith("@")) {
+            return null;
+        }
+        if (!isGlob(spec)) {
+            return Paths.get(spec);
+        }
+        final int slash = spec.replaceAll("[*?\\[{].*", "").lastIndexOf(File.separatorChar);
+        return Paths.get(slash < 0 ? "." : spec.substring(0, slash + 1));
+    }
+
+    private static boolean isGlob(String spec) {
+        return spec.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    private static boolean isWorkbook(Path path) {
+        final String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return (name.endsWith(".xlsx") || name.endsWith(".xlsm") || Main.isBinary(name)) && !name.startsWith("~$");
+    }
+
+    /**
+     * Where a workbook's output goes: its path under the directory searched,
+     * or its name for a manifest, the extension swapped for the format's.
+     */
+    Path outputFor(Path file) {
+        final Path base = base(options.batch);
+        final String name = (base == null ? file.getFileName() : base.normalize().relativize(file.normalize())).toString();
+        final int dot = name.lastIndexOf('.');
+        return Paths.get(options.outputDir).resolve((dot < 0 ? name : name.substring(0, dot))
+                + "." + options.format.name().toLowerCase());
+    }
+
+    /**
+     * Where a workbook's shared strings go with --strings-dictionary: by
+     * its output, book.csv's in book.strings.csv.
+     */
+    static Path dictionaryFor(Path output) {
+        final String name = output.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return output.resolveSibling(name.substring(0, dot) + ".strings" + name.substring(dot));
+    }
+
+    /**
+     * What a workbook will take, from its ZIP central directory.
+     */
+    static final class Estimate {
+        long sheetBytes;
+        int sheets;
+        long heapBytes;
+    }
+
+    static Estimate estimate(Path file, boolean compactStrings, int parallelism) throws IOException {
+        final var estimate = new Estimate();
+        long strings = 0;
+        long styles = 0;
+        try (var zip = new ZipFile(file.toFile())) {
+            for (ZipArchiveEntry entry : (Iterable<ZipArchiveEntry>) zip.getEntries()::asIterator) {
+                final String name = entry.getName();
+                final long size = Math.max(entry.getSize(), 0);
+                if (name.startsWith("xl/worksheets/") && !name.contains("/_rels/")) {
+                    estimate.sheetBytes += size;
+                    estimate.sheets++;
+                } else if (name.startsWith("xl/sharedStrings.")) {
+                    strings += size;
+                } else if (name.startsWith("xl/styles.")) {
+                    styles += size;
+                }
+            }
+        }
+        final boolean split = estimate.sheetBytes > SPLIT_BYTES && estimate.sheets > 1;
+        final int atOnce = split ? Math.min(estimate.sheets, parallelism) : 1;
+        estimate.heapBytes = strings * (compactStrings ? COMPACT_STRINGS_FACTOR : POI_STRINGS_FACTOR)
+                + styles * STYLES_FACTOR + atOnce * SHEET_WORKING_BYTES;
+        return estimate;
+    }
+
+    /**
+     * Converts one workbook, once the budget has room for it.
+     */
+    private final class Workbook extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Path file;
+        final long fileSize;
+
+        Workbook(Path file) {
+            this.file = file;
+            long size;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                size = 0;
+            }
+            this.fileSize = size;
+        }
+
+        @Override
+        protected void compute() {
+            final Path output = outputFor(file);
+            if (output.toAbsolutePath().normalize().equals(file.toAbsolutePath().normalize())) {
+                // --format xlsx with the workbooks in --output-dir
+                failures.incrementAndGet();
+                logger.error("Converting {} would overwrite it, --output-dir needs to be another directory", file);
+                return;
+            }
+            long admitted = 0;
+            try {
+                final var estimate = estimate(file, options.compactStrings, pool.getParallelism());
+                admitted = budget.acquire(estimate.heapBytes);
+                final var workbookOptions = options.forFile(file.toString());
+                if (options.stringsDictionary != null) {
+                    workbookOptions.stringsDictionary = dictionaryFor(output).toString();
+                }
+                if (estimate.sheetBytes > SPLIT_BYTES && estimate.sheets > 1) {
+                    workbookOptions.sheetPool = pool;
+                }
+                Files.createDirectories(output.toAbsolutePath().getParent());
+                try (var out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    Main.convert(workbookOptions, null, out);
+                }
+                logger.debug("Converted {}", file);
+            } catch (Throwable t) {
+                failures.incrementAndGet();
+                logger.error("Converting {} failed", file, t);
+                try {
+                    Files.deleteIfExists(output);
+                    Files.deleteIfExists(dictionaryFor(output));
+                } catch (IOException e) {
+                    logger.warn("Couldn't remove {}", output, e);
+                }
+            } finally {
+                budget.release(admitted);
+            }
+        }
+    }
+
+    /**
+     * Bytes of heap handed out to workbooks in flight. A workbook asking
+     * for more than there is at all gets everything, once nothing else
+     * holds any.
+     */
+    static final class Budget {
+        final long total;
+        private long available;
+
+        Budget(long total) {
+            this.total = total;
+            this.available = total;
+        }
+
+        /**
+         * Waits for the bytes. On a pool thread the wait is managed, so the
+         * pool may start a spare thread to keep its parallelism. Returns
+         * what was taken, for {@link #release}.
+         */
+        long acquire(long bytes) throws InterruptedException {
+            final long wanted = Math.min(bytes, total);
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    synchronized (Budget.this) {
+                        while (available < wanted) {
+                            Budget.this.wait();
+                        }
+                        available -= wanted;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    synchronized (Budget.this) {
+                        if (available >= wanted) {
+                            available -= wanted;
+                            return true;
+                        }
+                        return false;
+                    }
+                }
+            });
+            return wanted;
+        }
+
+        synchronized void release(long bytes) {
+            available += bytes;
+            notifyAll();
+        }
+    }
+}
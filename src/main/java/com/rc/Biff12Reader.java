@@ -0,0 +1,155 @@
+package com.rc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the records of a BIFF12 part (the binary parts of an XLSB
+ * workbook), one at a time.
+ *
+ * Unlike POI's XSSFBParser nothing is allocated per record: the part is
+ * read through one buffer and the current record's fields are decoded in
+ * place, valid until the next call to {@link #next()}.
+ *
+ * A record is a 1 or 2 byte type, a length of 1 to 4 bytes of 7 bits
+ * each, then the payload, everything little endian.
+ */
+final class Biff12Reader {
+
+    private final InputStream in;
+    private byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    // The current record: its type and where its payload sits in buffer
+    private int type;
+    private int start;
+    private int length;
+
+    Biff12Reader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Moves to the next record, false at the end of the part.
+     */
+    boolean next() throws IOException {
+        position = start + length;
+        start = position;
+        length = 0;
+        // The header is at most 6 bytes
+        if (!fill(6) && position == limit) {
+            return false;
+        }
+        int b = buffer[position++] & 0xFF;
+        type = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            type |= (buffer[position++] & 0x7F) << 7;
+        }
+        int size = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            b = buffer[position++] & 0xFF;
+            size |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (position > limit) {
+            throw new EOFException("Truncated record header");
+        }
+        start = position;
+        if (!fill(size)) {
+            throw new EOFException("Record " + type + " is truncated, wanted " + size + " bytes");
+        }
+        start = position;
+        length = size;
+        return true;
+    }
+
+    int type() {
+        return type;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int uint8(int offset) {
+        return buffer[start + offset] & 0xFF;
+    }
+
+    int uint16(int offset) {
+        return uint8(offset) | uint8(offset + 1) << 8;
+    }
+
+    int uint24(int offset) {
+        return uint16(offset) | uint8(offset + 2) << 16;
+    }
+
+    int int32(int offset) {
+        return uint16(offset) | uint16(offset + 2) << 16;
+    }
+
+    double float64(int offset) {
+        return Double.longBitsToDouble(int32(offset) & 0xFFFFFFFFL | (long) int32(offset + 4) << 32);
+    }
+
+    /**
+     * An RkNumber: a double with the low 34 bits of mantissa dropped, or a
+     * 30 bit integer, either possibly multiplied by 100.
+     */
+    double rk(int offset) {
+        final int rk = int32(offset);
+        final double value = (rk & 2) != 0
+                ? rk >> 2
+                : Double.longBitsToDouble((long) (rk & 0xFFFFFFFC) << 32);
+        return (rk & 1) != 0 ? value / 100 : value;
+    }
+
+    /**
+     * Appends an XLWideString, a 4 byte character count then UTF-16LE,
+     * and returns the offset just past it.
+     */
+    int wideString(int offset, StringBuilder to) throws IOException {
+        final int chars = int32(offset);
+        if (chars < 0 || offset + 4 + 2L * chars > length) {
+            throw new EOFException("String of " + chars + " characters overruns record " + type);
+        }
+        offset += 4;
+        for (int i = 0; i < chars; i++, offset += 2) {
+            to.append((char) uint16(offset));
+        }
+        return offset;
+    }
+
+    /**
+     * Makes the n bytes from position available in buffer, moving what's
+     * left of it to the front and growing it as needed. False at the end
+     * of the stream with fewer bytes than that left.
+     */
+    private boolean fill(int n) throws IOException {
+        if (limit - position >= n) {
+            return true;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            start -= position;
+            position = 0;
+        }
+        if (n > buffer.length) {
+            final var grown = new byte[Math.max(n, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        while (limit < n) {
+            final int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+package com.rc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * Converts a cell's value to the type of its output column and hands it
+ * to the sink. Both sheet readers decode their own format and then come
+ * through here, so a workbook converts the same as XLSX or XLSB.
+ *
+ * A column of type null takes each cell as it comes: numbers in a date
+ * format as dates, text as text. TypeInference samples sheets that way.
+ *
+ * A cell that doesn't fit its column's type, text such as N/A or Total
+ * under numbers past the rows sampled, is passed on as it is, with a
+ * warning the first time in each column; what becomes of it is up to the
+ * sink.
+ */
+final class CellConverter {
+
+    static final Logger logger = LogManager.getLogger(CellConverter.class.getName());
+
+    private final RowSink sink;
+    // The text of an entry, without a RichTextString from compact strings
+    private final IntFunction<CharSequence> text;
+    private final SerialDates dates;
+    // Columns warned about a cell that doesn't fit
+    private final BitSet misfits = new BitSet();
+
+    CellConverter(RowSink sink, SharedStrings strings, SerialDates dates) {
+        this.sink = sink;
+        this.text = strings instanceof CompactSharedStrings compact
+                ? compact::getString
+                : index -> strings.getItemAt(index).getString();
+        this.dates = dates;
+    }
+
+    void number(int column, ColumnType expected, double value, StyleCache.CellFormat format) {
+        if ((expected == ColumnType.DATETIME || expected == null) && format.isDate && SerialDates.isValid(value)) {
+            sink.datetime(column, dates.toEpochMillis(value));
+            return;
+        }
+        if (expected == ColumnType.BOOLEAN) {
+            sink.bool(column, value != 0);
+            return;
+        }
+        sink.number(column, value);
+    }
+
+    void sharedString(int column, ColumnType expected, int index) {
+        if (expected == ColumnType.STRING || expected == null) {
+            sink.sharedString(column, index, text);
+            return;
+        }
+        string(column, expected, text.apply(index));
+    }
+
+    void string(int column, ColumnType expected, CharSequence value) {
+        if (expected == ColumnType.STRING || expected == null) {
+            sink.cell(column, value);
+            return;
+        }
+        if (expected == ColumnType.BOOLEAN) {
+            sink.bool(column, isTrue(value));
+            return;
+        }
+        try {
+            if (expected == ColumnType.DECIMAL) {
+                sink.number(column, NumberText.parseDouble(value));
+            } else {
+                sink.datetime(column, dates.startOfDay(LocalDate.parse(value).toEpochDay()));
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            misfit(column, expected, "text");
+            sink.cell(column, value);
+        }
+    }
+
+    void bool(int column, ColumnType expected, boolean value) {
+        if (expected == ColumnType.STRING || expected == ColumnType.BOOLEAN || expected == null) {
+            sink.bool(column, value);
+            return;
+        }
+        if (expected == ColumnType.DECIMAL) {
+            sink.number(column, value ? 1 : 0);
+            return;
+        }
+        misfit(column, expected, "a boolean");
+        sink.bool(column, value);
+    }
+
+    private void misfit(int column, ColumnType expected, String what) {
+        if (!misfits.get(column)) {
+            misfits.set(column);
+            logger.warn("Column {} is {} but has {}, such cells are written as they are",
+                    XlsxSheetHandler.columnName(column), expected, what);
+        }
+    }
+
+    void error(int column) {
+        sink.cell(column, "**ERR**");
+    }
+
+    static boolean isTrue(CharSequence value) {
+        if (value.length() == 0) {
+            return false;
+        }
+        final char c = Character.toUpperCase(value.charAt(0));
+        return c == 'T' || c == '1' || c == 'Y';
+    }
+}
@@ -0,0 +1,392 @@
+package com.rc;
+
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts one XLSX sheet on several cores.
+ *
+ * The sheet XML is inflated once, on the calling thread, and cut into
+ * chunks of whole rows by looking for the row start tags. Each chunk is
+ * made a document of its own again, with the sheet's opening tags in
+ * front and closing tags after, and parsed on the pool by its own
+ * XlsxSheetHandler into its own buffer. The buffers are written out in
+ * chunk order, so the output is the same as a single pass. Each pool
+ * thread keeps one sink for the sheet, so the shared strings it has
+ * encoded carry over from chunk to chunk; only the text formats are
+ * chunked, and their sinks keep nothing else between sheets.
+ *
+ * Rows are numbered from their r attribute; for sheets written without
+ * one the rows of each chunk are counted so the next chunk knows where
+ * it starts. At most twice the pool size of chunks are in memory.
+ */
+final class ChunkedSheetParser {
+
+    static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+
+    private final ExecutorService pool;
+    private final int inFlight;
+    private final int chunkBytes;
+    private final boolean scanXml;
+
+    /**
+     * @param scanXml read chunks with {@link SheetXmlScanner} rather than SAX
+     */
+    ChunkedSheetParser(ExecutorService pool, int threads, int chunkBytes, boolean scanXml) {
+        this.pool = pool;
+        this.inFlight = threads * 2;
+        this.chunkBytes = chunkBytes;
+        this.scanXml = scanXml;
+    }
+
+    void convert(InputStream sheetXml, String sheetName, StyleCache styles, SharedStrings strings,
+                 ColumnType[] outputTypes, Projection.Sheet projection, RowSink.Factory sinks,
+                 WritableByteChannel out, ConversionMetrics metrics) throws Exception {
+        // The sheet's bytes and time, chunks add their rows and cells
+        final var sheet = metrics.sheet(sheetName);
+        final long start = System.nanoTime();
+        final var chunker = new Chunker(ConversionMetrics.counting(sheetXml, sheet), chunkBytes);
+        final var pending = new ArrayDeque<Future<byte[]>>();
+        final var done = new AtomicBoolean();
+        final var projectedTypes = projection.project(outputTypes);
+        final Map<Thread, ChunkOutput> outputs = new ConcurrentHashMap<>();
+        try {
+            int rowsBefore = 0;
+            while (!done.get()) {
+                final byte[] chunk = chunker.next();
+                if (chunk == null) {
+                    break;
+                }
+                final boolean first = chunker.chunks == 1;
+                final boolean last = chunker.finished;
+                final int firstRow = rowsBefore;
+                if (!chunker.numbered) {
+                    rowsBefore += chunker.count(chunk);
+                }
+                pending.add(pool.submit(() -> {
+                    final var output = outputs.computeIfAbsent(Thread.currentThread(),
+                            thread -> new ChunkOutput(sinks, projectedTypes));
+                    output.start(chunk.length / 2);
+                    final var sink = output.sink;
+                    final var handler = new XlsxSheetHandler(styles, strings, outputTypes, sink, projection);
+                    final var counts = metrics.sheet(sheetName);
+                    handler.countInto(counts);
+                    if (!first) {
+                        handler.startAtRow(firstRow);
+                    }
+                    sink.startSheet(sheetName);
+                    try {
+                        if (scanXml) {
+                            SheetXmlScanner.parse(chunker.document(chunk, last), handler);
+                        } else {
+                            SheetXmlScanner.parseWithSax(chunker.document(chunk, last), handler);
+                        }
+                    } catch (Projection.EndOfRange e) {
+                        // the wanted rows end in this chunk, later ones have nothing to add
+                        done.set(true);
+                    } catch (Throwable t) {
+                        // the sink may hold part of a row, the thread's next chunk starts afresh
+                        outputs.remove(Thread.currentThread());
+                        throw t;
+                    }
+                    sink.endSheet();
+                    metrics.add(counts);
+                    return output.finish();
+                }));
+                if (pending.size() >= inFlight) {
+                    write(pending.remove(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.remove(), out);
+            }
+            sheet.nanos = System.nanoTime() - start;
+            metrics.add(sheet);
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * A pool thread's sink for the chunks of a sheet, writing each chunk
+     * to a buffer of its own.
+     */
+    private static final class ChunkOutput implements WritableByteChannel {
+        final RowSink sink;
+        private ByteArrayOutputStream buffer;
+
+        ChunkOutput(RowSink.Factory sinks, ColumnType[] types) {
+            this.sink = sinks.open(this, types);
+        }
+
+        void start(int capacity) {
+            buffer = new ByteArrayOutputStream(capacity);
+        }
+
+        byte[] finish() {
+            sink.flush();
+            final byte[] bytes = buffer.toByteArray();
+            buffer = null;
+            return bytes;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int length = src.remaining();
+            if (src.hasArray()) {
+                buffer.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                final var bytes = new byte[length];
+                src.get(bytes);
+                buffer.write(bytes, 0, length);
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void write(Future<byte[]> chunk, WritableByteChannel out) throws Exception {
+        final ByteBuffer bytes;
+        try {
+            bytes = ByteBuffer.wrap(chunk.get());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Cuts the sheet XML before row start tags.
+     */
+    static final class Chunker {
+
+        private final InputStream in;
+        private final int chunkBytes;
+        private byte[] buffer;
+        private int length;
+        private boolean eof;
+
+        // Everything before the first row, and the tags that close it
+        private byte[] head;
+        private byte[] tail;
+        // "<row", or "<x:row" when the sheet uses a prefix
+        private byte[] rowTag;
+
+        int chunks;
+        boolean finished;
+        // Whether rows carry their number, known once the head is read
+        boolean numbered = true;
+
+        Chunker(InputStream in, int chunkBytes) {
+            this.in = in;
+            this.chunkBytes = chunkBytes;
+            this.buffer = new byte[chunkBytes + (1 << 16)];
+        }
+
+        /**
+         * The next chunk, null after the last. The last runs to the end of
+         * the document.
+         */
+        byte[] next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            if (head == null) {
+                readHead();
+                if (finished) {
+                    chunks++;
+                    return Arrays.copyOf(buffer, length);
+                }
+            }
+            while (true) {
+                fill(chunkBytes);
+                if (eof) {
+                    finished = true;
+                    chunks++;
+                    return Arrays.copyOf(buffer, length);
+                }
+                final int cut = lastRowStart();
+                if (cut > 0) {
+                    chunks++;
+                    final byte[] chunk = Arrays.copyOf(buffer, cut);
+                    System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                    length -= cut;
+                    return chunk;
+                }
+                // a single row longer than a chunk
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                fill(buffer.length);
+            }
+        }
+
+        /**
+         * Wraps a chunk up as a document of its own.
+         */
+        InputStream document(byte[] chunk, boolean last) {
+            final List<InputStream> parts = new ArrayList<>(3);
+            parts.add(new ByteArrayInputStream(head));
+            parts.add(new ByteArrayInputStream(chunk));
+            if (!last) {
+                parts.add(new ByteArrayInputStream(tail));
+            }
+            return new SequenceInputStream(Collections.enumeration(parts));
+        }
+
+        /**
+         * Number of rows in a chunk.
+         */
+        int count(byte[] chunk) {
+            int rows = 0;
+            for (int i = indexOf(chunk, 0, chunk.length); i >= 0; i = indexOf(chunk, i + 1, chunk.length)) {
+                rows++;
+            }
+            return rows;
+        }
+
+        /**
+         * Reads up to the first row, and takes what comes before it, the
+         * worksheet and sheetData start tags, as the head of every chunk.
+         */
+        private void readHead() throws IOException {
+            int first;
+            int searched = 0;
+            while (true) {
+                fill(Math.min(buffer.length, length + (1 << 16)));
+                first = findFirstRow(searched);
+                if (first >= 0 || eof) {
+                    break;
+                }
+                searched = Math.max(0, length - 16);
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            if (first < 0) {
+                // no rows at all, one chunk of the whole document
+                head = new byte[0];
+                finished = true;
+                return;
+            }
+            head = Arrays.copyOf(buffer, first);
+            System.arraycopy(buffer, first, buffer, 0, length - first);
+            length -= first;
+            final String prefix = new String(rowTag, 1, rowTag.length - 4, StandardCharsets.US_ASCII);
+            tail = ("</" + prefix + "sheetData></" + prefix + "worksheet>").getBytes(StandardCharsets.US_ASCII);
+            numbered = firstRowHasNumber();
+        }
+
+        /**
+         * Finds the first row start tag, with or without a namespace prefix.
+         */
+        private int findFirstRow(int from) {
+            for (int i = from; i + 5 < length; i++) {
+                if (buffer[i] != '<') {
+                    continue;
+                }
+                int name = i + 1;
+                while (name < length && isNameChar(buffer[name]) && buffer[name] != ':') {
+                    name++;
+                }
+                final int local = name < length && buffer[name] == ':' ? name + 1 : i + 1;
+                if (local + 3 < length && buffer[local] == 'r' && buffer[local + 1] == 'o' && buffer[local + 2] == 'w'
+                        && isDelimiter(buffer[local + 3])) {
+                    rowTag = Arrays.copyOfRange(buffer, i, local + 3);
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean firstRowHasNumber() {
+            for (int i = rowTag.length; i + 2 < length && buffer[i] != '>'; i++) {
+                if (buffer[i] == 'r' && buffer[i + 1] == '=' && isDelimiter(buffer[i - 1])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int lastRowStart() {
+            for (int i = length - rowTag.length - 1; i > 0; i--) {
+                if (buffer[i] == '<' && matchesRowTag(buffer, i, length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOf(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == '<' && matchesRowTag(bytes, i, to)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matchesRowTag(byte[] bytes, int at, int to) {
+            if (at + rowTag.length >= to) {
+                return false;
+            }
+            for (int j = 1; j < rowTag.length; j++) {
+                if (bytes[at + j] != rowTag[j]) {
+                    return false;
+                }
+            }
+            return isDelimiter(bytes[at + rowTag.length]);
+        }
+
+        private static boolean isDelimiter(byte b) {
+            return b == ' ' || b == '>' || b == '/' || b == '\t' || b == '\r' || b == '\n';
+        }
+
+        private static boolean isNameChar(byte b) {
+            return b != ' ' && b != '>' && b != '/' && b != '<' && b != '\t' && b != '\r' && b != '\n';
+        }
+
+        /**
+         * Reads until length reaches n, or the end of the stream.
+         */
+        private void fill(int n) throws IOException {
+            n = Math.min(n, buffer.length);
+            while (length < n && !eof) {
+                final int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    length += read;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.rc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A block of rows held column by column, in primitive arrays.
+ *
+ * Each column is a vector specialised for its {@link ColumnType}: doubles
+ * for DECIMAL, epoch millis for DATETIME, a bit set for BOOLEAN and
+ * dictionary ids for STRING. Every vector has a validity bitmap, a set
+ * bit means the row has a value, the same layout as Arrow.
+ *
+ * Batches are reused: once handed to a consumer and returned, the same
+ * arrays are cleared and filled with the next rows. A consumer that keeps
+ * data must copy it.
+ */
+final class ColumnBatch {
+
+    /**
+     * The common part of all vectors, the validity bitmap.
+     */
+    abstract static class Vector {
+        final ColumnType type;
+        final long[] validity;
+
+        Vector(ColumnType type, int capacity) {
+            this.type = type;
+            this.validity = new long[(capacity + 63) >>> 6];
+        }
+
+        boolean isValid(int row) {
+            return (validity[row >>> 6] & (1L << row)) != 0;
+        }
+
+        void setValid(int row) {
+            validity[row >>> 6] |= 1L << row;
+        }
+
+        void reset() {
+            Arrays.fill(validity, 0);
+        }
+    }
+
+    static final class DoubleVector extends Vector {
+        final double[] values;
+
+        DoubleVector(int capacity) {
+            super(ColumnType.DECIMAL, capacity);
+            values = new double[capacity];
+        }
+
+        void set(int row, double value) {
+            values[row] = value;
+            setValid(row);
+        }
+    }
+
+    /**
+     * DATETIME values, as milliseconds since the epoch in UTC.
+     */
+    static final class LongVector extends Vector {
+        final long[] values;
+
+        LongVector(int capacity) {
+            super(ColumnType.DATETIME, capacity);
+            values = new long[capacity];
+        }
+
+        void set(int row, long value) {
+            values[row] = value;
+            setValid(row);
+        }
+    }
+
+    static final class BitVector extends Vector {
+        final long[] bits;
+
+        BitVector(int capacity) {
+            super(ColumnType.BOOLEAN, capacity);
+            bits = new long[(capacity + 63) >>> 6];
+        }
+
+        void set(int row, boolean value) {
+            if (value) {
+                bits[row >>> 6] |= 1L << row;
+            } else {
+                bits[row >>> 6] &= ~(1L << row);
+            }
+            setValid(row);
+        }
+
+        boolean get(int row) {
+            return (bits[row >>> 6] & (1L << row)) != 0;
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            Arrays.fill(bits, 0);
+        }
+    }
+
+    /**
+     * Dictionary encoded strings. Each distinct value of the batch is stored
+     * once, as UTF-8 in one byte array with an offset per entry, and rows
+     * hold the id of their entry. Looking a value up doesn't create objects,
+     * so repeated values cost an int per row.
+     */
+    static final class StringVector extends Vector {
+        final int[] ids;
+
+        // The dictionary: entry i is bytes[offsets[i] .. offsets[i+1])
+        byte[] bytes = new byte[1 << 12];
+        int[] offsets = new int[257];
+        int size;
+
+        // Open addressing, slot holds id + 1, 0 is empty
+        private int[] slots = new int[512];
+        private int[] hashes = new int[256];
+        private byte[] scratch = new byte[256];
+
+        StringVector(int capacity) {
+            super(ColumnType.STRING, capacity);
+            ids = new int[capacity];
+        }
+
+        void set(int row, CharSequence value) {
+            ids[row] = intern(value);
+            setValid(row);
+        }
+
+        int dictionarySize() {
+            return size;
+        }
+
+        String entry(int id) {
+            return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+        }
+
+        String get(int row) {
+            return entry(ids[row]);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            size = 0;
+            Arrays.fill(slots, 0);
+        }
+
+        private int intern(CharSequence value) {
+            final int length = encode(value);
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + scratch[i];
+            }
+            hash ^= hash >>> 16;
+            final int mask = slots.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                final int entry = slots[slot];
+                if (entry == 0) {
+                    return add(slot, hash, length);
+                }
+                final int id = entry - 1;
+                if (hashes[id] == hash && Arrays.equals(bytes, offsets[id], offsets[id + 1], scratch, 0, length)) {
+                    return id;
+                }
+            }
+        }
+
+        private int add(int slot, int hash, int length) {
+            final int id = size++;
+            if (size + 1 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            final int start = offsets[id];
+            if (start + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + length));
+            }
+            System.arraycopy(scratch, 0, bytes, start, length);
+            offsets[id + 1] = start + length;
+            hashes[id] = hash;
+            slots[slot] = id + 1;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            final int mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = hashes[id] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+
+        /**
+         * UTF-8 encodes the value into scratch, returns the length.
+         */
+        private int encode(CharSequence value) {
+            final int length = value.length();
+            if (length * 3 > scratch.length) {
+                scratch = new byte[length * 3];
+            }
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    scratch[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    scratch[n++] = (byte) (0xC0 | (c >> 6));
+                    scratch[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, value.charAt(++i));
+                    scratch[n++] = (byte) (0xF0 | (cp >> 18));
+                    scratch[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    scratch[n++] = (byte) (0xE0 | (c >> 12));
+                    scratch[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    scratch[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return n;
+        }
+    }
+
+    final int capacity;
+    final Vector[] columns;
+    // Sheet row number of each row in the batch
+    final int[] rowNumbers;
+    String sheetName;
+    int rowCount;
+
+    ColumnBatch(ColumnType[] columnTypes, int capacity) {
+        this.capacity = capacity;
+        this.rowNumbers = new int[capacity];
+        this.columns = new Vector[columnTypes.length];
+        for (int i = 0; i < columnTypes.length; i++) {
+            columns[i] = switch (columnTypes[i]) {
+                case DECIMAL -> new DoubleVector(capacity);
+                case DATETIME -> new LongVector(capacity);
+                case BOOLEAN -> new BitVector(capacity);
+                case STRING -> new StringVector(capacity);
+            };
+        }
+    }
+
+    boolean isFull() {
+        return rowCount == capacity;
+    }
+
+    void reset() {
+        rowCount = 0;
+        for (Vector column : columns) {
+            column.reset();
+        }
+    }
+}
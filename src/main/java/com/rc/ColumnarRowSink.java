@@ -0,0 +1,91 @@
+package com.rc;
+
+import java.util.function.Consumer;
+
+/**
+ * Fills {@link ColumnBatch}es instead of writing text, handing each one to
+ * a consumer once it holds batchSize rows, and the last partial one when
+ * the sheet ends.
+ *
+ * Values go straight into the vector of their column, so numbers and
+ * dates are never turned into text. A value that doesn't fit its column
+ * (an error cell, a formula's text in a DECIMAL column) is left null.
+ *
+ * The same batch is reused for the whole sheet. With parallel sheets the
+ * consumer is called from several threads, one batch per sheet.
+ */
+class ColumnarRowSink implements RowSink {
+
+    private final ColumnBatch batch;
+    private final Consumer<ColumnBatch> consumer;
+    private int row;
+
+    ColumnarRowSink(ColumnType[] columnTypes, int batchSize, Consumer<ColumnBatch> consumer) {
+        this.batch = new ColumnBatch(columnTypes, batchSize);
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+        batch.sheetName = sheetName;
+        batch.reset();
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        row = batch.rowCount;
+        batch.rowNumbers[row] = rowNum;
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        if (column < batch.columns.length && batch.columns[column] instanceof ColumnBatch.StringVector) {
+            ((ColumnBatch.StringVector) batch.columns[column]).set(row, value);
+        }
+    }
+
+    @Override
+    public void number(int column, double value) {
+        if (column < batch.columns.length && batch.columns[column] instanceof ColumnBatch.DoubleVector) {
+            ((ColumnBatch.DoubleVector) batch.columns[column]).set(row, value);
+        }
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        if (column < batch.columns.length && batch.columns[column] instanceof ColumnBatch.LongVector) {
+            ((ColumnBatch.LongVector) batch.columns[column]).set(row, epochMillis);
+        }
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        if (column < batch.columns.length && batch.columns[column] instanceof ColumnBatch.BitVector) {
+            ((ColumnBatch.BitVector) batch.columns[column]).set(row, value);
+        }
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        batch.rowCount++;
+        if (batch.isFull()) {
+            emit();
+        }
+    }
+
+    @Override
+    public void endSheet() {
+        if (batch.rowCount > 0) {
+            emit();
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    private void emit() {
+        consumer.accept(batch);
+        batch.reset();
+    }
+}
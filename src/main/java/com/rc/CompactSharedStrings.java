@@ -0,0 +1,422 @@
+package com.rc;
+
+import static org.apache.poi.xssf.usermodel.XSSFRelation.NS_SPREADSHEETML;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read only shared strings table that keeps every string as UTF-8 in
+ * one contiguous buffer, with an int offset per string.
+ *
+ * POI's ReadOnlySharedStringsTable holds a String per entry, which costs
+ * around three times the text itself in headers and UTF-16. Here the
+ * overhead is four bytes a string, and Strings are only made when a
+ * cell asks for one. Tables bigger than the spill threshold are moved to
+ * a memory mapped temp file, so they don't live on the heap at all.
+ *
+ * Once loaded the table is only read, so it's safe to share between
+ * sheets converted in parallel.
+ */
+final class CompactSharedStrings implements SharedStrings {
+    static final Logger logger = LogManager.getLogger(CompactSharedStrings.class.getName());
+
+    static final long DEFAULT_SPILL_THRESHOLD = 256L << 20;
+
+    // Content type of sharedStrings.bin, POI's XSSFBRelation keeps it private
+    static final String SHARED_STRINGS_BINARY = "application/vnd.ms-excel.sharedStrings";
+
+    // BIFF12 records of sharedStrings.bin
+    private static final int BRT_SST_ITEM = 19;
+    private static final int BRT_BEGIN_SST = 159;
+
+    // Most offsets allocated up front for the count a file declares
+    private static final int MAX_PRESIZE = 1 << 16;
+
+    private int[] offsets;
+    private int size;
+    private int count;
+
+    // Exactly one of these holds the strings once loading is done
+    private byte[] heap;
+    private ByteBuffer mapped;
+
+    // While loading: the encoded bytes not yet spilled, and the spill file
+    private int fill;
+    private int spilled;
+    private File spillFile;
+    private FileChannel spillChannel;
+    private final long spillThreshold;
+    // Most heap the table took at once, while loading
+    private long peakHeapBytes;
+
+    CompactSharedStrings(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        this.offsets = new int[1024];
+        this.heap = new byte[1 << 16];
+    }
+
+    /**
+     * Loads the table of an XLSX package; an empty table when there is none.
+     */
+    static CompactSharedStrings load(OPCPackage pkg, long spillThreshold) throws Exception {
+        final var strings = new CompactSharedStrings(spillThreshold);
+        final var parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        try {
+            if (!parts.isEmpty()) {
+                try (InputStream is = parts.get(0).getInputStream()) {
+                    strings.readFrom(is);
+                }
+            }
+            strings.finish();
+        } catch (Exception e) {
+            strings.discard();
+            throw e;
+        }
+        return strings;
+    }
+
+    /**
+     * Loads the table of an XLSB package, from its sharedStrings.bin part.
+     */
+    static CompactSharedStrings loadBinary(OPCPackage pkg, long spillThreshold) throws Exception {
+        final var strings = new CompactSharedStrings(spillThreshold);
+        final var parts = pkg.getPartsByContentType(SHARED_STRINGS_BINARY);
+        try {
+            if (!parts.isEmpty()) {
+                try (InputStream is = parts.get(0).getInputStream()) {
+                    strings.readBinaryFrom(is);
+                }
+            }
+            strings.finish();
+        } catch (Exception e) {
+            strings.discard();
+            throw e;
+        }
+        return strings;
+    }
+
+    /**
+     * Reads the BrtSstItem records of a sharedStrings.bin part. Each is a
+     * flags byte then the text; rich text runs and phonetics that follow
+     * are ignored, like POI's XSSFBSharedStringsTable.
+     */
+    /**
+     * Sizes the offsets for the number of strings the file says it has.
+     * Only a hint, the file may be wrong or hostile: past MAX_PRESIZE the
+     * offsets grow as strings are added.
+     */
+    private void presize(long uniqueCount) {
+        offsets = new int[(int) Math.min(Math.max(uniqueCount, 0), MAX_PRESIZE) + 1];
+    }
+
+    void readBinaryFrom(InputStream is) throws IOException {
+        final var reader = new Biff12Reader(is);
+        final var text = new StringBuilder(64);
+        while (reader.next()) {
+            if (reader.type() == BRT_BEGIN_SST) {
+                count = reader.int32(0);
+                presize(reader.int32(4));
+            } else if (reader.type() == BRT_SST_ITEM) {
+                text.setLength(0);
+                reader.wideString(1, text);
+                add(text);
+            }
+        }
+    }
+
+    void readFrom(InputStream is) throws Exception {
+        try {
+            final var reader = XMLHelper.newXMLReader();
+            reader.setContentHandler(new Loader());
+            reader.parse(new InputSource(is));
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the next string of the table.
+     */
+    void add(CharSequence s) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = spilled + fill;
+        encode(s);
+    }
+
+    /**
+     * Ends loading; after this the table is read only.
+     */
+    void finish() {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size + 1);
+        }
+        offsets[size] = spilled + fill;
+        if (spillChannel == null) {
+            grown(fill);
+            heap = Arrays.copyOf(heap, fill);
+            return;
+        }
+        try {
+            drain();
+            mapped = spillChannel.map(FileChannel.MapMode.READ_ONLY, 0, spilled);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            // the mapping outlives the file
+            discard();
+        }
+        heap = null;
+    }
+
+    /**
+     * Deletes the spill file, when there is one, for a table that's
+     * finished or given up on part way through loading.
+     */
+    void discard() {
+        if (spillChannel == null) {
+            return;
+        }
+        try {
+            spillChannel.close();
+        } catch (IOException e) {
+            logger.warn("Couldn't delete {}", spillFile, e);
+        }
+    }
+
+    /**
+     * True when the strings live in a memory mapped file rather than on the heap.
+     */
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Bytes taken by the strings themselves.
+     */
+    long byteSize() {
+        return offsets[size];
+    }
+
+    /**
+     * The most heap the table has taken, its buffers while loading or the
+     * table once loaded, whichever is more. Mapped strings aren't counted.
+     */
+    long peakHeapBytes() {
+        return Math.max(peakHeapBytes, (heap == null ? 0 : heap.length) + offsets.length * 4L);
+    }
+
+    int length(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * The UTF-8 bytes of a string, as a read only view of the table.
+     */
+    ByteBuffer bytes(int index) {
+        final int start = offsets[index];
+        final int length = offsets[index + 1] - start;
+        if (mapped != null) {
+            return mapped.slice(start, length).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(heap, start, length).slice().asReadOnlyBuffer();
+    }
+
+    String getString(int index) {
+        final int start = offsets[index];
+        final int length = offsets[index + 1] - start;
+        if (mapped == null) {
+            return new String(heap, start, length, StandardCharsets.UTF_8);
+        }
+        final byte[] copy = new byte[length];
+        mapped.get(start, copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RichTextString getItemAt(int idx) {
+        return new XSSFRichTextString(getString(idx));
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return size;
+    }
+
+    private void encode(CharSequence s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            // worst case, a surrogate pair
+            ensure(4);
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                heap[fill++] = (byte) c;
+            } else if (c < 0x800) {
+                heap[fill++] = (byte) (0xC0 | (c >> 6));
+                heap[fill++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                heap[fill++] = (byte) (0xF0 | (cp >> 18));
+                heap[fill++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                heap[fill++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                heap[fill++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                heap[fill++] = (byte) (0xE0 | (c >> 12));
+                heap[fill++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                heap[fill++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Makes room for n more bytes: grows the heap buffer until the spill
+     * threshold, after that writes it out to the spill file.
+     */
+    private void ensure(int n) {
+        if (fill + n <= heap.length) {
+            return;
+        }
+        if ((long) spilled + fill + n > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Shared strings table is larger than 2GB");
+        }
+        if (spillChannel == null && fill + n <= spillThreshold) {
+            final int length = (int) Math.min(Math.max(heap.length * 2L, fill + n), Integer.MAX_VALUE - 8);
+            grown(length);
+            heap = Arrays.copyOf(heap, length);
+            return;
+        }
+        try {
+            if (spillChannel == null) {
+                spillFile = File.createTempFile("sst", ".bin");
+                spillChannel = FileChannel.open(spillFile.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Notes the heap buffer being copied to one of the given length, both live for a moment.
+     */
+    private void grown(int length) {
+        peakHeapBytes = Math.max(peakHeapBytes, (long) heap.length + length + offsets.length * 4L);
+    }
+
+    private void drain() throws IOException {
+        final var buffer = ByteBuffer.wrap(heap, 0, fill);
+        while (buffer.hasRemaining()) {
+            spillChannel.write(buffer, spilled + buffer.position());
+        }
+        spilled += fill;
+        fill = 0;
+    }
+
+    /**
+     * Gathers the text of each si element, all runs concatenated, the same
+     * as POI's ReadOnlySharedStringsTable with phonetic runs included.
+     */
+    private class Loader extends DefaultHandler {
+
+        private final StringBuilder characters = new StringBuilder(64);
+        private boolean tIsOpen;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (uri != null && !uri.equals(NS_SPREADSHEETML)) {
+                return;
+            }
+            if ("sst".equals(localName)) {
+                final String countStr = attributes.getValue("count");
+                if (countStr != null) {
+                    count = Integer.parseInt(countStr);
+                }
+                final String uniqueCountStr = attributes.getValue("uniqueCount");
+                if (uniqueCountStr != null) {
+                    presize(Long.parseLong(uniqueCountStr));
+                }
+            } else if ("si".equals(localName)) {
+                characters.setLength(0);
+            } else if ("t".equals(localName)) {
+                tIsOpen = true;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (uri != null && !uri.equals(NS_SPREADSHEETML)) {
+                return;
+            }
+            if ("si".equals(localName)) {
+                add(decodeEscapes(characters));
+            } else if ("t".equals(localName)) {
+                tIsOpen = false;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (tIsOpen) {
+                characters.append(ch, start, length);
+            }
+        }
+    }
+
+    /**
+     * Replaces the _xHHHH_ escapes Excel uses for control characters, the
+     * same as XSSFRichTextString.getString() does.
+     */
+    static CharSequence decodeEscapes(StringBuilder s) {
+        int from = s.indexOf("_x");
+        if (from < 0) {
+            return s;
+        }
+        final var decoded = new StringBuilder(s.length());
+        int start = 0;
+        for (; from >= 0; from = s.indexOf("_x", from + 1)) {
+            if (from < start || from + 7 > s.length() || s.charAt(from + 6) != '_') {
+                continue;
+            }
+            int code = 0;
+            boolean hex = true;
+            for (int i = from + 2; i < from + 6 && hex; i++) {
+                final int digit = Character.digit(s.charAt(i), 16);
+                hex = digit >= 0;
+                code = code * 16 + digit;
+            }
+            if (hex) {
+                decoded.append(s, start, from).append((char) code);
+                start = from + 7;
+            }
+        }
+        return decoded.append(s, start, s.length());
+    }
+}
@@ -0,0 +1,351 @@
+package com.rc;
+
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Counts and timings of a conversion: rows and cells by type for each
+ * sheet, the time taken by each phase, and the bytes read and written.
+ *
+ * Cheap enough to be always on. A sheet's handler counts into its own
+ * {@link SheetCounts}, plain fields on the one thread, and these are
+ * added here once the sheet is done. Phases are timed with a nanoTime
+ * either side, not per cell: formatting happens as cells are parsed and
+ * is part of the sheet time, writing is timed at the output channel.
+ *
+ * Sheets converted in parallel each add their time, so phases can add up
+ * to more than the run's millis. A run's metrics can add to a parent's
+ * too, the server's totals.
+ */
+final class ConversionMetrics {
+
+    enum Phase {
+        OPEN,
+        STRINGS,
+        STYLES,
+        INFER,
+        SHEETS,
+        WRITE
+    }
+
+    private static final XlsxSheetHandler.xssfDataType[] CELL_TYPES = XlsxSheetHandler.xssfDataType.values();
+
+    /**
+     * The counts of one sheet, or a chunk of one, filled in by one thread.
+     */
+    static final class SheetCounts {
+        final String name;
+        long rows;
+        final long[] cells = new long[CELL_TYPES.length];
+        long bytes;
+        long nanos;
+
+        SheetCounts(String name) {
+            this.name = name;
+        }
+
+        void cell(XlsxSheetHandler.xssfDataType type) {
+            cells[type.ordinal()]++;
+        }
+
+        private void add(SheetCounts other) {
+            rows += other.rows;
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] += other.cells[i];
+            }
+            bytes += other.bytes;
+            nanos += other.nanos;
+        }
+    }
+
+    private final ConversionMetrics parent;
+    // Whether sheets are listed one by one, the server's totals only sum them
+    private final boolean bySheet;
+
+    private final long started = System.nanoTime();
+    private final LongAdder workbooks = new LongAdder();
+    private final LongAdder reusedSheets = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder written = new LongAdder();
+    private final LongAdder inflated = new LongAdder();
+    private final AtomicLong peakStrings = new AtomicLong();
+    private final SheetCounts total = new SheetCounts(null);
+    private final Map<String, SheetCounts> sheets = new LinkedHashMap<>();
+
+    ConversionMetrics() {
+        this(null, true);
+    }
+
+    ConversionMetrics(ConversionMetrics parent, boolean bySheet) {
+        this.parent = parent;
+        this.bySheet = bySheet;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    void workbook() {
+        workbooks.increment();
+        if (parent != null) {
+            parent.workbook();
+        }
+    }
+
+    /**
+     * Counts a sheet whose output was found in the cache, see SheetCache.
+     */
+    void reused() {
+        reusedSheets.increment();
+        if (parent != null) {
+            parent.reused();
+        }
+    }
+
+    /**
+     * Adds the time since startNanos, from System.nanoTime, to a phase.
+     */
+    void phase(Phase phase, long startNanos) {
+        addNanos(phase, System.nanoTime() - startNanos);
+    }
+
+    private void addNanos(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+        if (parent != null) {
+            parent.addNanos(phase, nanos);
+        }
+    }
+
+    /**
+     * Adds uncompressed bytes of the package that were read, those of a
+     * part loaded by POI for instance.
+     */
+    void inflated(long bytes) {
+        inflated.add(bytes);
+        if (parent != null) {
+            parent.inflated(bytes);
+        }
+    }
+
+    /**
+     * Notes the memory taken by a loaded shared strings table, keeping the largest.
+     */
+    void strings(SharedStrings strings) {
+        final long bytes = heapBytes(strings);
+        peakStrings.accumulateAndGet(bytes, Math::max);
+        if (parent != null) {
+            parent.peakStrings.accumulateAndGet(bytes, Math::max);
+        }
+    }
+
+    /**
+     * Counts for a sheet, given back to {@link #add} when it's done.
+     */
+    SheetCounts sheet(String name) {
+        return new SheetCounts(name);
+    }
+
+    void add(SheetCounts counts) {
+        addNanos(Phase.SHEETS, counts.nanos);
+        inflated(counts.bytes);
+        addCounts(counts);
+    }
+
+    private void addCounts(SheetCounts counts) {
+        synchronized (total) {
+            total.add(counts);
+            if (bySheet) {
+                sheets.computeIfAbsent(counts.name, SheetCounts::new).add(counts);
+            }
+        }
+        if (parent != null) {
+            parent.addCounts(counts);
+        }
+    }
+
+    /**
+     * A sheet part that counts the bytes read from it into counts.
+     */
+    static InputStream counting(InputStream part, SheetCounts counts) {
+        return new Counting(part, n -> counts.bytes += n);
+    }
+
+    /**
+     * A part read outside of any sheet, the styles or shared strings, that
+     * adds the bytes read from it here.
+     */
+    InputStream inflating(InputStream part) {
+        return new Counting(part, this::inflated);
+    }
+
+    private static final class Counting extends FilterInputStream {
+        private final LongConsumer read;
+
+        Counting(InputStream in, LongConsumer read) {
+            super(in);
+            this.read = read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                read.accept(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                read.accept(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            read.accept(skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * The output, timing writes and counting what's written.
+     */
+    WritableByteChannel timed(WritableByteChannel out) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                final long start = System.nanoTime();
+                final int n = out.write(src);
+                phase(Phase.WRITE, start);
+                addWritten(n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    private void addWritten(long bytes) {
+        written.add(bytes);
+        if (parent != null) {
+            parent.addWritten(bytes);
+        }
+    }
+
+    /**
+     * Roughly the heap a table takes: exact for CompactSharedStrings, for
+     * POI's a String and its bytes per entry.
+     */
+    static long heapBytes(SharedStrings strings) {
+        if (strings == null) {
+            return 0;
+        }
+        if (strings instanceof CompactSharedStrings compact) {
+            return compact.peakHeapBytes();
+        }
+        long bytes = 0;
+        for (int i = 0; i < strings.getUniqueCount(); i++) {
+            final String s = strings.getItemAt(i).getString();
+            bytes += 56 + (s == null ? 0 : 2L * s.length());
+        }
+        return bytes;
+    }
+
+    /**
+     * A JSON summary, the same shape whether taken at the end or part way.
+     */
+    String toJson() {
+        final var json = new StringBuilder(256);
+        json.append("{\"millis\":");
+        millis(System.nanoTime() - started, json);
+        json.append(",\"workbooks\":").append(workbooks.sum());
+        json.append(",\"reusedSheets\":").append(reusedSheets.sum());
+        json.append(",\"phasesMillis\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phase.name().toLowerCase()).append("\":");
+            millis(phaseNanos[phase.ordinal()].sum(), json);
+        }
+        json.append("},\"inflatedBytes\":").append(inflated.sum());
+        json.append(",\"writtenBytes\":").append(written.sum());
+        json.append(",\"peakStringsBytes\":").append(peakStrings.get());
+        final List<SheetCounts> bySheet;
+        synchronized (total) {
+            counts(total, json.append(','));
+            bySheet = new ArrayList<>(sheets.values());
+        }
+        if (this.bySheet) {
+            json.append(",\"sheets\":[");
+            for (int i = 0; i < bySheet.size(); i++) {
+                final var sheet = bySheet.get(i);
+                json.append(i > 0 ? ",{\"name\":" : "{\"name\":");
+                string(sheet.name, json);
+                json.append(",\"millis\":");
+                millis(sheet.nanos, json);
+                json.append(",\"bytes\":").append(sheet.bytes);
+                counts(sheet, json.append(','));
+                json.append('}');
+            }
+            json.append(']');
+        }
+        return json.append('}').toString();
+    }
+
+    private static void counts(SheetCounts counts, StringBuilder json) {
+        json.append("\"rows\":").append(counts.rows).append(",\"cells\":{");
+        for (int i = 0; i < CELL_TYPES.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(CELL_TYPES[i].name().toLowerCase()).append("\":").append(counts.cells[i]);
+        }
+        json.append('}');
+    }
+
+    private static void millis(long nanos, StringBuilder json) {
+        json.append(nanos / 1_000_000).append('.');
+        final long micros = nanos / 1000 % 1000;
+        json.append(micros < 100 ? micros < 10 ? "00" : "0" : "").append(micros);
+    }
+
+    private static void string(String s, StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,283 @@
+package com.rc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import joptsimple.OptionException;
+import org.apache.poi.UnsupportedFileFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.SAXException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+/**
+ * Converts workbooks over HTTP, so a caller that converts often pays for
+ * JVM start up, class loading and JIT warm up once rather than each time.
+ *
+ * <pre>
+ *   POST /convert?format=json&amp;types=decimal,string    the workbook is the request body
+ *   GET  /convert?file=/data/trades.xlsx&amp;sheets=Trades  a file the server can read
+ *   GET  /health
+ *   GET  /metrics                                      totals since start up, as JSON
+ * </pre>
+ * The query takes the options of the command line that only affect the
+ * conversion, see REQUEST_OPTIONS, by their full names without the
+ * dashes. Uploads are converted as they arrive, see StreamingWorkbook.
+ *
+ * A request can have the server read any file it can, so it listens on
+ * the loopback address unless --host says otherwise.
+ *
+ * Requests are converted on a fixed pool, with a short queue in front of
+ * it; past that they get a 503. Rows are written to the response as they
+ * are converted, and a slow reader slows the conversion down rather than
+ * having rows pile up in memory. The status is sent with the first rows,
+ * so a workbook that can't be read still gets a 400 or 500.
+ */
+final class ConversionServer {
+
+    static final Logger logger = LogManager.getLogger(ConversionServer.class.getName());
+
+    // Requests waiting for a worker, per worker
+    private static final int QUEUED_PER_WORKER = 4;
+
+    // Options a request may set, the rest would reach files or resources of the server; file only when not uploading
+    static final Set<String> REQUEST_OPTIONS = Set.of("file", "format", "types", "sample-rows", "sheets", "rows",
+            "columns", "zone", "cells", "strings", "xml", "threads", "sheet-threads", "stream-buffer-mb", "row-group-rows");
+
+    // Set on the threads that turn away requests the pool has no room for
+    private static final ThreadLocal<Boolean> OVERLOADED = ThreadLocal.withInitial(() -> false);
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final int threads;
+    // Every request's counts and timings, summed
+    private final ConversionMetrics totals = new ConversionMetrics(null, false);
+
+    ConversionServer(String host, int port, int threads) throws IOException {
+        this.threads = threads;
+        final var rejected = Executors.newCachedThreadPool(Main.daemonThreads("rejected-"));
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUED_PER_WORKER), Main.daemonThreads("request-"),
+                (request, pool) -> rejected.execute(() -> {
+                    OVERLOADED.set(true);
+                    try {
+                        request.run();
+                    } finally {
+                        OVERLOADED.set(false);
+                    }
+                }));
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.setExecutor(workers);
+        server.createContext("/convert", this::convert);
+        server.createContext("/health", exchange -> respond(exchange, 200, "ok\n"));
+        server.createContext("/metrics", this::metrics);
+    }
+
+    void start() {
+        server.start();
+        logger.info("Listening on {} with {} workers", server.getAddress(), workers.getCorePoolSize());
+    }
+
+    void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void convert(HttpExchange exchange) throws IOException {
+        if (OVERLOADED.get()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Busy, try again\n");
+            return;
+        }
+        final boolean upload = "POST".equals(exchange.getRequestMethod());
+        if (!upload && !"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "GET a file or POST a workbook\n");
+            return;
+        }
+        final Options options;
+        try {
+            // Not abbreviated, so a name that isn't one of REQUEST_OPTIONS can't stand for one that's left out
+            options = new Options(arguments(exchange.getRequestURI().getRawQuery(), upload), false);
+        } catch (OptionException | IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        }
+        if (!upload && options.file.equals("-")) {
+            respond(exchange, 400, "file is needed, or POST the workbook\n");
+            return;
+        }
+        if (!upload && !Files.isReadable(Paths.get(options.file))) {
+            respond(exchange, 400, "Can't read " + options.file + "\n");
+            return;
+        }
+        options.metrics = new ConversionMetrics(totals, true);
+        // A request gets no more threads than the server has workers
+        options.threads = Math.min(options.threads, threads);
+        options.sheetThreads = Math.min(options.sheetThreads, threads);
+        exchange.getResponseHeaders().set("Content-Type", switch (options.format) {
+            case CSV -> "text/csv; charset=utf-8";
+            case TSV -> "text/tab-separated-values; charset=utf-8";
+            case JSON -> "application/x-ndjson";
+            case PARQUET -> "application/vnd.apache.parquet";
+            case XLSX -> "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+        });
+        final var response = new ResponseChannel(exchange);
+        try {
+            Main.convert(options, exchange.getRequestBody(), response);
+        } catch (Throwable t) {
+            logger.warn("Converting {} failed", upload ? "an upload" : options.file, t);
+            if (!response.started) {
+                respond(exchange, isBadInput(t) ? 400 : 500, t + "\n");
+                return;
+            }
+            // Rows have gone out with a 200. Leaving the exchange open makes the server
+            // drop the connection, so the client sees the body end early, not a short result
+            throw new IOException("Conversion failed after the response started", t);
+        }
+        response.finish();
+        logger.debug("Converted {}: {}", upload ? "an upload" : options.file, options.metrics.toJson());
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        final String json = totals.toJson();
+        final var snapshot = "{\"activeRequests\":" + workers.getActiveCount()
+                + ",\"queuedRequests\":" + workers.getQueue().size() + "," + json.substring(1) + "\n";
+        final byte[] body = snapshot.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * The query as command line arguments, a=1&amp;b=2 as --a 1 --b 2, with
+     * only {@link #REQUEST_OPTIONS} allowed.
+     */
+    static String[] arguments(String query, boolean upload) {
+        final List<String> args = new ArrayList<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                final int equals = pair.indexOf('=');
+                final String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                if (!REQUEST_OPTIONS.contains(name) || upload && name.equals("file")) {
+                    throw new IllegalArgumentException(name + " can't be set per request");
+                }
+                args.add("--" + name);
+                if (equals >= 0) {
+                    args.add(URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (upload || !args.contains("--file")) {
+            args.add("--file");
+            args.add("-");
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Whether a failure is down to the workbook sent or asked for, one that
+     * isn't a ZIP, an XLSX or XLSB package, or is cut short, rather than the
+     * server. Other IOExceptions, a full temp disk say, are the server's.
+     * POI wraps some of these.
+     */
+    static boolean isBadInput(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ZipException || cause instanceof EOFException || cause instanceof SAXException
+                    || cause instanceof UnsupportedFileFormatException || cause instanceof OpenXML4JException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        final byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Writes to the response, sending a 200 and chunked encoding before the
+     * first bytes. Writes block while the client is behind.
+     */
+    private static final class ResponseChannel implements WritableByteChannel {
+        private final HttpExchange exchange;
+        private OutputStream body;
+        boolean started;
+
+        ResponseChannel(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            start();
+            final int length = src.remaining();
+            if (src.hasArray()) {
+                body.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                final byte[] bytes = new byte[length];
+                src.get(bytes);
+                body.write(bytes);
+            }
+            return length;
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+        }
+
+        /**
+         * Ends the response, which may have no rows at all, and the exchange.
+         */
+        void finish() throws IOException {
+            start();
+            body.close();
+            exchange.close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
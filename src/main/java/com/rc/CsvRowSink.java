@@ -0,0 +1,37 @@
+package com.rc;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Comma separated rows. Values containing a comma, quote or line break
+ * are quoted, with embedded quotes doubled (RFC 4180).
+ */
+class CsvRowSink extends DelimitedRowSink {
+
+    CsvRowSink(WritableByteChannel channel) {
+        super(channel, ',');
+    }
+
+    @Override
+    protected void writeText(CharSequence value) {
+        final int length = value.length();
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value, 0, length);
+            return;
+        }
+        out.putAscii('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) == '"') {
+                out.append(value, start, i + 1).putAscii('"');
+                start = i + 1;
+            }
+        }
+        out.append(value, start, length).putAscii('"');
+    }
+}
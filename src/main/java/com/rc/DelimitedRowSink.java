@@ -0,0 +1,95 @@
+package com.rc;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Writes one line per row, cells separated by a single delimiter.
+ * Empty cells are written as nothing between two delimiters.
+ * Subclasses decide how a value that clashes with the layout is escaped.
+ */
+abstract class DelimitedRowSink implements RowSink {
+
+    protected final OutputBuffer out;
+    private final NumberText numberText = new NumberText();
+    // Scratch space for dates written as text
+    private final byte[] iso = new byte[32];
+    private final char delimiter;
+    // Shared strings as written, so repeats are copied
+    private final EncodedStrings encoded = new EncodedStrings();
+    private final EncodedStrings.Writer textWriter = this::writeText;
+    private int nextColumn;
+
+    DelimitedRowSink(WritableByteChannel channel, char delimiter) {
+        this.out = new OutputBuffer(channel);
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        nextColumn = 0;
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        startCell(column);
+        writeText(value);
+    }
+
+    @Override
+    public void sharedString(int column, int index, IntFunction<CharSequence> strings) {
+        startCell(column);
+        encoded.write(out, index, strings, textWriter);
+    }
+
+    @Override
+    public void number(int column, double value) {
+        startCell(column);
+        numberText.append(out, value);
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        startCell(column);
+        out.put(iso, 0, SerialDates.isoInstant(epochMillis, iso));
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        startCell(column);
+        out.putAscii(value ? "TRUE" : "FALSE");
+    }
+
+    /**
+     * Pads out any skipped columns and the separator before this one.
+     */
+    protected void startCell(int column) {
+        if (nextColumn > 0) {
+            out.putAscii(delimiter);
+        }
+        for (int i = nextColumn; i < column; i++) {
+            out.putAscii(delimiter);
+        }
+        nextColumn = column + 1;
+    }
+
+    protected abstract void writeText(CharSequence value);
+
+    @Override
+    public void endRow(int rowNum) {
+        out.putAscii('\n');
+    }
+
+    @Override
+    public void endSheet() {
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+}
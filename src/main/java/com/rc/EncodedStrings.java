@@ -0,0 +1,94 @@
+package com.rc;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * The bytes a text sink wrote for shared strings, kept by index.
+ *
+ * A column of categories repeats a few hundred entries over millions of
+ * rows. The first time an entry is written its text is looked up, escaped
+ * and UTF-8 encoded into the output buffer as usual, and the bytes that
+ * came out are kept; every later cell with that entry is a copy of them.
+ *
+ * The cache is direct mapped: an index has one slot, and an entry taking
+ * a slot evicts whatever was there. The bytes go into one arena, emptied
+ * along with every slot once full, so a table of millions of entries
+ * costs no more memory than a small one. Entries too long to be worth it
+ * are written as they come.
+ *
+ * Like the sink that owns it, used by a single thread.
+ */
+final class EncodedStrings {
+
+    static final int DEFAULT_SLOTS = 1 << 14;
+    static final int DEFAULT_ARENA_BYTES = 1 << 20;
+    // Longest text, in chars, kept
+    static final int MAX_CHARS = 256;
+    // Most bytes escaping and encoding a char can take: a control char as \\u00XX in JSON
+    private static final int MAX_BYTES_PER_CHAR = 6;
+
+    /**
+     * Writes text to the sink's output buffer, escaped as the sink does.
+     */
+    interface Writer {
+        void write(CharSequence text);
+    }
+
+    // index + 1 of the entry in each slot, 0 for none
+    private final int[] tags;
+    private final int[] starts;
+    private final int[] lengths;
+    private final byte[] arena;
+    private int fill;
+    private long hits;
+
+    EncodedStrings() {
+        this(DEFAULT_SLOTS, DEFAULT_ARENA_BYTES);
+    }
+
+    /**
+     * @param slots a power of two
+     */
+    EncodedStrings(int slots, int arenaBytes) {
+        this.tags = new int[slots];
+        this.starts = new int[slots];
+        this.lengths = new int[slots];
+        this.arena = new byte[arenaBytes];
+    }
+
+    /**
+     * Writes entry index to out: a copy of its bytes when held, otherwise
+     * its text through writer, keeping what that wrote.
+     */
+    void write(OutputBuffer out, int index, IntFunction<CharSequence> strings, Writer writer) {
+        final int slot = index & (tags.length - 1);
+        if (tags[slot] == index + 1) {
+            hits++;
+            out.put(arena, starts[slot], lengths[slot]);
+            return;
+        }
+        final CharSequence text = strings.apply(index);
+        final int most = text.length() * MAX_BYTES_PER_CHAR + 2;
+        if (text.length() > MAX_CHARS || most > out.capacity()) {
+            writer.write(text);
+            return;
+        }
+        final int start = out.reserve(most);
+        writer.write(text);
+        final int length = out.position() - start;
+        if (fill + length > arena.length) {
+            fill = 0;
+            Arrays.fill(tags, 0);
+        }
+        out.copy(start, arena, fill);
+        tags[slot] = index + 1;
+        starts[slot] = fill;
+        lengths[slot] = length;
+        fill += length;
+    }
+
+    long hits() {
+        return hits;
+    }
+}
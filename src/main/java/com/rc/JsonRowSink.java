@@ -0,0 +1,127 @@
+package com.rc;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Newline delimited JSON, one object per row:
+ * <pre>
+ *   {"sheet":"Sheet1","row":3,"cells":["a",null,1.5,true,"2020-01-01T00:00:00Z"]}
+ * </pre>
+ * Skipped columns are written as null so positions line up with the sheet.
+ * Numbers and booleans are native JSON values, dates are ISO-8601 strings.
+ */
+class JsonRowSink implements RowSink {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    protected final OutputBuffer out;
+    private final NumberText numberText = new NumberText();
+    // Scratch space for dates written as text
+    private final byte[] iso = new byte[32];
+    // Shared strings as written, quoted and escaped, so repeats are copied
+    private final EncodedStrings encoded = new EncodedStrings();
+    private final EncodedStrings.Writer stringWriter = this::writeString;
+    private String sheetName = "";
+    private int nextColumn;
+
+    JsonRowSink(WritableByteChannel channel) {
+        this.out = new OutputBuffer(channel);
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+        this.sheetName = sheetName == null ? "" : sheetName;
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        out.putAscii("{\"sheet\":");
+        writeString(sheetName);
+        out.putAscii(",\"row\":");
+        numberText.appendLong(out, rowNum, 1);
+        out.putAscii(",\"cells\":[");
+        nextColumn = 0;
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        startCell(column);
+        writeString(value);
+    }
+
+    @Override
+    public void sharedString(int column, int index, IntFunction<CharSequence> strings) {
+        startCell(column);
+        encoded.write(out, index, strings, stringWriter);
+    }
+
+    @Override
+    public void number(int column, double value) {
+        startCell(column);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.putAscii("null");
+        } else {
+            numberText.append(out, value);
+        }
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        startCell(column);
+        out.putAscii('"').put(iso, 0, SerialDates.isoInstant(epochMillis, iso)).putAscii('"');
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        startCell(column);
+        out.putAscii(value ? "true" : "false");
+    }
+
+    protected void startCell(int column) {
+        if (nextColumn > 0) {
+            out.putAscii(',');
+        }
+        for (int i = nextColumn; i < column; i++) {
+            out.putAscii("null,");
+        }
+        nextColumn = column + 1;
+    }
+
+    protected void writeString(CharSequence value) {
+        out.putAscii('"');
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.append(value, start, i).putAscii('\\');
+            switch (c) {
+                case '"', '\\' -> out.putAscii(c);
+                case '\n' -> out.putAscii('n');
+                case '\r' -> out.putAscii('r');
+                case '\t' -> out.putAscii('t');
+                default -> out.putAscii('u').putAscii('0').putAscii('0')
+                        .putAscii(HEX[c >> 4]).putAscii(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.append(value, start, length).putAscii('"');
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        out.putAscii("]}\n");
+    }
+
+    @Override
+    public void endSheet() {
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+}
@@ -5,19 +5,35 @@ import joptsimple.OptionSet;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.poi.util.XMLHelper;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
 import org.apache.poi.xssf.binary.XSSFBSharedStringsTable;
-import org.apache.poi.xssf.binary.XSSFBSheetHandler;
-import org.apache.poi.xssf.binary.XSSFBStylesTable;
+import org.apache.poi.xssf.binary.XSSFBRelation;
 import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
 import org.apache.poi.xssf.eventusermodel.XSSFBReader;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
 
-import org.xml.sax.InputSource;
 
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.time.ZoneId;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Main {
@@ -29,84 +45,681 @@ public class Main {
         logger.log(Level.INFO, "Starting");
         Options options = new Options(args);
 
-        try {
-			openExcelBinary();
-//            openExcel();
+        if (options.serve) {
+            try {
+                final var server = new ConversionServer(options.host, options.port, options.serverThreads);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+                server.start();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                System.exit(2);
+            }
+            return;
+        }
+        if (options.batch != null) {
+            int failures;
+            try {
+                failures = new BatchConverter(options).run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                System.exit(2);
+                return;
+            }
+            if (options.metricsFile != null) {
+                writeMetrics(options);
+            }
+            if (failures > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+        try (WritableByteChannel out = openOutput(options)) {
+            convert(options, System.in, out);
         } catch (Throwable t) {
             t.printStackTrace();
             System.exit(2);
         }
+        if (options.metricsFile != null) {
+            writeMetrics(options);
+        }
+    }
+
+    /**
+     * Whether a workbook is XLSB, by its extension in any case, as BatchConverter finds them.
+     */
+    static boolean isBinary(String file) {
+        return file.toLowerCase(Locale.ROOT).endsWith(".xlsb");
+    }
+
+    /**
+     * Converts options.file, or the stream in for -, in options.format.
+     */
+    static void convert(Options options, InputStream in, WritableByteChannel out) throws Throwable {
+        final var output = options.metrics.timed(out);
+        options.metrics.workbook();
+        if (options.file.equals("-")) {
+            openExcelStream(options, in, output, options.sinks());
+        } else if (isBinary(options.file)) {
+            openExcelBinary(options, output, options.sinks());
+        } else {
+            openExcel(options, output, options.sinks());
+        }
     }
 
-    public static void openExcelBinary() throws Throwable {
-        OPCPackage pkg = OPCPackage.open("excel.xlsb");
-        XSSFBReader r = new XSSFBReader(pkg);
-        XSSFBSharedStringsTable sst = new XSSFBSharedStringsTable(pkg);
-        XSSFBStylesTable xssfbStylesTable = r.getXSSFBStylesTable();
-        XSSFBReader.SheetIterator it = (XSSFBReader.SheetIterator) r.getSheetsData();
-
-        while (it.hasNext()) {
-            InputStream is = it.next();
-            String name = it.getSheetName();
-            XlsbSheetHandler xlsbSheetHandler = new XlsbSheetHandler();
-            xlsbSheetHandler.startSheet(name);
-            XSSFBSheetHandler sheetHandler = new XSSFBSheetHandler(
-                    is,
-                    xssfbStylesTable,
-                    it.getXSSFBSheetComments(),
-                    sst,
-                    xlsbSheetHandler,
-                    new ExcelDataFormatter(),
-                    false);
-            sheetHandler.parse();
-            xlsbSheetHandler.endSheet();
-        }
-    }
-
-
-    public static void openExcel() throws Throwable {
-        final var pkg = OPCPackage.open("excel.xlsx");
-        final var strings = new ReadOnlySharedStringsTable(pkg);
-        final var xssfReader = new XSSFReader(pkg);
-        final var styles = xssfReader.getStylesTable();
-        XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
-        final var outputTypes = new ColumnType[]{ ColumnType.DECIMAL,ColumnType.STRING,ColumnType.DATETIME,ColumnType.DECIMAL};
-
-        while (iter.hasNext()) {
-            try (InputStream stream = iter.next()) {
-                String sheetName = iter.getSheetName();
-                InputSource sheetSource = new InputSource(stream);
-                try {
-                    final var sheetParser = XMLHelper.newXMLReader();
-                    final var handler = new XlsxSheetHandler(styles, strings,outputTypes);
-                    sheetParser.setContentHandler(handler);
-                    sheetParser.parse(sheetSource);
-                } catch (ParserConfigurationException e) {
-                    throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+    /**
+     * Writes the run's metrics as JSON to options.metricsFile, - for stderr.
+     */
+    static void writeMetrics(Options options) {
+        final String json = options.metrics.toJson() + System.lineSeparator();
+        try {
+            if (options.metricsFile.equals("-")) {
+                System.err.print(json);
+            } else {
+                Files.writeString(Paths.get(options.metricsFile), json);
+            }
+        } catch (IOException e) {
+            logger.warn("Couldn't write metrics to {}", options.metricsFile, e);
+        }
+    }
+
+    /**
+     * Uncompressed size of the package's parts of a content type, 0 when it isn't known.
+     */
+    static long partSize(OPCPackage pkg, String contentType) throws InvalidFormatException {
+        long size = 0;
+        for (PackagePart part : pkg.getPartsByContentType(contentType)) {
+            size += Math.max(part.getSize(), 0);
+        }
+        return size;
+    }
+
+    static WritableByteChannel openOutput(Options options) throws Exception {
+        if (options.output == null) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return FileChannel.open(Paths.get(options.output),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * With --strings-dictionary, writes the shared strings table there for
+     * the indexes written in place of the strings: entry n as the nth row
+     * of a single STRING column, escaped as options.format writes text.
+     *
+     * @param strings the workbook's table, null when it has none
+     */
+    static void writeStringsDictionary(Options options, SharedStrings strings) throws IOException {
+        if (options.stringsDictionary == null) {
+            return;
+        }
+        try (var channel = FileChannel.open(Paths.get(options.stringsDictionary),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final var sink = options.formatSinks().open(channel, new ColumnType[]{ColumnType.STRING});
+            sink.startSheet("sharedStrings");
+            final int count = strings == null ? 0 : strings.getUniqueCount();
+            for (int i = 0; i < count; i++) {
+                sink.startRow(i);
+                sink.cell(0, strings instanceof CompactSharedStrings compact
+                        ? compact.getString(i)
+                        : strings.getItemAt(i).getString());
+                sink.endRow(i);
+            }
+            sink.endSheet();
+            sink.flush();
+        }
+    }
+
+    /**
+     * Converts every wanted sheet of an XLSX or XLSB workbook read from a
+     * stream, as its entries arrive. For a channel, use Channels.newInputStream.
+     *
+     * @param output where the sheets are written, in the order they are read
+     * @param sinks  creates the sink for each sheet, e.g. options.format
+     */
+    public static void openExcelStream(Options options, InputStream input, WritableByteChannel output, RowSink.Factory sinks) throws Throwable {
+        new StreamingWorkbook(options, output, sinks).convert(input);
+    }
+
+    /**
+     * Converts every wanted sheet of an XLSB workbook.
+     *
+     * @param output where the sheets are written, in workbook order
+     * @param sinks  creates the sink for each sheet, e.g. options.format
+     */
+    public static void openExcelBinary(Options options, WritableByteChannel output, RowSink.Factory sinks) throws Throwable {
+        final var metrics = options.metrics;
+        long start = System.nanoTime();
+        final OPCPackage pkg = OPCPackage.open(options.file, PackageAccess.READ);
+        try {
+            XSSFBReader r = new XSSFBReader(pkg);
+            final boolean date1904;
+            try (InputStream workbook = r.getWorkbookData()) {
+                date1904 = SerialDates.isDate1904Binary(workbook);
+            }
+            metrics.phase(ConversionMetrics.Phase.OPEN, start);
+            // The shared strings and styles are fully loaded here and only read
+            // afterwards, so every sheet task can share them.
+            start = System.nanoTime();
+            final SharedStrings sst = options.compactStrings
+                    ? CompactSharedStrings.loadBinary(pkg, options.stringsSpillBytes)
+                    : new XSSFBSharedStringsTable(pkg);
+            metrics.phase(ConversionMetrics.Phase.STRINGS, start);
+            metrics.strings(sst);
+            metrics.inflated(partSize(pkg, CompactSharedStrings.SHARED_STRINGS_BINARY));
+            writeStringsDictionary(options, sst);
+            start = System.nanoTime();
+            final var stylesParts = pkg.getPartsByContentType(XSSFBRelation.STYLES_BINARY.getContentType());
+            final StyleCache styles;
+            if (stylesParts.isEmpty()) {
+                styles = StyleCache.empty().withDates(new SerialDates(options.zone, date1904));
+            } else {
+                try (InputStream stylesPart = stylesParts.get(0).getInputStream()) {
+                    styles = StyleCache.ofBinary(stylesPart).withDates(new SerialDates(options.zone, date1904));
+                }
+                metrics.inflated(partSize(pkg, XSSFBRelation.STYLES_BINARY.getContentType()));
+            }
+            metrics.phase(ConversionMetrics.Phase.STYLES, start);
+            final var cache = options.cacheDir == null ? null
+                    : SheetCache.open(options, pkg, CompactSharedStrings.SHARED_STRINGS_BINARY,
+                            XSSFBRelation.STYLES_BINARY.getContentType(), date1904);
+            if (options.cells == CellOutput.FORMULAS) {
+                // XLSB keeps formulas only in their parsed form
+                logger.warn("Formulas aren't read from XLSB workbooks, their values are output");
+            }
+            XSSFBReader.SheetIterator it = (XSSFBReader.SheetIterator) r.getSheetsData();
+            SheetRunner runner = SheetRunner.of(options, output);
+
+            for (int sheetIndex = 0; it.hasNext(); sheetIndex++) {
+                InputStream is = it.next();
+                String name = it.getSheetName();
+                if (!options.projection.includesSheet(name, sheetIndex)) {
+                    is.close();
+                    continue;
+                }
+                final var projection = options.projection.forSheet(name, sheetIndex);
+                final String key = cache == null ? null : cache.key(it.getSheetPart(), name, sheetIndex, projection);
+                final String schemaKey = cache == null ? null : cache.schemaKey(it.getSheetPart(), name);
+                runner.submit(out -> {
+                    try (InputStream sheet = ReadAheadInputStream.of(options, is)) {
+                        convertCached(cache, key, out, metrics, to -> {
+                            final var part = markable(options, sheet);
+                            final var types = sheetTypes(options, part, name, schemaKey, styles, sst, true);
+                            convertXlsbSheet(part, name, styles, sst, types, projection,
+                                    sinks.open(to, projection.project(types)), metrics);
+                        });
+                    }
+                });
+            }
+            runner.finish();
+        } finally {
+            // read only, so nothing is saved, the ZIP is just closed
+            pkg.revert();
+        }
+    }
+
+
+    /**
+     * Converts every wanted sheet of an XLSX workbook.
+     *
+     * @param output where the sheets are written, in workbook order
+     * @param sinks  creates the sink for each sheet, e.g. options.format
+     */
+    public static void openExcel(Options options, WritableByteChannel output, RowSink.Factory sinks) throws Throwable {
+        final var metrics = options.metrics;
+        long start = System.nanoTime();
+        final var pkg = OPCPackage.open(options.file, PackageAccess.READ);
+        try {
+            final var xssfReader = new XSSFReader(pkg);
+            final boolean date1904;
+            try (InputStream workbook = xssfReader.getWorkbookData()) {
+                date1904 = SerialDates.isDate1904(workbook);
+            }
+            metrics.phase(ConversionMetrics.Phase.OPEN, start);
+            // Read only after loading, so shared by all sheet tasks
+            start = System.nanoTime();
+            final SharedStrings strings = options.compactStrings
+                    ? CompactSharedStrings.load(pkg, options.stringsSpillBytes)
+                    : new ReadOnlySharedStringsTable(pkg);
+            metrics.phase(ConversionMetrics.Phase.STRINGS, start);
+            metrics.strings(strings);
+            metrics.inflated(partSize(pkg, XSSFRelation.SHARED_STRINGS.getContentType()));
+            writeStringsDictionary(options, strings);
+            start = System.nanoTime();
+            final var styles = StyleCache.of(xssfReader.getStylesTable())
+                    .withDates(new SerialDates(options.zone, date1904));
+            metrics.phase(ConversionMetrics.Phase.STYLES, start);
+            metrics.inflated(partSize(pkg, XSSFRelation.STYLES.getContentType()));
+            final var cache = options.cacheDir == null ? null
+                    : SheetCache.open(options, pkg, XSSFRelation.SHARED_STRINGS.getContentType(),
+                            XSSFRelation.STYLES.getContentType(), date1904);
+            XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+            final var runner = SheetRunner.of(options, output);
+            // Cuts each sheet into chunks of rows, converted on this pool
+            // Chunks can't see shared formulas defined in an earlier one
+            final ExecutorService chunkPool = options.sheetThreads > 1 && options.cells == CellOutput.VALUES
+                    ? Executors.newFixedThreadPool(options.sheetThreads, daemonThreads("chunk-"))
+                    : null;
+            final var chunked = chunkPool == null ? null
+                    : new ChunkedSheetParser(chunkPool, options.sheetThreads, ChunkedSheetParser.DEFAULT_CHUNK_BYTES,
+                            options.scanXml);
+
+            for (int sheetIndex = 0; iter.hasNext(); sheetIndex++) {
+                final InputStream stream = iter.next();
+                final String sheetName = iter.getSheetName();
+                if (!options.projection.includesSheet(sheetName, sheetIndex)) {
+                    stream.close();
+                    continue;
                 }
+                final var projection = options.projection.forSheet(sheetName, sheetIndex);
+                final String key = cache == null ? null : cache.key(iter.getSheetPart(), sheetName, sheetIndex, projection);
+                final String schemaKey = cache == null ? null : cache.schemaKey(iter.getSheetPart(), sheetName);
+                runner.submit(out -> {
+                    try (InputStream sheet = ReadAheadInputStream.of(options, stream)) {
+                        convertCached(cache, key, out, metrics, to -> {
+                            final var part = markable(options, sheet);
+                            final var types = sheetTypes(options, part, sheetName, schemaKey, styles, strings, false);
+                            if (chunked != null) {
+                                chunked.convert(part, sheetName, styles, strings, types, projection, sinks, to, metrics);
+                            } else {
+                                convertXlsxSheet(part, sheetName, styles, strings, types, projection,
+                                        sinks.open(to, projection.project(types)), options.scanXml, options.cells, metrics);
+                            }
+                        });
+                    }
+                });
+            }
+            try {
+                runner.finish();
+            } finally {
+                if (chunkPool != null) {
+                    chunkPool.shutdownNow();
+                }
+            }
+        } finally {
+            // read only, so nothing is saved, the ZIP is just closed
+            pkg.revert();
+        }
+    }
+
+    /**
+     * Runs a sheet's task, or with a cache and a key for the sheet, reuses
+     * its output from an earlier run when there is one.
+     */
+    private static void convertCached(SheetCache cache, String key, WritableByteChannel out, ConversionMetrics metrics,
+                                      SheetRunner.SheetTask task) throws Exception {
+        if (cache == null || key == null) {
+            task.convert(out);
+        } else if (cache.convert(key, out, task)) {
+            metrics.reused();
+        }
+    }
+
+    /**
+     * The column types of a sheet: options.columnTypes, or when those are
+     * to be inferred, from a sample of its first rows. The part is then
+     * read from the start again, so it must come from {@link #markable}.
+     *
+     * @param schemaKey the sheet's {@link SheetCache#schemaKey}, null when its types aren't kept on disk
+     */
+    static ColumnType[] sheetTypes(Options options, InputStream part, String sheetName, String schemaKey,
+                                   StyleCache styles, SharedStrings strings, boolean binary) throws Exception {
+        if (options.columnTypes != null) {
+            return options.columnTypes;
+        }
+        final long start = System.nanoTime();
+        try {
+            return options.inference.columnTypes(part, sheetName, schemaKey, styles, strings, binary, options.scanXml);
+        } finally {
+            options.metrics.phase(ConversionMetrics.Phase.INFER, start);
+        }
+    }
+
+    /**
+     * A sheet part that can be sampled for its types and read again, when they're to be inferred.
+     */
+    static InputStream markable(Options options, InputStream part) {
+        return options.columnTypes == null ? new BufferedInputStream(part, 1 << 16) : part;
+    }
+
+    static ThreadFactory daemonThreads(String prefix) {
+        final var counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Converts one XLSX sheet part into a sink, from startSheet to flush.
+     *
+     * @param scanXml read the part with {@link SheetXmlScanner} rather than SAX
+     * @param cells   whether formula cells are output as their value or their formula
+     * @param metrics where the sheet's counts and time are added
+     */
+    static void convertXlsxSheet(InputStream sheetPart, String sheetName, StyleCache styles, SharedStrings strings,
+                                 ColumnType[] outputTypes, Projection.Sheet projection, RowSink sink,
+                                 boolean scanXml, CellOutput cells, ConversionMetrics metrics) throws Exception {
+        final var counts = metrics.sheet(sheetName);
+        final long start = System.nanoTime();
+        sink.startSheet(sheetName);
+        try {
+            final var handler = new XlsxSheetHandler(styles, strings, outputTypes, sink, projection);
+            handler.outputFormulas(cells == CellOutput.FORMULAS);
+            handler.countInto(counts);
+            if (scanXml) {
+                SheetXmlScanner.parse(ConversionMetrics.counting(sheetPart, counts), handler);
+            } else {
+                SheetXmlScanner.parseWithSax(ConversionMetrics.counting(sheetPart, counts), handler);
             }
+        } catch (Projection.EndOfRange e) {
+            // the rest of the sheet isn't wanted
         }
+        sink.endSheet();
+        sink.flush();
+        counts.nanos = System.nanoTime() - start;
+        metrics.add(counts);
+    }
+
+    /**
+     * Converts one XLSB sheet part into a sink, from startSheet to flush.
+     */
+    static void convertXlsbSheet(InputStream sheetPart, String sheetName, StyleCache styles, SharedStrings strings,
+                                 ColumnType[] outputTypes, Projection.Sheet projection, RowSink sink,
+                                 ConversionMetrics metrics) throws Exception {
+        final var counts = metrics.sheet(sheetName);
+        final long start = System.nanoTime();
+        sink.startSheet(sheetName);
+        try {
+            final var handler = new XlsbSheetHandler(styles, strings, outputTypes, sink, projection);
+            handler.countInto(counts);
+            handler.parse(ConversionMetrics.counting(sheetPart, counts));
+        } catch (Projection.EndOfRange e) {
+            // the rest of the sheet isn't wanted
+        }
+        sink.endSheet();
+        sink.flush();
+        counts.nanos = System.nanoTime() - start;
+        metrics.add(counts);
     }
 }
 
 
-class Options {
+class Options implements Cloneable {
 
     int port = 8111;
+    String host = "127.0.0.1";
+    boolean serve = false;
+    int serverThreads = Runtime.getRuntime().availableProcessors();
     String platform = null;
+    String file = "excel.xlsb";
+    String output = null;
+    OutputFormat format = OutputFormat.CSV;
+    int threads = 1;
+    int sheetThreads = 1;
+    boolean compactStrings = true;
+    boolean scanXml = true;
+    CellOutput cells = CellOutput.VALUES;
+    ZoneId zone = SerialDates.DEFAULT_ZONE;
+    long stringsSpillBytes = CompactSharedStrings.DEFAULT_SPILL_THRESHOLD;
+    long streamBufferBytes = 64L << 20;
+    // Sheet part inflated ahead of its parser on another thread, 0 to inflate it as it's parsed
+    int readAheadBytes = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 20 : 0;
+    Projection projection = Projection.ALL;
+    String metricsFile = null;
+    String cacheDir = null;
+    // Where this run's counts and timings go
+    ConversionMetrics metrics = new ConversionMetrics();
+    // null when each sheet's are inferred, see TypeInference
+    ColumnType[] columnTypes = null;
+    int sampleRows = TypeInference.DEFAULT_ROWS;
+    TypeInference inference;
+    // Workbooks to convert with --batch, see BatchConverter
+    String batch = null;
+    String outputDir = ".";
+    int batchThreads = Runtime.getRuntime().availableProcessors();
+    long batchMemoryBytes = Runtime.getRuntime().maxMemory() / 4 * 3;
+    // Rows in each Parquet row group, 0 to size them by the number of columns
+    int rowGroupRows = 0;
+    // Where shared strings go, when cells are written as their index in the table instead
+    String stringsDictionary = null;
+    // Pool shared by the sheets of every workbook of a batch, null for their own
+    ExecutorService sheetPool = null;
 
     public Options(String[] args) {
-        OptionParser parser = new OptionParser();
+        this(args, true);
+    }
+
+    /**
+     * @param abbreviations whether an option may be given by the start of its name, as on the command line
+     */
+    Options(String[] args, boolean abbreviations) {
+        OptionParser parser = new OptionParser(abbreviations);
         parser.accepts("port", "Port number for website - defaults to 8111")
                 .withRequiredArg().ofType(Integer.class);
 
+        parser.accepts("host", "Address the server listens on, 0.0.0.0 for all - defaults to 127.0.0.1")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("serve", "Convert workbooks sent over HTTP on --host and --port, see ConversionServer");
+
+        parser.accepts("server-threads", "Number of requests converted at once by the server - defaults to the number of cores")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("types", "Column types, decimal, string, datetime or boolean, e.g. decimal,string,datetime, or auto to infer each sheet's - defaults to auto")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("sample-rows", "Rows of each sheet read to infer its column types - defaults to 1000")
+                .withRequiredArg().ofType(Integer.class);
+
         parser.accepts("platform", "Preferred BLAs platform, cuda or openblas")
                 .withRequiredArg().ofType(String.class);
 
+        parser.accepts("file", "Workbook to convert, .xlsx or .xlsb, - to read it from stdin - defaults to excel.xlsb")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("threads", "Number of sheets converted in parallel - defaults to 1")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("sheet-threads", "Number of threads each XLSX sheet is parsed on, in chunks of rows - defaults to 1")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("batch", "Workbooks to convert in one run, a directory, a glob such as 'data/**.xlsx' or @ a file listing them")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("output-dir", "Directory --batch writes each workbook's output to - defaults to the current one")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("batch-threads", "Number of threads --batch converts workbooks and their sheets on - defaults to the number of cores")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("batch-memory-mb", "Memory --batch lets the workbooks it's converting take at once - defaults to 3/4 of the heap")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("output", "File to write to - defaults to stdout")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("format", "Output format, csv, tsv, json, parquet or xlsx - defaults to csv")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("row-group-rows", "Rows in each row group of Parquet output - defaults to about 4 million cells' worth")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("cells", "What formula cells are output as, values (as last calculated by Excel) or formulas - defaults to values")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("zone", "Time zone of the workbook's dates, e.g. Europe/London or +01:00 - defaults to America/Los_Angeles")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("strings", "Shared strings table, compact or poi (not for XLSB off stdin) - defaults to compact")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("xml", "How XLSX sheets are read, scan or sax - defaults to scan")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("strings-dictionary", "Write shared strings as their index, and the table of them to this file, one per row in the output format; with --batch, next to each output")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("strings-spill-mb", "Size above which compact shared strings move to a memory mapped file - defaults to 256")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("stream-buffer-mb", "Memory for sheets held back while reading stdin, past it they go to a temp file - defaults to 64")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("read-ahead-kb", "How far each sheet is inflated ahead of its parser, on a thread of its own, 0 for not at all - defaults to 1024, 0 on a single core")
+                .withRequiredArg().ofType(Integer.class);
+
+        parser.accepts("metrics", "File to write a JSON summary of counts and timings to at the end, - for stderr")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("cache", "Directory to keep each sheet's output in, sheets unchanged since are copied from it rather than converted")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("sheets", "Sheets to convert, names or zero based positions - defaults to all")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("columns", "Columns to convert, e.g. A,C:F - defaults to all")
+                .withRequiredArg().ofType(String.class);
+
+        parser.accepts("rows", "Rows to convert, e.g. 2:100 or Sheet1!5:20 - defaults to all")
+                .withRequiredArg().ofType(String.class);
+
         OptionSet os = parser.parse(args);
         if (os.has("port")) {
             port = (Integer) os.valueOf("port");
         }
+        if (os.has("host")) {
+            host = (String) os.valueOf("host");
+        }
+        serve = os.has("serve");
+        if (os.has("server-threads")) {
+            serverThreads = (Integer) os.valueOf("server-threads");
+        }
+        if (os.has("types") && !"auto".equalsIgnoreCase((String) os.valueOf("types"))) {
+            final String[] names = ((String) os.valueOf("types")).split(",");
+            columnTypes = new ColumnType[names.length];
+            for (int i = 0; i < names.length; i++) {
+                columnTypes[i] = ColumnType.valueOf(names[i].trim().toUpperCase());
+            }
+        }
+        if (os.has("file")) {
+            file = (String) os.valueOf("file");
+        }
+        if (os.has("threads")) {
+            threads = (Integer) os.valueOf("threads");
+        }
+        if (os.has("sheet-threads")) {
+            sheetThreads = (Integer) os.valueOf("sheet-threads");
+        }
+        if (os.has("output")) {
+            output = (String) os.valueOf("output");
+        }
+        if (os.has("batch")) {
+            batch = (String) os.valueOf("batch");
+        }
+        if (os.has("output-dir")) {
+            outputDir = (String) os.valueOf("output-dir");
+        }
+        if (os.has("batch-threads")) {
+            batchThreads = (Integer) os.valueOf("batch-threads");
+        }
+        if (os.has("batch-memory-mb")) {
+            batchMemoryBytes = ((Integer) os.valueOf("batch-memory-mb")) * (1L << 20);
+        }
+        if (os.has("strings")) {
+            compactStrings = !"poi".equalsIgnoreCase((String) os.valueOf("strings"));
+        }
+        if (os.has("xml")) {
+            scanXml = !"sax".equalsIgnoreCase((String) os.valueOf("xml"));
+        }
+        if (os.has("strings-dictionary")) {
+            stringsDictionary = (String) os.valueOf("strings-dictionary");
+        }
+        if (os.has("strings-spill-mb")) {
+            stringsSpillBytes = ((Integer) os.valueOf("strings-spill-mb")) * (1L << 20);
+        }
+        if (os.has("stream-buffer-mb")) {
+            streamBufferBytes = ((Integer) os.valueOf("stream-buffer-mb")) * (1L << 20);
+        }
+        if (os.has("read-ahead-kb")) {
+            readAheadBytes = ((Integer) os.valueOf("read-ahead-kb")) << 10;
+        }
+        if (os.has("metrics")) {
+            metricsFile = (String) os.valueOf("metrics");
+        }
+        if (os.has("cache")) {
+            cacheDir = (String) os.valueOf("cache");
+        }
+        if (os.has("sample-rows")) {
+            sampleRows = (Integer) os.valueOf("sample-rows");
+        }
+        inference = new TypeInference(sampleRows, cacheDir);
+        if (os.has("sheets") || os.has("columns") || os.has("rows")) {
+            projection = Projection.parse(
+                    (String) os.valueOf("sheets"), (String) os.valueOf("columns"), (String) os.valueOf("rows"));
+        }
+        if (os.has("zone")) {
+            zone = SerialDates.parseZone((String) os.valueOf("zone"));
+        }
+        if (os.has("cells")) {
+            cells = CellOutput.valueOf(((String) os.valueOf("cells")).toUpperCase());
+        }
+        if (os.has("format")) {
+            format = OutputFormat.valueOf(((String) os.valueOf("format")).toUpperCase());
+        }
+        if (os.has("row-group-rows")) {
+            rowGroupRows = (Integer) os.valueOf("row-group-rows");
+        }
+        if (format.oneSheet()) {
+            // A Parquet file is one table, so it takes one sheet, the first unless --sheets names another;
+            // an XLSX one is written as it's converted, so it does too
+            final String sheets = (String) os.valueOf("sheets");
+            if (sheets != null && sheets.contains(",")) {
+                throw new IllegalArgumentException(format + " output takes one sheet, --sheets names several");
+            }
+            if (sheets == null) {
+                projection = Projection.parse("0", (String) os.valueOf("columns"), (String) os.valueOf("rows"));
+            }
+            // each chunk of a sheet would end in a footer, or be a ZIP, of its own
+            sheetThreads = 1;
+        }
+    }
+
+    /**
+     * Creates the sink of each sheet, in options.format.
+     */
+    RowSink.Factory sinks() {
+        final RowSink.Factory sinks = formatSinks();
+        return stringsDictionary == null ? sinks
+                : (channel, types) -> new StringIndexSink(sinks.open(channel, types));
+    }
+
+    /**
+     * Creates sinks in options.format with the options it takes, such as
+     * the zone datetimes are written in for XLSX.
+     */
+    RowSink.Factory formatSinks() {
+        return switch (format) {
+            case PARQUET -> (channel, types) -> new ParquetRowSink(channel, types, rowGroupRows);
+            case XLSX -> (channel, types) -> new XlsxRowSink(channel, types, zone);
+            default -> format;
+        };
+    }
+
+    /**
+     * These options for another workbook of a batch. The metrics are
+     * shared, so they add up over the batch; schemas are sampled afresh,
+     * sheets of the same name in different workbooks needn't match.
+     */
+    Options forFile(String file) {
+        try {
+            final var options = (Options) clone();
+            options.file = file;
+            options.inference = new TypeInference(sampleRows, cacheDir);
+            return options;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
     }
 
 }
@@ -116,4 +729,35 @@ enum ColumnType {
     DATETIME,
     BOOLEAN,
     STRING
-}
\ No newline at end of file
+}
+
+enum CellOutput {
+    VALUES,
+    FORMULAS
+}
+
+enum OutputFormat implements RowSink.Factory {
+    CSV,
+    TSV,
+    JSON,
+    PARQUET,
+    XLSX;
+
+    @Override
+    public RowSink open(WritableByteChannel channel, ColumnType[] columnTypes) {
+        return switch (this) {
+            case CSV -> new CsvRowSink(channel);
+            case TSV -> new TsvRowSink(channel);
+            case JSON -> new JsonRowSink(channel);
+            case PARQUET -> new ParquetRowSink(channel, columnTypes, 0);
+            case XLSX -> throw new UnsupportedOperationException("XLSX sinks need the zone, see Options.formatSinks");
+        };
+    }
+
+    /**
+     * Whether output is a file of one sheet, with the parts that describe it at the end.
+     */
+    boolean oneSheet() {
+        return this == PARQUET || this == XLSX;
+    }
+}
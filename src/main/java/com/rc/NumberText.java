@@ -0,0 +1,200 @@
+package com.rc;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+/**
+ * Converts numbers between text and binary without creating garbage.
+ *
+ * Parsing works directly on the characters gathered by the SAX handler,
+ * formatting writes digits straight into an {@link OutputBuffer}. Both
+ * take a fast path for the values found in almost every sheet (up to 15
+ * or so significant digits) and fall back to the JDK for the rest, so
+ * results are always the same as Double.parseDouble and a
+ * DecimalFormat of "0.#############".
+ *
+ * The parse methods are static, formatting needs a little scratch space
+ * so each thread must use its own instance.
+ */
+final class NumberText {
+
+    static final int MAX_FRACTION_DIGITS = 13;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long[] LONG_POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+            1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L
+    };
+    // Largest integer a double holds exactly
+    private static final long EXACT = 1L << 53;
+
+    private final byte[] digits = new byte[20];
+    private final NumberFormat fallback = new DecimalFormat("0.#############");
+
+    /**
+     * Parses a plain or scientific decimal. The result is exact when both
+     * the digits and the power of ten are exactly representable, which is
+     * the usual case; anything else goes to Double.parseDouble.
+     */
+    static double parseDouble(CharSequence s) {
+        final int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++significant > 18) {
+                        return Double.parseDouble(s.toString());
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (seenPoint) {
+                    scale--;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return Double.parseDouble(s.toString());
+        }
+        if (i < length) {
+            final char c = s.charAt(i);
+            if ((c != 'e' && c != 'E') || i + 1 == length) {
+                return Double.parseDouble(s.toString());
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (s.charAt(i) == '-' || s.charAt(i) == '+') {
+                negativeExponent = s.charAt(i) == '-';
+                i++;
+            }
+            if (i == length) {
+                return Double.parseDouble(s.toString());
+            }
+            int exponent = 0;
+            for (; i < length; i++) {
+                final char d = s.charAt(i);
+                if (d < '0' || d > '9' || exponent > 10000) {
+                    return Double.parseDouble(s.toString());
+                }
+                exponent = exponent * 10 + (d - '0');
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (mantissa > EXACT || scale < -22 || scale > 22) {
+            return Double.parseDouble(s.toString());
+        }
+        final double value = scale < 0 ? mantissa / POW10[-scale] : mantissa * POW10[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses an unsigned decimal integer, as used for indexes and row numbers.
+     */
+    static int parseInt(CharSequence s) {
+        final int length = s.length();
+        if (length == 0 || length > 9) {
+            return Integer.parseInt(s.toString());
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return Integer.parseInt(s.toString());
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Writes the value as "0.#############" would format it: no grouping,
+     * no exponent and at most 13 fraction digits.
+     *
+     * The shortest decimal with up to 13 fraction digits that reads back as
+     * the same double is what DecimalFormat prints, so look for it with
+     * exact long arithmetic. Values that need rounding (1/3) or are too
+     * large for a long are rare, and are given to DecimalFormat.
+     */
+    void append(OutputBuffer out, double value) {
+        if (!appendShort(out, value)) {
+            out.putAscii(fallback.format(value));
+        }
+    }
+
+    /**
+     * Writes the value so it reads back as the same double, as append does
+     * when it can and otherwise as Double.toString does, for XML's double.
+     */
+    void appendExact(OutputBuffer out, double value) {
+        if (!appendShort(out, value)) {
+            out.putAscii(Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes the value when it has an exact decimal of up to 13 fraction digits.
+     */
+    private boolean appendShort(OutputBuffer out, double value) {
+        if (value == 0) {
+            out.putAscii(1 / value < 0 ? "-0" : "0");
+            return true;
+        }
+        final double magnitude = Math.abs(value);
+        if (magnitude < EXACT) {
+            for (int scale = 0; scale <= MAX_FRACTION_DIGITS; scale++) {
+                final double scaled = Math.rint(magnitude * POW10[scale]);
+                if (scaled >= EXACT) {
+                    break;
+                }
+                if (scaled / POW10[scale] == magnitude) {
+                    if (value < 0) {
+                        out.putAscii('-');
+                    }
+                    final long unscaled = (long) scaled;
+                    appendLong(out, unscaled / LONG_POW10[scale], 1);
+                    if (scale > 0) {
+                        out.putAscii('.');
+                        appendLong(out, unscaled % LONG_POW10[scale], scale);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a non negative long, left padded with zeros to at least width digits.
+     */
+    void appendLong(OutputBuffer out, long value, int width) {
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = n; i < width; i++) {
+            out.put((byte) '0');
+        }
+        while (n > 0) {
+            out.put(digits[--n]);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.rc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A large, reusable byte buffer in front of a channel.
+ *
+ * Characters are UTF-8 encoded straight into the buffer, which is only
+ * handed to the channel when it is full or explicitly flushed. There is
+ * no locking and no per write allocation, so one buffer must only be
+ * used by one thread.
+ *
+ * I/O errors are rethrown unchecked, the callers are SAX and POI
+ * callbacks that can't declare them.
+ */
+class OutputBuffer {
+
+    static final int DEFAULT_CAPACITY = 1 << 18;
+
+    private final WritableByteChannel channel;
+    private final byte[] bytes;
+    private final ByteBuffer wrapper;
+    private int position;
+
+    OutputBuffer(WritableByteChannel channel) {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    OutputBuffer(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.bytes = new byte[capacity];
+        this.wrapper = ByteBuffer.wrap(bytes);
+    }
+
+    OutputBuffer put(byte b) {
+        if (position == bytes.length) {
+            drain();
+        }
+        bytes[position++] = b;
+        return this;
+    }
+
+    /**
+     * Appends plain 7 bit characters, the caller guarantees there's
+     * nothing to encode (delimiters, digits, keywords).
+     */
+    OutputBuffer putAscii(char c) {
+        return put((byte) c);
+    }
+
+    OutputBuffer putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            put((byte) s.charAt(i));
+        }
+        return this;
+    }
+
+    OutputBuffer put(byte[] src, int offset, int length) {
+        while (length > 0) {
+            if (position == bytes.length) {
+                drain();
+            }
+            final var n = Math.min(length, bytes.length - position);
+            System.arraycopy(src, offset, bytes, position, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+        return this;
+    }
+
+    /**
+     * UTF-8 encodes one char. Surrogate pairs must go through
+     * {@link #append(CharSequence, int, int)} so both halves are seen together.
+     */
+    OutputBuffer append(char c) {
+        if (c < 0x80) {
+            return put((byte) c);
+        }
+        if (position + 3 > bytes.length) {
+            drain();
+        }
+        if (c < 0x800) {
+            bytes[position++] = (byte) (0xC0 | (c >> 6));
+        } else {
+            bytes[position++] = (byte) (0xE0 | (c >> 12));
+            bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        }
+        bytes[position++] = (byte) (0x80 | (c & 0x3F));
+        return this;
+    }
+
+    OutputBuffer append(CharSequence s) {
+        return append(s, 0, s.length());
+    }
+
+    OutputBuffer append(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                append(c);
+            }
+        }
+        return this;
+    }
+
+    private void appendCodePoint(int cp) {
+        if (position + 4 > bytes.length) {
+            drain();
+        }
+        bytes[position++] = (byte) (0xF0 | (cp >> 18));
+        bytes[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        bytes[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        bytes[position++] = (byte) (0x80 | (cp & 0x3F));
+    }
+
+    /**
+     * Makes room for n bytes, so that up to n written next stay in the
+     * buffer to be read back with {@link #copy}.
+     *
+     * @return where they start
+     */
+    int reserve(int n) {
+        if (position + n > bytes.length) {
+            drain();
+        }
+        return position;
+    }
+
+    int position() {
+        return position;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    /**
+     * Copies out what was written from start, a position given by {@link #reserve}.
+     */
+    void copy(int start, byte[] dst, int offset) {
+        System.arraycopy(bytes, start, dst, offset, position - start);
+    }
+
+    /**
+     * Writes everything buffered so far to the channel.
+     */
+    void flush() {
+        drain();
+    }
+
+    private void drain() {
+        wrapper.clear().limit(position);
+        try {
+            while (wrapper.hasRemaining()) {
+                channel.write(wrapper);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+}
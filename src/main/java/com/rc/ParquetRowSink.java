@@ -0,0 +1,703 @@
+package com.rc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Apache Parquet, written without the Parquet libraries.
+ *
+ * Rows are gathered by a {@link ColumnarRowSink} and every full batch is
+ * written as a row group, one data page per column, so memory is bounded
+ * by the batch whatever the size of the sheet. The footer, a Thrift
+ * compact encoded FileMetaData, follows the last row group when the sheet
+ * ends. A file holds one table, so one sheet: see Options.
+ *
+ * Every column is OPTIONAL, an empty cell or one that doesn't fit the
+ * column's type is a null:
+ * <pre>
+ *   DECIMAL   DOUBLE                        PLAIN
+ *   DATETIME  INT64 TIMESTAMP(MILLIS, UTC)  DELTA_BINARY_PACKED
+ *   BOOLEAN   BOOLEAN                       PLAIN
+ *   STRING    BYTE_ARRAY UTF8               dictionary page, RLE_DICTIONARY
+ * </pre>
+ * The batch's string vector holds each distinct value once already, it's
+ * written as the column chunk's dictionary as it is. Columns are named A,
+ * B, ... by output position. Pages are uncompressed.
+ */
+final class ParquetRowSink implements RowSink {
+
+    static final Logger logger = LogManager.getLogger(ParquetRowSink.class.getName());
+
+    // Cells held by a row group when its size isn't given, about 32MB of values
+    static final int ROW_GROUP_CELLS = 1 << 22;
+    private static final int MIN_ROW_GROUP_ROWS = 1024;
+    private static final int MAX_ROW_GROUP_ROWS = 1 << 16;
+    // Longest string kept as a column's min or max in the footer
+    private static final int MAX_STATISTICS_BYTES = 64;
+
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final String CREATED_BY = "excel version 0.0.1";
+
+    // parquet.thrift enums
+    private static final int BOOLEAN = 0;
+    private static final int INT64 = 2;
+    private static final int DOUBLE = 5;
+    private static final int BYTE_ARRAY = 6;
+    private static final int OPTIONAL = 1;
+    private static final int UTF8 = 0;
+    private static final int TIMESTAMP_MILLIS = 9;
+    private static final int PLAIN = 0;
+    private static final int RLE = 3;
+    private static final int DELTA_BINARY_PACKED = 5;
+    private static final int RLE_DICTIONARY = 8;
+    private static final int UNCOMPRESSED = 0;
+    private static final int DATA_PAGE = 0;
+    private static final int DICTIONARY_PAGE = 2;
+
+    private final OutputBuffer out;
+    private final ColumnType[] types;
+    private final ColumnarRowSink rows;
+    private String sheetName = "";
+    // Bytes written so far, the offset of what's written next
+    private long position;
+    private long totalRows;
+    private int rowGroups;
+    // The RowGroup structs written so far, for the footer
+    private final Thrift groups = new Thrift();
+    private final Bytes page = new Bytes();
+    private final Thrift header = new Thrift();
+    private int[] levels = new int[0];
+    private long[] values = new long[0];
+    private boolean warnedWide;
+
+    /**
+     * @param rowGroupRows rows in each row group, 0 for as many as make about {@link #ROW_GROUP_CELLS} cells
+     */
+    ParquetRowSink(WritableByteChannel channel, ColumnType[] columnTypes, int rowGroupRows) {
+        this.out = new OutputBuffer(channel);
+        this.types = columnTypes;
+        this.rows = new ColumnarRowSink(columnTypes, rowGroupRows > 0 ? rowGroupRows : defaultRows(columnTypes.length),
+                this::writeRowGroup);
+    }
+
+    static int defaultRows(int columns) {
+        return Math.max(MIN_ROW_GROUP_ROWS, Math.min(MAX_ROW_GROUP_ROWS, ROW_GROUP_CELLS / Math.max(1, columns)));
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+        this.sheetName = sheetName == null ? "" : sheetName;
+        write(MAGIC, 0, MAGIC.length);
+        rows.startSheet(sheetName);
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        rows.startRow(rowNum);
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        if (fits(column)) {
+            rows.cell(column, value);
+        }
+    }
+
+    @Override
+    public void number(int column, double value) {
+        if (fits(column)) {
+            rows.number(column, value);
+        }
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        if (fits(column)) {
+            rows.datetime(column, epochMillis);
+        }
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        if (fits(column)) {
+            rows.bool(column, value);
+        }
+    }
+
+    /**
+     * The schema can't grow once row groups are written, cells past it are left out.
+     */
+    private boolean fits(int column) {
+        if (column < types.length) {
+            return true;
+        }
+        if (!warnedWide) {
+            warnedWide = true;
+            logger.warn("{} has cells past its {} typed columns, they're left out of the Parquet output;"
+                    + " give --types, or more --sample-rows", sheetName, types.length);
+        }
+        return false;
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        rows.endRow(rowNum);
+    }
+
+    @Override
+    public void endSheet() {
+        rows.endSheet();
+        writeFooter();
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        out.put(bytes, offset, length);
+        position += length;
+    }
+
+    private void writeRowGroup(ColumnBatch batch) {
+        final long start = position;
+        final int count = batch.rowCount;
+        if (levels.length < count) {
+            levels = new int[batch.capacity];
+            values = new long[batch.capacity];
+        }
+        groups.begin().list(1, Thrift.STRUCT, batch.columns.length);
+        for (int c = 0; c < batch.columns.length; c++) {
+            writeColumnChunk(batch.columns[c], count, XlsxSheetHandler.columnName(c));
+        }
+        groups.i64(2, position - start).i64(3, count).i64(5, start).i64(6, position - start).end();
+        rowGroups++;
+        totalRows += count;
+    }
+
+    /**
+     * Writes the pages of one column of a batch, and its ColumnChunk to the row group.
+     */
+    private void writeColumnChunk(ColumnBatch.Vector column, int count, String name) {
+        final long start = position;
+        int nulls = 0;
+        for (int r = 0; r < count; r++) {
+            levels[r] = column.isValid(r) ? 1 : 0;
+            nulls += 1 - levels[r];
+        }
+        long dictionaryOffset = -1;
+        byte[] min = null;
+        byte[] max = null;
+        final int encoding;
+        final int[] encodings;
+        if (column instanceof ColumnBatch.StringVector strings) {
+            dictionaryOffset = position;
+            page.reset();
+            for (int id = 0; id < strings.size; id++) {
+                page.intLE(strings.offsets[id + 1] - strings.offsets[id])
+                        .put(strings.bytes, strings.offsets[id], strings.offsets[id + 1] - strings.offsets[id]);
+            }
+            writePage(DICTIONARY_PAGE, strings.size, PLAIN);
+            page.reset();
+            definitionLevels(count);
+            final int width = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, strings.size - 1)));
+            int n = 0;
+            for (int r = 0; r < count; r++) {
+                if (levels[r] != 0) {
+                    values[n++] = strings.ids[r];
+                }
+            }
+            page.put((byte) width);
+            page.rleHybrid(values, n, width);
+            encoding = RLE_DICTIONARY;
+            encodings = new int[]{PLAIN, RLE, RLE_DICTIONARY};
+            int lo = -1;
+            int hi = -1;
+            for (int id = 0; id < strings.size; id++) {
+                if (lo < 0 || compare(strings, id, lo) < 0) {
+                    lo = id;
+                }
+                if (hi < 0 || compare(strings, id, hi) > 0) {
+                    hi = id;
+                }
+            }
+            if (lo >= 0 && length(strings, lo) <= MAX_STATISTICS_BYTES && length(strings, hi) <= MAX_STATISTICS_BYTES) {
+                min = Arrays.copyOfRange(strings.bytes, strings.offsets[lo], strings.offsets[lo + 1]);
+                max = Arrays.copyOfRange(strings.bytes, strings.offsets[hi], strings.offsets[hi + 1]);
+            }
+        } else if (column instanceof ColumnBatch.DoubleVector doubles) {
+            page.reset();
+            definitionLevels(count);
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            boolean nan = false;
+            for (int r = 0; r < count; r++) {
+                if (levels[r] != 0) {
+                    final double value = doubles.values[r];
+                    page.longLE(Double.doubleToRawLongBits(value));
+                    lo = Math.min(lo, value);
+                    hi = Math.max(hi, value);
+                    nan |= Double.isNaN(value);
+                }
+            }
+            if (nulls < count && !nan) {
+                // as the spec asks, so either zero can be found by the bounds
+                min = littleEndian(Double.doubleToRawLongBits(lo == 0 ? -0.0 : lo));
+                max = littleEndian(Double.doubleToRawLongBits(hi == 0 ? 0.0 : hi));
+            }
+            encoding = PLAIN;
+            encodings = new int[]{PLAIN, RLE};
+        } else if (column instanceof ColumnBatch.LongVector longs) {
+            page.reset();
+            definitionLevels(count);
+            int n = 0;
+            long lo = Long.MAX_VALUE;
+            long hi = Long.MIN_VALUE;
+            for (int r = 0; r < count; r++) {
+                if (levels[r] != 0) {
+                    final long value = longs.values[r];
+                    values[n++] = value;
+                    lo = Math.min(lo, value);
+                    hi = Math.max(hi, value);
+                }
+            }
+            page.deltaBinaryPacked(values, n);
+            if (n > 0) {
+                min = littleEndian(lo);
+                max = littleEndian(hi);
+            }
+            encoding = DELTA_BINARY_PACKED;
+            encodings = new int[]{RLE, DELTA_BINARY_PACKED};
+        } else {
+            final var bits = (ColumnBatch.BitVector) column;
+            page.reset();
+            definitionLevels(count);
+            for (int r = 0; r < count; r++) {
+                if (levels[r] != 0) {
+                    page.bits(bits.get(r) ? 1 : 0, 1);
+                }
+            }
+            page.flushBits();
+            encoding = PLAIN;
+            encodings = new int[]{PLAIN, RLE};
+        }
+        final long dataOffset = position;
+        writePage(DATA_PAGE, count, encoding);
+
+        final long size = position - start;
+        groups.begin().i64(2, start).struct(3)
+                .i32(1, physicalType(column.type))
+                .list(2, Thrift.I32, encodings.length);
+        for (int e : encodings) {
+            groups.listI32(e);
+        }
+        groups.list(3, Thrift.BINARY, 1).listString(name)
+                .i32(4, UNCOMPRESSED)
+                .i64(5, count)
+                .i64(6, size)
+                .i64(7, size)
+                .i64(9, dataOffset);
+        if (dictionaryOffset >= 0) {
+            groups.i64(11, dictionaryOffset);
+        }
+        groups.struct(12).i64(3, nulls);
+        if (min != null) {
+            groups.binary(5, max, 0, max.length).binary(6, min, 0, min.length);
+        }
+        groups.end().end().end();
+    }
+
+    /**
+     * The levels of the page's rows, 1 for a value and 0 for a null, run length encoded after their length.
+     */
+    private void definitionLevels(int count) {
+        final int lengthAt = page.size();
+        page.intLE(0);
+        for (int r = 0; r < count; r++) {
+            values[r] = levels[r];
+        }
+        page.rleHybrid(values, count, 1);
+        page.setIntLE(lengthAt, page.size() - lengthAt - 4);
+    }
+
+    /**
+     * Writes the page held in {@link #page} after its PageHeader.
+     */
+    private void writePage(int type, int count, int encoding) {
+        header.reset();
+        header.begin().i32(1, type).i32(2, page.size()).i32(3, page.size());
+        if (type == DICTIONARY_PAGE) {
+            header.struct(7).i32(1, count).i32(2, encoding).end();
+        } else {
+            header.struct(5).i32(1, count).i32(2, encoding).i32(3, RLE).i32(4, RLE).end();
+        }
+        header.end();
+        write(header.bytes, 0, header.size());
+        write(page.bytes, 0, page.size());
+    }
+
+    private void writeFooter() {
+        final var footer = new Thrift();
+        footer.begin().i32(1, 1).list(2, Thrift.STRUCT, types.length + 1);
+        footer.begin().string(4, "schema").i32(5, types.length).end();
+        for (int c = 0; c < types.length; c++) {
+            footer.begin().i32(1, physicalType(types[c])).i32(3, OPTIONAL).string(4, XlsxSheetHandler.columnName(c));
+            if (types[c] == ColumnType.STRING) {
+                footer.i32(6, UTF8).struct(10).struct(1).end().end();
+            } else if (types[c] == ColumnType.DATETIME) {
+                // TimestampType(isAdjustedToUTC, unit MILLIS)
+                footer.i32(6, TIMESTAMP_MILLIS).struct(10).struct(8).bool(1, true).struct(2).struct(1)
+                        .end().end().end().end();
+            }
+            footer.end();
+        }
+        footer.i64(3, totalRows).list(4, Thrift.STRUCT, rowGroups).put(groups.bytes, 0, groups.size());
+        footer.list(5, Thrift.STRUCT, 1).begin().string(1, "sheet").string(2, sheetName).end();
+        footer.string(6, CREATED_BY);
+        // TypeDefinedOrder for every column, so readers trust min and max
+        footer.list(7, Thrift.STRUCT, types.length);
+        for (int c = 0; c < types.length; c++) {
+            footer.begin().struct(1).end().end();
+        }
+        footer.end();
+        write(footer.bytes, 0, footer.size());
+        write(littleEndian(footer.size()), 0, 4);
+        write(MAGIC, 0, MAGIC.length);
+    }
+
+    private static int physicalType(ColumnType type) {
+        return switch (type) {
+            case DECIMAL -> DOUBLE;
+            case DATETIME -> INT64;
+            case BOOLEAN -> BOOLEAN;
+            case STRING -> BYTE_ARRAY;
+        };
+    }
+
+    private static int length(ColumnBatch.StringVector strings, int id) {
+        return strings.offsets[id + 1] - strings.offsets[id];
+    }
+
+    /**
+     * Compares dictionary entries as unsigned bytes, the order Parquet gives UTF8.
+     */
+    private static int compare(ColumnBatch.StringVector strings, int a, int b) {
+        return Arrays.compareUnsigned(strings.bytes, strings.offsets[a], strings.offsets[a + 1],
+                strings.bytes, strings.offsets[b], strings.offsets[b + 1]);
+    }
+
+    private static byte[] littleEndian(long value) {
+        final var bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static byte[] littleEndian(int value) {
+        return Arrays.copyOf(littleEndian((long) value), 4);
+    }
+
+    /**
+     * A growable byte array, with the encodings Parquet pages use.
+     */
+    static class Bytes {
+        byte[] bytes = new byte[1 << 12];
+        private int size;
+        // Bits not yet making a whole byte, for bits()
+        private long pending;
+        private int pendingBits;
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        Bytes put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+            return this;
+        }
+
+        Bytes put(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, bytes, size, length);
+            size += length;
+            return this;
+        }
+
+        Bytes intLE(int value) {
+            ensure(4);
+            setIntLE(size, value);
+            size += 4;
+            return this;
+        }
+
+        void setIntLE(int at, int value) {
+            for (int i = 0; i < 4; i++) {
+                bytes[at + i] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        Bytes longLE(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+            return this;
+        }
+
+        Bytes varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            return put((byte) value);
+        }
+
+        Bytes zigzag(long value) {
+            return varint((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Appends the low width bits of value, least significant first,
+         * as Parquet packs bits. Call {@link #flushBits} after the last.
+         */
+        void bits(long value, int width) {
+            for (int remaining = width; remaining > 0; ) {
+                final int take = Math.min(remaining, 56);
+                pending |= (value & ((1L << take) - 1)) << pendingBits;
+                pendingBits += take;
+                value >>>= take;
+                remaining -= take;
+                while (pendingBits >= 8) {
+                    put((byte) pending);
+                    pending >>>= 8;
+                    pendingBits -= 8;
+                }
+            }
+        }
+
+        void flushBits() {
+            if (pendingBits > 0) {
+                put((byte) pending);
+            }
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        /**
+         * The RLE / bit-packing hybrid: runs of 8 or more equal values as a
+         * count and the value, anything else bit packed in groups of 8.
+         */
+        void rleHybrid(long[] values, int count, int width) {
+            int i = 0;
+            while (i < count) {
+                int run = 1;
+                while (i + run < count && values[i + run] == values[i]) {
+                    run++;
+                }
+                if (run >= 8) {
+                    varint((long) run << 1);
+                    for (int b = 0; b < width; b += 8) {
+                        put((byte) (values[i] >>> b));
+                    }
+                    i += run;
+                    continue;
+                }
+                // bit packed up to where a run of 8 starts, padded with zeros at the end only
+                final int start = i;
+                int groups = 0;
+                do {
+                    i += 8;
+                    groups++;
+                } while (i < count && !isRun(values, i, count));
+                varint((long) groups << 1 | 1);
+                for (int v = start; v < start + groups * 8; v++) {
+                    bits(v < count ? values[v] : 0, width);
+                }
+                flushBits();
+            }
+        }
+
+        private static boolean isRun(long[] values, int from, int count) {
+            if (from + 8 > count) {
+                return false;
+            }
+            for (int i = from + 1; i < from + 8; i++) {
+                if (values[i] != values[from]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * DELTA_BINARY_PACKED, in blocks of 128 values of 4 miniblocks: the
+         * differences between neighbours, less the block's smallest, packed
+         * to the width the miniblock needs. Sorted or evenly spaced times
+         * take a few bits each.
+         */
+        void deltaBinaryPacked(long[] values, int count) {
+            varint(128).varint(4).varint(count).zigzag(count > 0 ? values[0] : 0);
+            final long[] deltas = new long[128];
+            for (int i = 1; i < count; i += 128) {
+                final int n = Math.min(128, count - i);
+                long min = Long.MAX_VALUE;
+                for (int j = 0; j < n; j++) {
+                    deltas[j] = values[i + j] - values[i + j - 1];
+                    min = Math.min(min, deltas[j]);
+                }
+                for (int j = 0; j < 128; j++) {
+                    deltas[j] = j < n ? deltas[j] - min : 0;
+                }
+                zigzag(min);
+                final int[] widths = new int[4];
+                for (int m = 0; m < 4; m++) {
+                    long any = 0;
+                    for (int j = m * 32; j < m * 32 + 32; j++) {
+                        any |= deltas[j];
+                    }
+                    // miniblocks past the last value have no body, whatever their width
+                    widths[m] = m * 32 < n ? 64 - Long.numberOfLeadingZeros(any) : 0;
+                    put((byte) widths[m]);
+                }
+                for (int m = 0; m * 32 < n; m++) {
+                    for (int j = m * 32; j < m * 32 + 32; j++) {
+                        bits(deltas[j], widths[m]);
+                    }
+                    flushBits();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes Thrift's compact protocol, just what the Parquet metadata needs.
+     * Structs nest with {@link #begin} and {@link #end}, fields are written
+     * as a header giving the id's difference from the previous one's.
+     */
+    static final class Thrift extends Bytes {
+        static final int TRUE = 1;
+        static final int FALSE = 2;
+        static final int I32 = 5;
+        static final int I64 = 6;
+        static final int BINARY = 8;
+        static final int LIST = 9;
+        static final int STRUCT = 12;
+
+        private int[] lastIds = new int[16];
+        private int depth;
+
+        @Override
+        void reset() {
+            super.reset();
+            depth = 0;
+        }
+
+        private void field(int id, int type) {
+            final int delta = id - lastIds[depth];
+            if (delta > 0 && delta <= 15) {
+                put((byte) (delta << 4 | type));
+            } else {
+                put((byte) type);
+                zigzag(id);
+            }
+            lastIds[depth] = id;
+        }
+
+        /**
+         * Starts a struct: the top level one, or an element of a list.
+         */
+        Thrift begin() {
+            if (++depth == lastIds.length) {
+                lastIds = Arrays.copyOf(lastIds, depth * 2);
+            }
+            lastIds[depth] = 0;
+            return this;
+        }
+
+        Thrift end() {
+            put((byte) 0);
+            depth--;
+            return this;
+        }
+
+        Thrift struct(int id) {
+            field(id, STRUCT);
+            return begin();
+        }
+
+        Thrift i32(int id, int value) {
+            field(id, I32);
+            zigzag(value);
+            return this;
+        }
+
+        Thrift i64(int id, long value) {
+            field(id, I64);
+            zigzag(value);
+            return this;
+        }
+
+        Thrift bool(int id, boolean value) {
+            field(id, value ? TRUE : FALSE);
+            return this;
+        }
+
+        Thrift binary(int id, byte[] value, int offset, int length) {
+            field(id, BINARY);
+            varint(length);
+            put(value, offset, length);
+            return this;
+        }
+
+        Thrift string(int id, String value) {
+            final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            return binary(id, utf8, 0, utf8.length);
+        }
+
+        Thrift list(int id, int elementType, int size) {
+            field(id, LIST);
+            if (size < 15) {
+                put((byte) (size << 4 | elementType));
+            } else {
+                put((byte) (0xF0 | elementType));
+                varint(size);
+            }
+            return this;
+        }
+
+        Thrift listI32(int value) {
+            zigzag(value);
+            return this;
+        }
+
+        Thrift listString(String value) {
+            final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            put(utf8, 0, utf8.length);
+            return this;
+        }
+
+        @Override
+        Thrift put(byte[] src, int offset, int length) {
+            super.put(src, offset, length);
+            return this;
+        }
+    }
+}
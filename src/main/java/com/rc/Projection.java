@@ -0,0 +1,227 @@
+package com.rc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which sheets, columns and rows a conversion wants.
+ *
+ * The sheet handlers check it as early as they can: cells of columns that
+ * aren't wanted are never gathered, looked up or formatted, and a sheet
+ * stops being parsed once the last wanted row has been seen.
+ *
+ * Specs use Excel's notation:
+ * <pre>
+ *   sheets   Sheet1,3           names, or zero based positions
+ *   columns  A,C:F              letters, ranges inclusive
+ *   rows     2:100,Sheet2!5:    1 based rows, optionally for one sheet (name
+ *                               or position), open ended ranges allowed
+ * </pre>
+ * Wanted columns are written next to each other, in sheet order. A sheet
+ * may have several row ranges; those given for it by name or position
+ * replace the ones given for all sheets.
+ */
+final class Projection {
+
+    static final Projection ALL = new Projection(null, null, null);
+
+    /**
+     * Thrown by a sheet handler to end the parse early, once every wanted
+     * row has been seen. Carries no stack trace, it isn't an error.
+     */
+    static final class EndOfRange extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EndOfRange() {
+            super("All requested rows have been read", null, false, false);
+        }
+    }
+
+    private final Set<String> sheets;
+    private final int[] columnMap;
+    private final Map<String, List<long[]>> rowRanges;
+
+    private Projection(Set<String> sheets, int[] columnMap, Map<String, List<long[]>> rowRanges) {
+        this.sheets = sheets;
+        this.columnMap = columnMap;
+        this.rowRanges = rowRanges;
+    }
+
+    static Projection parse(String sheetSpec, String columnSpec, String rowSpec) {
+        Set<String> sheets = null;
+        if (sheetSpec != null) {
+            sheets = new HashSet<>(Arrays.asList(sheetSpec.split(",")));
+        }
+        int[] columnMap = null;
+        if (columnSpec != null) {
+            final List<int[]> ranges = new ArrayList<>();
+            int max = -1;
+            for (String part : columnSpec.split(",")) {
+                final var bounds = part.split(":", -1);
+                final int from = XlsxSheetHandler.columnIndex(bounds[0].trim());
+                final int to = bounds.length > 1 ? XlsxSheetHandler.columnIndex(bounds[1].trim()) : from;
+                if (from < 0 || to < from) {
+                    throw new IllegalArgumentException("Bad column range " + part);
+                }
+                ranges.add(new int[]{from, to});
+                max = Math.max(max, to);
+            }
+            columnMap = new int[max + 1];
+            Arrays.fill(columnMap, -1);
+            for (int[] range : ranges) {
+                for (int c = range[0]; c <= range[1]; c++) {
+                    columnMap[c] = 0;
+                }
+            }
+            int next = 0;
+            for (int c = 0; c < columnMap.length; c++) {
+                if (columnMap[c] == 0) {
+                    columnMap[c] = next++;
+                }
+            }
+        }
+        Map<String, List<long[]>> rowRanges = null;
+        if (rowSpec != null) {
+            rowRanges = new HashMap<>();
+            for (String part : rowSpec.split(",")) {
+                final int bang = part.lastIndexOf('!');
+                final String sheet = bang < 0 ? "" : part.substring(0, bang);
+                final var bounds = part.substring(bang + 1).split(":", -1);
+                final long from = bounds[0].isBlank() ? 1 : Long.parseLong(bounds[0].trim());
+                final long to = bounds.length == 1 ? from
+                        : bounds[1].isBlank() ? Integer.MAX_VALUE : Long.parseLong(bounds[1].trim());
+                if (from < 1 || to < from) {
+                    throw new IllegalArgumentException("Bad row range " + part);
+                }
+                // stored zero based, as the handlers count rows
+                rowRanges.computeIfAbsent(sheet, key -> new ArrayList<>()).add(new long[]{from - 1, to - 1});
+            }
+        }
+        return new Projection(sheets, columnMap, rowRanges);
+    }
+
+    boolean includesSheet(String name, int index) {
+        return sheets == null || sheets.contains(name) || sheets.contains(Integer.toString(index));
+    }
+
+    /**
+     * The projection as it applies to one sheet.
+     */
+    Sheet forSheet(String name, int index) {
+        List<long[]> rows = null;
+        if (rowRanges != null) {
+            rows = rowRanges.get(name);
+            if (rows == null) {
+                rows = rowRanges.get(Integer.toString(index));
+            }
+            if (rows == null) {
+                rows = rowRanges.get("");
+            }
+        }
+        if (rows == null && columnMap == null) {
+            return Sheet.ALL;
+        }
+        return rows == null ? new Sheet(0, Integer.MAX_VALUE, columnMap) : new Sheet(merge(rows), columnMap);
+    }
+
+    /**
+     * The ranges sorted, with overlapping and adjacent ones joined, as
+     * first and last row pairs.
+     */
+    private static int[] merge(List<long[]> ranges) {
+        final var sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+        final var rows = new int[sorted.size() * 2];
+        int n = 0;
+        for (long[] range : sorted) {
+            final int from = (int) Math.min(range[0], Integer.MAX_VALUE);
+            final int to = (int) Math.min(range[1], Integer.MAX_VALUE);
+            if (n > 0 && from <= rows[n - 1] + 1L) {
+                rows[n - 1] = Math.max(rows[n - 1], to);
+            } else {
+                rows[n++] = from;
+                rows[n++] = to;
+            }
+        }
+        return Arrays.copyOf(rows, n);
+    }
+
+    static final class Sheet {
+
+        static final Sheet ALL = new Sheet(0, Integer.MAX_VALUE, null);
+
+        final int lastRow;
+        // first and last row of each wanted range, sorted and apart
+        private final int[] rows;
+        // source column -> output column, -1 when not wanted. null for all columns
+        private final int[] columnMap;
+
+        Sheet(int firstRow, int lastRow, int[] columnMap) {
+            this(new int[]{firstRow, lastRow}, columnMap);
+        }
+
+        Sheet(int[] rows, int[] columnMap) {
+            this.rows = rows;
+            this.lastRow = rows[rows.length - 1];
+            this.columnMap = columnMap;
+        }
+
+        boolean wantsRow(int row) {
+            for (int i = 0; i < rows.length && row >= rows[i]; i += 2) {
+                if (row <= rows[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean pastEnd(int row) {
+            return row > lastRow;
+        }
+
+        /**
+         * The types of the output columns, given those of the sheet's columns.
+         * Wanted columns past the sheet's types are STRING, as the handlers
+         * treat them.
+         */
+        ColumnType[] project(ColumnType[] sourceTypes) {
+            if (columnMap == null) {
+                return sourceTypes;
+            }
+            int width = 0;
+            for (int c = 0; c < columnMap.length; c++) {
+                width = Math.max(width, columnMap[c] + 1);
+            }
+            final var types = new ColumnType[width];
+            for (int c = 0; c < columnMap.length; c++) {
+                if (columnMap[c] >= 0) {
+                    types[columnMap[c]] = c < sourceTypes.length ? sourceTypes[c] : ColumnType.STRING;
+                }
+            }
+            return types;
+        }
+
+        /**
+         * The rows and columns, the same for projections that output the same.
+         */
+        @Override
+        public String toString() {
+            return Arrays.toString(rows) + Arrays.toString(columnMap);
+        }
+
+        /**
+         * Where a source column goes in the output, -1 when it isn't wanted.
+         */
+        int column(int sourceColumn) {
+            if (columnMap == null) {
+                return sourceColumn;
+            }
+            return sourceColumn >= 0 && sourceColumn < columnMap.length ? columnMap[sourceColumn] : -1;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.rc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads a stream ahead of its reader, on a thread of its own.
+ *
+ * A sheet part comes out of the ZIP inflated as it's read, so with the
+ * parser reading it, a sheet takes the time to inflate plus the time to
+ * parse. Wrapped in this, a producer thread inflates the part into a
+ * ring of chunks while the parser works through the ones already full,
+ * and a sheet takes about the longer of the two.
+ *
+ * The chunks are allocated once and go round: the producer fills a free
+ * one and queues it, the reader drains it and hands it back. When the
+ * parser falls behind, the producer waits for a free chunk, so at most
+ * the whole ring is read ahead.
+ *
+ * Errors reading the source are thrown to the reader, where it would
+ * have seen them. Closing stops the producer and closes the source.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    static final int DEFAULT_CHUNKS = 4;
+
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(Main.daemonThreads("read-ahead-"));
+
+    private static final class Chunk {
+        final byte[] bytes;
+        int length;
+        // the last chunk: the end of the source, or the error reading it
+        boolean last;
+        IOException error;
+
+        Chunk(int size) {
+            this.bytes = new byte[size];
+        }
+    }
+
+    // Handed to the producer in place of a free chunk to stop it
+    private static final Chunk STOP = new Chunk(0);
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final CountDownLatch produced = new CountDownLatch(1);
+    private volatile boolean closed;
+    private Chunk current;
+    private int position;
+
+    /**
+     * @param aheadBytes how much is read ahead, in {@link #DEFAULT_CHUNKS} chunks
+     */
+    ReadAheadInputStream(InputStream source, int aheadBytes) {
+        this.source = source;
+        final int size = Math.max(1 << 12, aheadBytes / DEFAULT_CHUNKS);
+        // room for every chunk, so neither side waits to hand one back, and for STOP
+        this.free = new ArrayBlockingQueue<>(DEFAULT_CHUNKS + 1);
+        this.full = new ArrayBlockingQueue<>(DEFAULT_CHUNKS);
+        for (int i = 0; i < DEFAULT_CHUNKS; i++) {
+            free.add(new Chunk(size));
+        }
+        PRODUCERS.execute(this::produce);
+    }
+
+    /**
+     * The part as options.readAheadBytes asks: read ahead, or as it is when that's 0.
+     */
+    static InputStream of(Options options, InputStream part) {
+        return options.readAheadBytes > 0 ? new ReadAheadInputStream(part, options.readAheadBytes) : part;
+    }
+
+    private void produce() {
+        try {
+            while (!closed) {
+                final Chunk chunk = free.take();
+                if (chunk == STOP) {
+                    return;
+                }
+                chunk.length = 0;
+                try {
+                    while (chunk.length < chunk.bytes.length) {
+                        final int n = source.read(chunk.bytes, chunk.length, chunk.bytes.length - chunk.length);
+                        if (n < 0) {
+                            chunk.last = true;
+                            break;
+                        }
+                        chunk.length += n;
+                    }
+                } catch (IOException e) {
+                    chunk.error = e;
+                    chunk.last = true;
+                } catch (RuntimeException e) {
+                    chunk.error = new IOException(e);
+                    chunk.last = true;
+                }
+                full.put(chunk);
+                if (chunk.last) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            produced.countDown();
+        }
+    }
+
+    /**
+     * The chunk to read from, waiting for the producer if need be. null at the end.
+     */
+    private Chunk current() throws IOException {
+        while (current == null || position == current.length) {
+            if (current != null) {
+                if (current.error != null) {
+                    throw current.error;
+                }
+                if (current.last) {
+                    return null;
+                }
+                free.add(current);
+                current = null;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                current = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the sheet part");
+            }
+            position = 0;
+        }
+        return current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final Chunk chunk = current();
+        return chunk == null ? -1 : chunk.bytes[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final Chunk chunk = current();
+        if (chunk == null) {
+            return -1;
+        }
+        final int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.bytes, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * Stops the producer, waiting for a read it's in the middle of, then closes the source.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        free.add(STOP);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    produced.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            source.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
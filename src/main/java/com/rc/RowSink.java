@@ -0,0 +1,75 @@
+package com.rc;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Receives the converted rows of a sheet.
+ *
+ * Both sheet handlers feed one of these instead of printing, so the
+ * output format is independent of the input format. Cells arrive in
+ * column order within a row; columns that are skipped are empty and
+ * it's up to the sink how to represent them.
+ *
+ * Values are passed in their converted type, formatting them is left to
+ * the sink so it can write straight into its own buffer. Text is only
+ * valid for the duration of the call, it's usually the handler's
+ * scratch buffer.
+ *
+ * A sink is used by a single thread.
+ */
+interface RowSink {
+
+    void startSheet(String sheetName);
+
+    void startRow(int rowNum);
+
+    /**
+     * @param column zero based column index
+     * @param value  the text of the cell
+     */
+    void cell(int column, CharSequence value);
+
+    /**
+     * A cell holding an entry of the workbook's shared strings table. A
+     * sink that writes an entry the same way every time can keep what it
+     * wrote by index, and copy that for the next cell rather than look
+     * the text up and encode it again.
+     *
+     * @param index   the entry, the same for every cell with that text
+     * @param strings the text of an entry
+     */
+    default void sharedString(int column, int index, IntFunction<CharSequence> strings) {
+        cell(column, strings.apply(index));
+    }
+
+    void number(int column, double value);
+
+    /**
+     * @param epochMillis the instant, already moved out of the sheet's time zone
+     */
+    void datetime(int column, long epochMillis);
+
+    void bool(int column, boolean value);
+
+    void endRow(int rowNum);
+
+    void endSheet();
+
+    /**
+     * Pushes anything buffered to the destination. Doesn't close it,
+     * several sheets may be written to the same channel.
+     */
+    void flush();
+
+    /**
+     * Creates the sink each sheet is converted into.
+     */
+    interface Factory {
+        /**
+         * @param out         where text output goes, sinks that don't write may ignore it
+         * @param columnTypes the type of each output column
+         */
+        RowSink open(WritableByteChannel out, ColumnType[] columnTypes);
+    }
+}
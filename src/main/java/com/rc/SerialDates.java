@@ -0,0 +1,293 @@
+package com.rc;
+
+import org.apache.poi.util.XMLHelper;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Turns Excel date serials into epoch millis, for one zone and date system.
+ *
+ * A serial is the number of days since the workbook's epoch, the time of
+ * day being the fraction. It's local time: the zone says which instant it
+ * is. DateUtil.getJavaDate does this through a GregorianCalendar and a
+ * TimeZone made for every cell. Here the day is worked out with integer
+ * arithmetic and the zone's offset is kept along with the span of local
+ * time it holds for, between two transitions, so most cells need no more
+ * than a compare. Spans are immutable, so a converter is shared by the
+ * sheets of a workbook; threads racing to replace one only repeat work.
+ */
+final class SerialDates {
+
+    static final ZoneId DEFAULT_ZONE = ZoneId.of("America/Los_Angeles");
+
+    // BIFF12 record of workbook.bin with the workbook's properties, the date system among them
+    static final int BRT_WB_PROP = 153;
+
+    private static final long DAY_MILLIS = 86_400_000L;
+    // 1899-12-31 and 1904-01-01, day 0 of the two date systems
+    private static final long EPOCH_DAY_1900 = -25568;
+    private static final long EPOCH_DAY_1904 = -24107;
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final boolean date1904;
+
+    /**
+     * Local millis from start, inclusive, to end are at the offset.
+     */
+    private static final class Span {
+        final long start;
+        final long end;
+        final long offset;
+
+        Span(long start, long end, long offset) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+        }
+    }
+
+    private Span span = new Span(0, 0, 0);
+    // The same for instants, from start to end the zone is at the offset, for toSerial
+    private Span instantSpan = new Span(0, 0, 0);
+
+    SerialDates(ZoneId zone, boolean date1904) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+        this.date1904 = date1904;
+        if (rules.isFixedOffset()) {
+            span = new Span(Long.MIN_VALUE, Long.MAX_VALUE, rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L);
+            instantSpan = span;
+        }
+    }
+
+    /**
+     * Whether a serial is a date at all, Excel has none before its epoch.
+     */
+    static boolean isValid(double serial) {
+        return serial >= 0;
+    }
+
+    /**
+     * The instant of a serial, rounded to the millisecond as DateUtil does.
+     */
+    long toEpochMillis(double serial) {
+        final long days = (long) serial;
+        final long millisOfDay = (long) ((serial - days) * DAY_MILLIS + 0.5);
+        return localToEpochMillis(epochDay(days) * DAY_MILLIS + millisOfDay);
+    }
+
+    /**
+     * The serial of an instant, the other way to {@link #toEpochMillis}, for
+     * dates written back into a workbook. Negative before the epoch.
+     */
+    double toSerial(long epochMillis) {
+        final long localMillis = epochMillis + offsetOf(epochMillis);
+        final long epochDay = Math.floorDiv(localMillis, DAY_MILLIS);
+        long days;
+        if (date1904) {
+            days = epochDay - EPOCH_DAY_1904;
+        } else {
+            days = epochDay - EPOCH_DAY_1900;
+            if (days >= 60) {
+                days++;
+            }
+        }
+        return days + Math.floorMod(localMillis, DAY_MILLIS) / (double) DAY_MILLIS;
+    }
+
+    /**
+     * The instant a local day starts, for dates written out as text.
+     */
+    long startOfDay(long epochDay) {
+        return localToEpochMillis(epochDay * DAY_MILLIS);
+    }
+
+    private long epochDay(long days) {
+        if (date1904) {
+            return EPOCH_DAY_1904 + days;
+        }
+        // Excel has a 29 February 1900, day 60. Later days are one ahead
+        return EPOCH_DAY_1900 + (days >= 61 ? days - 1 : days);
+    }
+
+    private long localToEpochMillis(long localMillis) {
+        final Span span = this.span;
+        if (localMillis >= span.start && localMillis < span.end) {
+            return localMillis - span.offset;
+        }
+        return localMillis - offsetAt(localMillis);
+    }
+
+    /**
+     * The zone's offset at an instant, remembering the span between the
+     * transitions either side.
+     */
+    private long offsetOf(long epochMillis) {
+        final Span span = this.instantSpan;
+        if (epochMillis >= span.start && epochMillis < span.end) {
+            return span.offset;
+        }
+        final Instant instant = Instant.ofEpochMilli(epochMillis);
+        final ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        final ZoneOffsetTransition next = rules.nextTransition(instant);
+        final long offset = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        instantSpan = new Span(previous == null ? Long.MIN_VALUE : previous.getInstant().toEpochMilli(),
+                next == null ? Long.MAX_VALUE : next.getInstant().toEpochMilli(), offset);
+        return offset;
+    }
+
+    /**
+     * Looks up the offset of a local time, its distance from its instant,
+     * and remembers the span around it
+     * that's clear of the transitions either side. Times in a gap are moved
+     * on by its length and those in an overlap take the later offset, as a
+     * Calendar does, and aren't remembered.
+     */
+    private long offsetAt(long localMillis) {
+        final var local = LocalDateTime.ofEpochSecond(Math.floorDiv(localMillis, 1000L),
+                (int) Math.floorMod(localMillis, 1000L) * 1_000_000, ZoneOffset.UTC);
+        final var zoned = ZonedDateTime.ofLocal(local, zone, null).withLaterOffsetAtOverlap();
+        final long offset = zoned.getOffset().getTotalSeconds() * 1000L;
+        final Instant instant = zoned.toInstant();
+        final ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        final ZoneOffsetTransition next = rules.nextTransition(instant);
+        final long start = previous == null ? Long.MIN_VALUE : previous.getInstant().toEpochMilli()
+                + Math.max(previous.getOffsetBefore().getTotalSeconds(), previous.getOffsetAfter().getTotalSeconds()) * 1000L;
+        final long end = next == null ? Long.MAX_VALUE : next.getInstant().toEpochMilli()
+                + Math.min(next.getOffsetBefore().getTotalSeconds(), next.getOffsetAfter().getTotalSeconds()) * 1000L;
+        if (start <= localMillis && localMillis < end) {
+            span = new Span(start, end, offset);
+        }
+        return localMillis - instant.toEpochMilli();
+    }
+
+    /**
+     * Writes an instant as ISO_INSTANT would, 2024-03-01T08:00:00Z with
+     * milliseconds when there are any, into a buffer of at least 32 bytes.
+     * Returns the length written.
+     */
+    static int isoInstant(long epochMillis, byte[] into) {
+        final long epochDay = Math.floorDiv(epochMillis, DAY_MILLIS);
+        final int millisOfDay = (int) Math.floorMod(epochMillis, DAY_MILLIS);
+        // Days to a civil date, from Howard Hinnant's date algorithms
+        final long z = epochDay + 719_468;
+        final long era = Math.floorDiv(z, 146_097);
+        final long dayOfEra = z - era * 146_097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            final var text = DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(epochMillis));
+            for (int i = 0; i < text.length(); i++) {
+                into[i] = (byte) text.charAt(i);
+            }
+            return text.length();
+        }
+        digits(into, 0, (int) year, 4);
+        into[4] = '-';
+        digits(into, 5, month, 2);
+        into[7] = '-';
+        digits(into, 8, day, 2);
+        into[10] = 'T';
+        digits(into, 11, millisOfDay / 3_600_000, 2);
+        into[13] = ':';
+        digits(into, 14, millisOfDay / 60_000 % 60, 2);
+        into[16] = ':';
+        digits(into, 17, millisOfDay / 1000 % 60, 2);
+        int length = 19;
+        if (millisOfDay % 1000 != 0) {
+            into[19] = '.';
+            digits(into, 20, millisOfDay % 1000, 3);
+            length = 23;
+        }
+        into[length] = 'Z';
+        return length + 1;
+    }
+
+    /**
+     * An ISO_INSTANT String, for callers that need one.
+     */
+    static String isoInstant(long epochMillis) {
+        final var bytes = new byte[32];
+        final int length = isoInstant(epochMillis, bytes);
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static void digits(byte[] into, int at, int value, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            into[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Whether an XLSX workbook part, workbook.xml, uses the 1904 date system.
+     */
+    static boolean isDate1904(InputStream workbookXml) throws Exception {
+        final boolean[] date1904 = {false};
+        final var reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("workbookPr".equals(localName)) {
+                    date1904[0] = isTrue(attributes.getValue("date1904"));
+                }
+            }
+        });
+        reader.parse(new InputSource(workbookXml));
+        return date1904[0];
+    }
+
+    /**
+     * Whether an XLSB workbook part, workbook.bin, uses the 1904 date system.
+     */
+    static boolean isDate1904Binary(InputStream workbookBin) throws IOException {
+        final var reader = new Biff12Reader(workbookBin);
+        while (reader.next()) {
+            if (reader.type() == BRT_WB_PROP) {
+                return isDate1904(reader);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The f1904 flag of a BrtWbProp record.
+     */
+    static boolean isDate1904(Biff12Reader wbProp) throws IOException {
+        return (wbProp.uint8(0) & 1) != 0;
+    }
+
+    static boolean isTrue(String xmlBoolean) {
+        return "1".equals(xmlBoolean) || "true".equals(xmlBoolean);
+    }
+
+    /**
+     * Parses a --zone value, an id such as Europe/London or an offset.
+     */
+    static ZoneId parseZone(String id) {
+        try {
+            return ZoneId.of(id);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Unknown time zone " + id, e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.rc;
+
+import java.util.Arrays;
+
+/**
+ * The shared formulas of a sheet, by their si index.
+ *
+ * Excel writes a formula filled down or across only once, in the cell at
+ * the top left of its range, <f t="shared" ref="B2:B9" si="0">A2*2</f>,
+ * and the other cells just point at it with <f t="shared" si="0"/>. The
+ * formula of such a cell is the shared one with its relative references
+ * moved by the cell's distance from the top left cell.
+ *
+ * Only the text and position of each shared formula is kept, and a cell's
+ * formula is worked out when it's asked for, on the text itself: no
+ * parse into tokens and no workbook needed, as POI's SharedFormula has.
+ */
+final class SharedFormulas {
+
+    private static final int MAX_COLUMN = 16384;
+    private static final int MAX_ROW = 1048576;
+
+    private String[] formulas = new String[16];
+    private int[] rows = new int[16];
+    private int[] columns = new int[16];
+
+    /**
+     * Records the formula of a shared range, as found in its top left cell.
+     */
+    void define(int index, String formula, int row, int column) {
+        if (index >= formulas.length) {
+            final int length = Math.max(index + 1, formulas.length * 2);
+            formulas = Arrays.copyOf(formulas, length);
+            rows = Arrays.copyOf(rows, length);
+            columns = Arrays.copyOf(columns, length);
+        }
+        formulas[index] = formula;
+        rows[index] = row;
+        columns[index] = column;
+    }
+
+    /**
+     * Appends the formula of a cell in a shared range. False if the range
+     * hasn't been defined, nothing is appended then.
+     */
+    boolean expand(int index, int row, int column, StringBuilder into) {
+        if (index < 0 || index >= formulas.length || formulas[index] == null) {
+            return false;
+        }
+        shift(formulas[index], row - rows[index], column - columns[index], into);
+        return true;
+    }
+
+    /**
+     * Appends a formula with its relative references moved by the given
+     * number of rows and columns: A1 style cells, and whole columns (A:C)
+     * and rows (2:5). Absolute parts, those after a $, are left as they
+     * are. String literals, quoted sheet names and structured references
+     * are copied unchanged. A reference moved off the sheet becomes #REF!,
+     * as in Excel.
+     */
+    static void shift(CharSequence formula, int rowShift, int columnShift, StringBuilder into) {
+        final int length = formula.length();
+        int i = 0;
+        while (i < length) {
+            final char c = formula.charAt(i);
+            if (c == '"' || c == '\'') {
+                // "a literal" or 'a sheet'!A1, a doubled quote is read as two quoted runs
+                final int end = indexOf(formula, c, i + 1);
+                into.append(formula, i, end);
+                i = end;
+            } else if (c == '[') {
+                final int end = closingBracket(formula, i);
+                into.append(formula, i, end);
+                i = end;
+            } else if (isTokenChar(c)) {
+                int end = i + 1;
+                while (end < length && isTokenChar(formula.charAt(end))) {
+                    end++;
+                }
+                i = token(formula, i, end, rowShift, columnShift, into);
+            } else {
+                into.append(c);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Appends the token from start to end, shifted if it's a reference,
+     * and returns where to carry on from. A range of whole rows or columns
+     * takes in the token after the colon too.
+     */
+    private static int token(CharSequence formula, int start, int end, int rowShift, int columnShift,
+                             StringBuilder into) {
+        final int length = formula.length();
+        final char next = end < length ? formula.charAt(end) : 0;
+        if (next == '(' || next == '!') {
+            // a function or a sheet name
+            into.append(formula, start, end);
+            return end;
+        }
+        final int letters = letters(formula, start, end);
+        final int digits = digits(formula, start, end);
+        if (letters >= 0 && letters < end && digits == end) {
+            // A1, $A$1
+            final int column = column(formula, start, letters);
+            final int row = row(formula, letters, end);
+            if (column > 0 && column <= MAX_COLUMN && row > 0 && row <= MAX_ROW) {
+                cell(formula, start, letters, end, column, row, rowShift, columnShift, into);
+                return end;
+            }
+        } else if (next == ':' && (letters == end || letters < 0 && digits == end)) {
+            // A:C or 2:5, both ends the same kind
+            int otherEnd = end + 1;
+            while (otherEnd < length && isTokenChar(formula.charAt(otherEnd))) {
+                otherEnd++;
+            }
+            final boolean columns = letters == end;
+            final int otherLetters = letters(formula, end + 1, otherEnd);
+            final int otherDigits = digits(formula, end + 1, otherEnd);
+            if (otherEnd > end + 1 && (columns ? otherLetters == otherEnd : otherLetters < 0 && otherDigits == otherEnd)) {
+                if (columns) {
+                    line(formula, start, end, column(formula, start, end), columnShift, MAX_COLUMN, true, into);
+                    into.append(':');
+                    line(formula, end + 1, otherEnd, column(formula, end + 1, otherEnd), columnShift, MAX_COLUMN, true, into);
+                } else {
+                    line(formula, start, end, row(formula, start, end), rowShift, MAX_ROW, false, into);
+                    into.append(':');
+                    line(formula, end + 1, otherEnd, row(formula, end + 1, otherEnd), rowShift, MAX_ROW, false, into);
+                }
+                return otherEnd;
+            }
+        }
+        into.append(formula, start, end);
+        return end;
+    }
+
+    private static void cell(CharSequence formula, int start, int letters, int end, int column, int row,
+                             int rowShift, int columnShift, StringBuilder into) {
+        final boolean absoluteColumn = formula.charAt(start) == '$';
+        final boolean absoluteRow = formula.charAt(letters) == '$';
+        final int newColumn = absoluteColumn ? column : column + columnShift;
+        final int newRow = absoluteRow ? row : row + rowShift;
+        if (newColumn < 1 || newColumn > MAX_COLUMN || newRow < 1 || newRow > MAX_ROW) {
+            into.append("#REF!");
+            return;
+        }
+        if (absoluteColumn) {
+            into.append('$');
+        }
+        appendColumn(newColumn, into);
+        if (absoluteRow) {
+            into.append('$');
+        }
+        into.append(newRow);
+    }
+
+    /**
+     * One end of a range of whole columns or rows.
+     */
+    private static void line(CharSequence formula, int start, int end, int index, int shift, int max,
+                             boolean column, StringBuilder into) {
+        if (formula.charAt(start) == '$') {
+            into.append(formula, start, end);
+            return;
+        }
+        final int shifted = index + shift;
+        if (index < 1 || index > max || shifted < 1 || shifted > max) {
+            into.append("#REF!");
+        } else if (column) {
+            appendColumn(shifted, into);
+        } else {
+            into.append(shifted);
+        }
+    }
+
+    /**
+     * Where the column letters of a token, after an optional $, end. -1 if
+     * it doesn't start with a letter, or has more than three.
+     */
+    private static int letters(CharSequence s, int start, int end) {
+        int i = start < end && s.charAt(start) == '$' ? start + 1 : start;
+        final int first = i;
+        while (i < end && isAsciiLetter(s.charAt(i))) {
+            i++;
+        }
+        return i == first || i - first > 3 ? -1 : i;
+    }
+
+    /**
+     * Where the row number of a token, after its letters and an optional $,
+     * ends. -1 if there isn't one.
+     */
+    private static int digits(CharSequence s, int start, int end) {
+        final int letters = letters(s, start, end);
+        int i = letters < 0 ? start : letters;
+        if (i < end && s.charAt(i) == '$') {
+            i++;
+        }
+        final int first = i;
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i == first ? -1 : i;
+    }
+
+    private static int column(CharSequence s, int start, int end) {
+        int column = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c != '$') {
+                column = column * 26 + (Character.toUpperCase(c) - 'A' + 1);
+            }
+        }
+        return column;
+    }
+
+    private static int row(CharSequence s, int start, int end) {
+        long row = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                row = Math.min(row * 10 + (c - '0'), Integer.MAX_VALUE);
+            }
+        }
+        return (int) row;
+    }
+
+    private static void appendColumn(int column, StringBuilder into) {
+        final int at = into.length();
+        for (int c = column; c > 0; c = (c - 1) / 26) {
+            into.insert(at, (char) ('A' + (c - 1) % 26));
+        }
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return i + 1;
+            }
+        }
+        return s.length();
+    }
+
+    private static int closingBracket(CharSequence s, int from) {
+        int depth = 0;
+        for (int i = from; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return s.length();
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isTokenChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '$' || c == '_' || c == '.' || c == '\\';
+    }
+}
@@ -0,0 +1,221 @@
+package com.rc;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the output of each sheet converted on disk, so a workbook sent
+ * again with only some sheets changed only has those converted.
+ *
+ * A sheet's output is filed under a fingerprint of everything it's made
+ * from: the CRC and size of its part, read from the ZIP's central
+ * directory without inflating anything, the same of the shared strings
+ * and styles parts, the workbook's date system, the sheet's name,
+ * position and projection, and the options that change how cells are
+ * written. Output found under the fingerprint is copied as it is; other
+ * sheets are converted, and what they write is kept as it goes out.
+ *
+ * Files are written to a temp name and moved into place when the sheet
+ * is done, so a failed or concurrent run never leaves a partial entry.
+ * Nothing is evicted: a reused entry has its modified time updated, so
+ * old ones can be pruned by age.
+ */
+final class SheetCache {
+
+    static final Logger logger = LogManager.getLogger(SheetCache.class.getName());
+
+    // Changed whenever the output for the same input changes
+    private static final String VERSION = "1";
+
+    private final Path dir;
+    // ZIP entry name -> "crc:size"
+    private final Map<String, String> entries;
+    // The fingerprint of what every sheet of the workbook depends on
+    private final String common;
+
+    // Whether the CRC of every part the sheets share is known, no sheet is cached if not
+    private final boolean complete;
+
+    private SheetCache(Path dir, Map<String, String> entries, String common, boolean complete) {
+        this.dir = dir;
+        this.entries = entries;
+        this.common = common;
+        this.complete = complete;
+    }
+
+    /**
+     * The cache for a workbook opened from options.file.
+     *
+     * @param stringsType content type of the workbook's shared strings part
+     * @param stylesType  content type of its styles part
+     */
+    static SheetCache open(Options options, OPCPackage pkg, String stringsType, String stylesType,
+                           boolean date1904) throws Exception {
+        final Path dir = Paths.get(options.cacheDir);
+        Files.createDirectories(dir);
+        final Map<String, String> entries = new HashMap<>();
+        try (var zip = new ZipFile(new File(options.file))) {
+            for (ZipArchiveEntry entry : (Iterable<ZipArchiveEntry>) zip.getEntries()::asIterator) {
+                if (entry.getCrc() >= 0 && entry.getSize() >= 0) {
+                    entries.put(entry.getName(), entry.getCrc() + ":" + entry.getSize());
+                }
+            }
+        }
+        final var common = new StringBuilder(VERSION);
+        common.append('|').append(Objects.requireNonNullElse(Main.class.getPackage().getImplementationVersion(), ""));
+        common.append('|').append(options.format);
+        common.append('|').append(options.rowGroupRows);
+        common.append('|').append(options.stringsDictionary != null);
+        common.append('|').append(Arrays.toString(options.columnTypes));
+        common.append('|').append(options.sampleRows);
+        common.append('|').append(options.cells);
+        common.append('|').append(options.zone);
+        common.append('|').append(date1904);
+        boolean complete = true;
+        for (String type : List.of(stringsType, stylesType)) {
+            for (PackagePart part : pkg.getPartsByContentType(type)) {
+                final String entry = entry(entries, part);
+                complete &= entry != null;
+                common.append('|').append(entry);
+            }
+        }
+        return new SheetCache(dir, entries, common.toString(), complete);
+    }
+
+    /**
+     * The fingerprint of a sheet, null when its part's CRC isn't known.
+     */
+    String key(PackagePart sheetPart, String sheetName, int sheetIndex, Projection.Sheet projection) {
+        final String part = entry(entries, sheetPart);
+        if (part == null || !complete) {
+            return null;
+        }
+        return sha256(common + '|' + part + '|' + sheetIndex + '|' + sheetName + '|' + projection);
+    }
+
+    /**
+     * The fingerprint TypeInference keeps a sheet's sampled types under, null
+     * when its part's CRC isn't known. As a sheet's output, they're from its
+     * part, the strings and styles and --sample-rows, not its name alone.
+     */
+    String schemaKey(PackagePart sheetPart, String sheetName) {
+        final String part = entry(entries, sheetPart);
+        if (part == null || !complete) {
+            return null;
+        }
+        return sha256("schema|" + common + '|' + part + '|' + sheetName);
+    }
+
+    /**
+     * Writes a sheet's output to out: from the cache when its key is there,
+     * otherwise by running the task and keeping what it writes. Returns
+     * whether the output was reused.
+     */
+    boolean convert(String key, WritableByteChannel out, SheetRunner.SheetTask task) throws Exception {
+        final Path cached = dir.resolve(key + ".out");
+        final FileChannel channel = open(cached);
+        if (channel != null) {
+            try (channel) {
+                final long size = channel.size();
+                for (long position = 0; position < size; ) {
+                    position += channel.transferTo(position, size - position, out);
+                }
+            }
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            logger.debug("Reused {}", cached);
+            return true;
+        }
+        final Path temp = Files.createTempFile(dir, key, ".part");
+        try {
+            try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                task.convert(new Tee(out, copy));
+            }
+            Files.move(temp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return false;
+    }
+
+    /**
+     * The cached output, null when the sheet hasn't been converted before or was pruned since.
+     */
+    private static FileChannel open(Path cached) throws IOException {
+        try {
+            return FileChannel.open(cached, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String entry(Map<String, String> entries, PackagePart part) {
+        return entries.get(part.getPartName().getName().substring(1));
+    }
+
+    private static String sha256(String s) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes to the output, and the same bytes to a copy.
+     */
+    private static final class Tee implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final FileChannel copy;
+
+        Tee(WritableByteChannel out, FileChannel copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            final var written = src.duplicate();
+            final int n = out.write(src);
+            written.limit(written.position() + n);
+            while (written.hasRemaining()) {
+                copy.write(written);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
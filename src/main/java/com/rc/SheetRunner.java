@@ -0,0 +1,154 @@
+package com.rc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the conversion of each sheet as a separate task.
+ *
+ * With one thread every sheet is converted inline, straight into the
+ * final output. With more threads each sheet is handed to a bounded
+ * pool and writes to its own spill file; the spill files are copied
+ * to the final output in submission order, so the result is byte for
+ * byte the same as a sequential run.
+ *
+ * In batch mode the pool is shared by every workbook, see BatchConverter.
+ * It's a ForkJoinPool then, and waiting for a sheet from one of its
+ * threads runs other queued tasks meanwhile.
+ */
+class SheetRunner {
+
+    static final Logger logger = LogManager.getLogger(SheetRunner.class.getName());
+
+    /**
+     * One unit of work - converts a single sheet into the given channel.
+     * The task owns everything it reads from (handler, input stream),
+     * anything else it touches must be safe for concurrent reads.
+     */
+    interface SheetTask {
+        void convert(WritableByteChannel out) throws Exception;
+    }
+
+    private final WritableByteChannel out;
+    private final ExecutorService pool;
+    // Whether the pool is this runner's, to be shut down when it's finished
+    private final boolean ownsPool;
+    private final List<Future<File>> pending = new ArrayList<>();
+    // Set once a sheet fails, so those not yet started skip their work
+    private volatile boolean abandoned;
+
+    SheetRunner(int threads, WritableByteChannel out) {
+        this.out = out;
+        if (threads > 1) {
+            this.pool = Executors.newFixedThreadPool(threads, Main.daemonThreads("sheet-"));
+        } else {
+            this.pool = null;
+        }
+        this.ownsPool = true;
+    }
+
+    /**
+     * Converts sheets on a pool shared with others, which is left running.
+     */
+    SheetRunner(ExecutorService pool, WritableByteChannel out) {
+        this.out = out;
+        this.pool = pool;
+        this.ownsPool = false;
+    }
+
+    /**
+     * A runner as the options ask for: on the batch's pool when the
+     * workbook is split by sheet, otherwise with options.threads.
+     */
+    static SheetRunner of(Options options, WritableByteChannel out) {
+        return options.sheetPool != null ? new SheetRunner(options.sheetPool, out) : new SheetRunner(options.threads, out);
+    }
+
+    void submit(SheetTask task) throws Exception {
+        if (pool == null) {
+            task.convert(out);
+            return;
+        }
+        pending.add(pool.submit(() -> {
+            if (abandoned) {
+                return null;
+            }
+            File spill = File.createTempFile("sheet", ".out");
+            try (FileChannel channel = FileChannel.open(spill.toPath(), StandardOpenOption.WRITE)) {
+                task.convert(channel);
+            } catch (Exception e) {
+                spill.delete();
+                throw e;
+            }
+            return spill;
+        }));
+    }
+
+    /**
+     * Waits for all submitted sheets and copies their output, in order.
+     * Sheets are copied as soon as they and all earlier ones are done.
+     */
+    void finish() throws Exception {
+        int copied = 0;
+        try {
+            for (Future<File> future : pending) {
+                copied++;
+                File spill;
+                try {
+                    spill = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                try (FileChannel channel = FileChannel.open(spill.toPath(), StandardOpenOption.READ)) {
+                    final long size = channel.size();
+                    for (long position = 0; position < size; ) {
+                        position += channel.transferTo(position, size - position, out);
+                    }
+                } finally {
+                    spill.delete();
+                }
+            }
+        } finally {
+            if (copied < pending.size()) {
+                discard(pending.subList(copied, pending.size()));
+            }
+            pending.clear();
+            if (pool != null && ownsPool) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Deletes the output of sheets that won't be copied, once an earlier
+     * one has failed. Sheets not yet started are skipped, the rest are
+     * waited for, as their spill files only exist once they're done.
+     */
+    private void discard(List<Future<File>> futures) {
+        abandoned = true;
+        for (Future<File> future : futures) {
+            try {
+                final File spill = future.get();
+                if (spill != null) {
+                    spill.delete();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // already reported by the sheet that failed first, or deleted its own output
+            }
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package com.rc;
+
+import static org.apache.poi.xssf.usermodel.XSSFRelation.NS_SPREADSHEETML;
+
+import org.apache.poi.util.XMLHelper;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a worksheet part straight from its UTF-8 bytes, for the few
+ * elements XlsxSheetHandler cares about: row, c, v, is, t and f.
+ *
+ * A SAX parser makes a String for every element name, compares it to
+ * each name the handler knows, checks its namespace and builds an
+ * Attributes for it. Here tags are matched byte by byte, attributes are
+ * read in place, and text is only decoded, entities included, for the
+ * values that are wanted. Everything else, other elements, comments and
+ * processing instructions, is skipped over.
+ *
+ * The scanner only takes documents it can read the same as SAX would:
+ * UTF-8, no DOCTYPE, and SpreadsheetML as the default namespace with no
+ * prefixes on its elements. That's decided from the part before
+ * sheetData, so anything else goes to SAX before an event is sent.
+ */
+final class SheetXmlScanner {
+
+    // Give up looking for sheetData after this much, and let SAX have it
+    private static final int MAX_HEAD = 16 << 20;
+
+    private static final byte[] SHEET_DATA = ascii("<sheetData");
+    private static final byte[] WORKSHEET = ascii("<worksheet");
+    private static final byte[] DOCTYPE = ascii("<!DOCTYPE");
+    private static final byte[] DEFAULT_NAMESPACE = ascii("xmlns=\"" + NS_SPREADSHEETML + "\"");
+    private static final byte[] DEFAULT_NAMESPACE_APOS = ascii("xmlns='" + NS_SPREADSHEETML + "'");
+
+    private final InputStream in;
+    private final XlsxSheetHandler handler;
+    private byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    private SheetXmlScanner(InputStream in, XlsxSheetHandler handler) {
+        this.in = in;
+        this.handler = handler;
+    }
+
+    /**
+     * Parses a worksheet part into the handler, with the scanner when the
+     * document allows it and SAX otherwise.
+     */
+    static void parse(InputStream sheetXml, XlsxSheetHandler handler) throws Exception {
+        final var scanner = new SheetXmlScanner(sheetXml, handler);
+        final int sheetData = scanner.readHead();
+        if (sheetData < 0) {
+            scanner.parseWithSax();
+        } else {
+            scanner.position = sheetData;
+            scanner.scan();
+        }
+    }
+
+    /**
+     * Parses with SAX, the head read so far first, then the rest of the stream.
+     */
+    static void parseWithSax(InputStream sheetXml, XlsxSheetHandler handler) throws Exception {
+        try {
+            final var parser = XMLHelper.newXMLReader();
+            parser.setContentHandler(handler);
+            parser.parse(new InputSource(sheetXml));
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+        }
+    }
+
+    private void parseWithSax() throws Exception {
+        parseWithSax(new SequenceInputStream(new ByteArrayInputStream(buffer, 0, limit), in), handler);
+    }
+
+    /**
+     * Reads up to the sheetData start tag and returns where it is, or -1
+     * when the document is one for SAX.
+     */
+    private int readHead() throws IOException {
+        int sheetData = -1;
+        while (sheetData < 0 && !eof && limit < MAX_HEAD) {
+            final int searched = Math.max(0, limit - SHEET_DATA.length);
+            fill(limit + 1);
+            sheetData = indexOf(SHEET_DATA, searched, limit);
+        }
+        if (sheetData < 0 || sheetData + SHEET_DATA.length >= limit
+                || isNameByte(buffer[sheetData + SHEET_DATA.length])) {
+            return -1;
+        }
+        int start = 0;
+        if (limit >= 3 && (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+            start = 3;
+        }
+        if (indexOf(DOCTYPE, start, sheetData) >= 0 || !isUtf8(start, sheetData)) {
+            return -1;
+        }
+        final int root = indexOf(WORKSHEET, start, sheetData);
+        final int rootEnd = root < 0 ? -1 : indexOf(new byte[]{'>'}, root, sheetData);
+        if (rootEnd < 0 || (indexOf(DEFAULT_NAMESPACE, root, rootEnd) < 0 && indexOf(DEFAULT_NAMESPACE_APOS, root, rootEnd) < 0)) {
+            return -1;
+        }
+        return sheetData;
+    }
+
+    /**
+     * Whether the XML declaration, if any, leaves the encoding as UTF-8.
+     */
+    private boolean isUtf8(int start, int end) {
+        if (indexOf(ascii("<?xml"), start, end) != start) {
+            return true;
+        }
+        final int declarationEnd = indexOf(ascii("?>"), start, end);
+        final int encoding = indexOf(ascii("encoding"), start, declarationEnd);
+        if (encoding < 0) {
+            return true;
+        }
+        int i = encoding + 8;
+        while (i < declarationEnd && buffer[i] != '"' && buffer[i] != '\'') {
+            i++;
+        }
+        final int close = i + 1 < declarationEnd ? indexOf(new byte[]{buffer[i]}, i + 1, declarationEnd) : -1;
+        if (close < 0) {
+            return false;
+        }
+        final var name = new String(buffer, i + 1, close - i - 1, StandardCharsets.US_ASCII);
+        return name.equalsIgnoreCase("UTF-8") || name.equalsIgnoreCase("UTF8");
+    }
+
+    /**
+     * Goes through sheetData, sending the handler its events.
+     */
+    private void scan() throws IOException {
+        while (true) {
+            // Between tags. Text only matters inside v and t, where it's read by readText
+            if (!skipTo('<')) {
+                return;
+            }
+            if (!ensure(2)) {
+                throw error("Document ends inside a tag");
+            }
+            final byte next = buffer[position + 1];
+            if (next == '/') {
+                if (endTag()) {
+                    return;
+                }
+            } else if (next == '?') {
+                skipPast("?>");
+            } else if (next == '!') {
+                if (startsWith("<!--")) {
+                    skipPast("-->");
+                } else if (startsWith("<![CDATA[")) {
+                    // Only text of v and t is wanted, and that's read by readText
+                    skipPast("]]>");
+                } else {
+                    throw error("Unexpected markup");
+                }
+            } else {
+                startTag();
+            }
+        }
+    }
+
+    /**
+     * Handles an end tag; true for the end of sheetData, when there's nothing more to read.
+     */
+    private boolean endTag() throws IOException {
+        final int end = tagEnd();
+        final int name = position + 2;
+        final int nameEnd = nameEnd(name, end);
+        position = end + 1;
+        switch (nameEnd - name) {
+            case 1 -> {
+                if (buffer[name] == 'v') {
+                    handler.endText();
+                } else if (buffer[name] == 't' && handler.inInlineString()) {
+                    handler.endText();
+                } else if (buffer[name] == 'c') {
+                    handler.endCell();
+                } else if (buffer[name] == 'f') {
+                    handler.endFormula();
+                }
+            }
+            case 2 -> {
+                if (buffer[name] == 'i' && buffer[name + 1] == 's') {
+                    handler.endInlineString();
+                }
+            }
+            case 3 -> {
+                if (buffer[name] == 'r' && buffer[name + 1] == 'o' && buffer[name + 2] == 'w') {
+                    handler.endRow();
+                }
+            }
+            case 9 -> {
+                if (matches(name, "sheetData")) {
+                    return true;
+                }
+            }
+            default -> {
+            }
+        }
+        return false;
+    }
+
+    private void startTag() throws IOException {
+        final int end = tagEnd();
+        final int name = position + 1;
+        final int nameEnd = nameEnd(name, end);
+        final boolean empty = buffer[end - 1] == '/';
+        final int length = nameEnd - name;
+        if (length == 1 && buffer[name] == 'c') {
+            cell(nameEnd, end);
+            position = end + 1;
+            if (empty) {
+                handler.endCell();
+            }
+        } else if (length == 1 && (buffer[name] == 'v' || buffer[name] == 't' && handler.inInlineString())) {
+            position = end + 1;
+            if (handler.startText() && !empty) {
+                readText(handler.text());
+            }
+            if (empty) {
+                handler.endText();
+            }
+        } else if (length == 1 && buffer[name] == 'f') {
+            position = end + 1;
+            if (!handler.readsFormulas()) {
+                // only the cached value is output
+                if (!empty) {
+                    skipPast("</f>");
+                }
+            } else if (formula(nameEnd, end) && !empty) {
+                readText(handler.formulaText());
+            } else if (empty) {
+                handler.endFormula();
+            } else {
+                skipPast("</f>");
+            }
+        } else if (length == 2 && buffer[name] == 'i' && buffer[name + 1] == 's') {
+            position = end + 1;
+            handler.startInlineString();
+            if (empty) {
+                handler.endInlineString();
+            }
+        } else if (length == 3 && buffer[name] == 'r' && buffer[name + 1] == 'o' && buffer[name + 2] == 'w') {
+            int row = -1;
+            for (int a = nameEnd; (a = nextAttribute(a, end)) >= 0; a = attributeEnd) {
+                if (attributeNameLength == 1 && buffer[a] == 'r') {
+                    row = parseInt(valueStart, attributeEnd - 1) - 1;
+                }
+            }
+            position = end + 1;
+            handler.startRow(row);
+            if (empty) {
+                handler.endRow();
+            }
+        } else {
+            position = end + 1;
+        }
+    }
+
+    private void cell(int attributes, int end) throws IOException {
+        int column = -1;
+        int style = 0;
+        var type = XlsxSheetHandler.xssfDataType.NUMBER;
+        int typeStart = -1;
+        int typeEnd = -1;
+        for (int a = attributes; (a = nextAttribute(a, end)) >= 0; a = attributeEnd) {
+            if (attributeNameLength != 1) {
+                continue;
+            }
+            final int valueEnd = attributeEnd - 1;
+            switch (buffer[a]) {
+                case 'r' -> column = parseColumn(valueStart, valueEnd);
+                case 's' -> style = parseInt(valueStart, valueEnd);
+                case 't' -> {
+                    typeStart = valueStart;
+                    typeEnd = valueEnd;
+                }
+                default -> {
+                }
+            }
+        }
+        if (!handler.startCell(column)) {
+            return;
+        }
+        if (typeStart >= 0) {
+            final int length = typeEnd - typeStart;
+            final byte first = buffer[typeStart];
+            if (length == 1 && first == 'b') {
+                type = XlsxSheetHandler.xssfDataType.BOOLEAN;
+            } else if (length == 1 && first == 'e') {
+                type = XlsxSheetHandler.xssfDataType.ERROR;
+            } else if (length == 1 && first == 's') {
+                type = XlsxSheetHandler.xssfDataType.SST_STRING;
+            } else if (length == 3 && matches(typeStart, "str") || length == 9 && matches(typeStart, "inlineStr")) {
+                type = XlsxSheetHandler.xssfDataType.INLINE_STRING;
+            }
+        }
+        handler.cellType(type, style);
+    }
+
+    /**
+     * Starts a formula from the attributes of its f tag, returns whether its text is wanted.
+     */
+    private boolean formula(int attributes, int end) throws IOException {
+        boolean shared = false;
+        boolean defines = false;
+        int sharedIndex = -1;
+        for (int a = attributes; (a = nextAttribute(a, end)) >= 0; a = attributeEnd) {
+            if (attributeNameLength == 1 && buffer[a] == 't') {
+                shared = attributeEnd - 1 - valueStart == 6 && matches(valueStart, "shared");
+            } else if (attributeNameLength == 2 && buffer[a] == 's' && buffer[a + 1] == 'i') {
+                sharedIndex = parseInt(valueStart, attributeEnd - 1);
+            } else if (attributeNameLength == 3 && matches(a, "ref")) {
+                defines = true;
+            }
+        }
+        return handler.startFormula(shared ? sharedIndex : -1, defines);
+    }
+
+    // Set by nextAttribute: the name's length, where the value starts, and just past its closing quote
+    private int attributeNameLength;
+    private int valueStart;
+    private int attributeEnd;
+
+    /**
+     * Finds the next attribute of a tag, from `from` to the tag's end at
+     * `end`. Returns where its name starts, -1 when there are no more.
+     */
+    private int nextAttribute(int from, int end) throws IOException {
+        int i = from;
+        while (i < end && isSpace(buffer[i])) {
+            i++;
+        }
+        if (i >= end || buffer[i] == '/' || buffer[i] == '>') {
+            return -1;
+        }
+        final int name = i;
+        while (i < end && buffer[i] != '=' && !isSpace(buffer[i])) {
+            i++;
+        }
+        attributeNameLength = i - name;
+        while (i < end && buffer[i] != '"' && buffer[i] != '\'') {
+            i++;
+        }
+        if (i >= end) {
+            throw error("Attribute without a value");
+        }
+        final byte quote = buffer[i];
+        valueStart = i + 1;
+        i = valueStart;
+        while (i < end && buffer[i] != quote) {
+            i++;
+        }
+        if (i >= end) {
+            throw error("Unterminated attribute value");
+        }
+        attributeEnd = i + 1;
+        return name;
+    }
+
+    /**
+     * Decodes the text of the open v, t or f element, up to its end tag,
+     * which is left to be read next.
+     */
+    private void readText(StringBuilder text) throws IOException {
+        while (true) {
+            if (position >= limit && !ensure(1)) {
+                throw error("Document ends inside a value");
+            }
+            final byte b = buffer[position];
+            if (b == '<') {
+                if (!ensure(9) || !startsWith("<![CDATA[")) {
+                    return;
+                }
+                position += 9;
+                readCData(text);
+            } else if (b == '&') {
+                readReference(text);
+            } else if (b >= 0) {
+                if (b == '\r') {
+                    // line ends are normalised to \n, as by any XML parser
+                    position++;
+                    if (ensure(1) && buffer[position] == '\n') {
+                        continue;
+                    }
+                    text.append('\n');
+                    continue;
+                }
+                text.append((char) b);
+                position++;
+            } else {
+                readMultiByte(text);
+            }
+        }
+    }
+
+    private void readCData(StringBuilder text) throws IOException {
+        while (true) {
+            if (!ensure(3)) {
+                throw error("Unterminated CDATA section");
+            }
+            final byte b = buffer[position];
+            if (b == ']' && buffer[position + 1] == ']' && buffer[position + 2] == '>') {
+                position += 3;
+                return;
+            }
+            if (b >= 0) {
+                text.append((char) b);
+                position++;
+            } else {
+                readMultiByte(text);
+            }
+        }
+    }
+
+    private void readMultiByte(StringBuilder text) throws IOException {
+        final int lead = buffer[position] & 0xFF;
+        final int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+        if (!ensure(length)) {
+            throw error("Truncated UTF-8 sequence");
+        }
+        int codePoint = lead & (0x3F >> (length - 1));
+        for (int i = 1; i < length; i++) {
+            codePoint = codePoint << 6 | (buffer[position + i] & 0x3F);
+        }
+        position += length;
+        text.appendCodePoint(codePoint);
+    }
+
+    /**
+     * Decodes &amp;name; or &amp;#n; into the text.
+     */
+    private void readReference(StringBuilder text) throws IOException {
+        ensure(12);
+        final int semicolon = indexOf(new byte[]{';'}, position, Math.min(limit, position + 12));
+        if (semicolon < 0) {
+            throw error("Malformed entity reference");
+        }
+        final int name = position + 1;
+        final int length = semicolon - name;
+        if (length > 1 && buffer[name] == '#') {
+            int codePoint;
+            if (buffer[name + 1] == 'x' || buffer[name + 1] == 'X') {
+                codePoint = Integer.parseInt(new String(buffer, name + 2, length - 2, StandardCharsets.US_ASCII), 16);
+            } else {
+                codePoint = parseInt(name + 1, semicolon);
+            }
+            text.appendCodePoint(codePoint);
+        } else if (length == 3 && matches(name, "amp")) {
+            text.append('&');
+        } else if (length == 2 && matches(name, "lt")) {
+            text.append('<');
+        } else if (length == 2 && matches(name, "gt")) {
+            text.append('>');
+        } else if (length == 4 && matches(name, "quot")) {
+            text.append('"');
+        } else if (length == 4 && matches(name, "apos")) {
+            text.append('\'');
+        } else {
+            throw error("Unknown entity &" + new String(buffer, name, length, StandardCharsets.US_ASCII) + ";");
+        }
+        position = semicolon + 1;
+    }
+
+    /**
+     * The position of the tag's closing '>', reading more of the document
+     * as needed. Quoted attribute values may hold a '>'.
+     */
+    private int tagEnd() throws IOException {
+        int i = position + 1;
+        byte quote = 0;
+        while (true) {
+            if (i >= limit) {
+                final int offset = i - position;
+                if (!ensure(offset + 1)) {
+                    throw error("Document ends inside a tag");
+                }
+                i = position + offset;
+            }
+            final byte b = buffer[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    private int nameEnd(int from, int end) {
+        int i = from;
+        while (i < end && isNameByte(buffer[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private int parseColumn(int from, int to) {
+        int column = 0;
+        for (int i = from; i < to; i++) {
+            final byte c = buffer[i];
+            if (c >= 'A' && c <= 'Z') {
+                column = column * 26 + (c - 'A' + 1);
+            } else if (c >= 'a' && c <= 'z') {
+                column = column * 26 + (c - 'a' + 1);
+            } else if (c != '$') {
+                break;
+            }
+        }
+        return column - 1;
+    }
+
+    private int parseInt(int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(new String(buffer, from, to - from, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private boolean matches(int at, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buffer[at + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(String ascii) throws IOException {
+        return ensure(ascii.length()) && matches(position, ascii);
+    }
+
+    /**
+     * Moves to the next occurrence of c, false at the end of the document.
+     */
+    private boolean skipTo(char c) throws IOException {
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == c) {
+                    position = i;
+                    return true;
+                }
+            }
+            position = limit;
+            if (!ensure(1)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves past the next occurrence of the marker.
+     */
+    private void skipPast(String marker) throws IOException {
+        final byte[] bytes = ascii(marker);
+        while (true) {
+            if (!ensure(bytes.length)) {
+                throw error("Document ends before " + marker);
+            }
+            final int found = indexOf(bytes, position, limit);
+            if (found >= 0) {
+                position = found + bytes.length;
+                return;
+            }
+            position = limit - bytes.length + 1;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes n bytes from position available, false if the document ends first.
+     */
+    private boolean ensure(int n) throws IOException {
+        if (limit - position >= n) {
+            return true;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (n > buffer.length) {
+            final var grown = new byte[Math.max(n, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        fill(n);
+        return limit - position >= n;
+    }
+
+    /**
+     * Reads until there are n bytes in the buffer, or the document ends.
+     */
+    private void fill(int n) throws IOException {
+        if (n > buffer.length) {
+            final var grown = new byte[Math.max(n, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        while (limit < n && !eof) {
+            final int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+
+    private static IOException error(String message) {
+        return new IOException("Malformed sheet XML: " + message);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean isNameByte(byte b) {
+        return b != ' ' && b != '>' && b != '/' && b != '\t' && b != '\r' && b != '\n' && b != '=';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
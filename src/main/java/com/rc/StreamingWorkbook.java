@@ -0,0 +1,413 @@
+package com.rc;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.openxml4j.exceptions.NotOfficeXmlFileException;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a workbook read from a stream, such as stdin or a message off
+ * a queue, without writing the package to disk first.
+ *
+ * OPCPackage needs random access to the whole ZIP. Here the entries are
+ * read in the order they arrive instead: the workbook, its relationships,
+ * styles and shared strings are loaded as they come, and a sheet is
+ * converted straight off the stream once all of those have been seen.
+ * POI writes them ahead of the sheets, so for its workbooks nothing is
+ * held back and the first rows are out before the rest has arrived.
+ * Excel writes the sheets right after the workbook part, ahead of
+ * styles.xml and sharedStrings.xml, so for a workbook saved by Excel
+ * every sheet is held back: nothing is written until the whole stream
+ * has been read, and the sheets take their inflated size in memory or
+ * on disk meanwhile.
+ *
+ * A sheet that comes before what it needs is held back, in memory up to
+ * a budget shared by all such sheets (--stream-buffer-mb) and in a temp
+ * file past it, then converted once the stream ends. So is one that arrives
+ * before a wanted sheet that precedes it in the workbook, so sheets are
+ * written in workbook order, as for a file. Sheets converted off the
+ * stream are converted one at a time; held back ones with options.threads.
+ * Both XLSX and XLSB packages are read; --strings poi is honoured for
+ * XLSX only, as POI reads sharedStrings.bin off a package.
+ */
+final class StreamingWorkbook {
+
+    static final Logger logger = LogManager.getLogger(StreamingWorkbook.class.getName());
+
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String PACKAGE_RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String WORKSHEET = RELATIONSHIPS_NS + "/worksheet";
+    private static final String STYLES = RELATIONSHIPS_NS + "/styles";
+    private static final String SHARED_STRINGS = RELATIONSHIPS_NS + "/sharedStrings";
+
+    // BIFF12 record of workbook.bin naming a sheet
+    private static final int BRT_BUNDLE_SH = 156;
+
+    private final Options options;
+    private final WritableByteChannel output;
+    private final RowSink.Factory sinks;
+
+    private boolean binary;
+    private boolean date1904;
+    // Sheet names and relationship ids, in workbook order. null until the workbook part is read
+    private List<String[]> sheetIds;
+    // Relationship id -> part name, and part name -> relationship type. null until read
+    private Map<String, String> targets;
+    private Map<String, String> types;
+
+    private StyleCache styles;
+    private SharedStrings strings;
+    // The styles, with the workbook's dates, once a sheet needs them
+    private StyleCache sheetStyles;
+
+    private final List<HeldBack> heldBack = new ArrayList<>();
+    // Sheets before this position have been converted off the stream or aren't wanted
+    private int convertedUpTo;
+    private long heldBackInMemory;
+
+    StreamingWorkbook(Options options, WritableByteChannel output, RowSink.Factory sinks) {
+        this.options = options;
+        this.output = output;
+        this.sinks = sinks;
+    }
+
+    void convert(InputStream in) throws Exception {
+        try {
+            convertParts(in);
+        } finally {
+            // what wasn't converted, when a sheet or the stream failed
+            heldBack.forEach(HeldBack::delete);
+        }
+    }
+
+    private void convertParts(InputStream in) throws Exception {
+        final var now = new SheetRunner(1, output);
+        try (var zip = new ZipArchiveInputStream(in, "UTF-8", true, true)) {
+            for (ZipArchiveEntry entry; (entry = zip.getNextZipEntry()) != null; ) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final String name = entry.getName();
+                final InputStream part = CloseShieldInputStream.wrap(zip);
+                if (name.equals("xl/workbook.xml") || name.equals("xl/workbook.bin")) {
+                    binary = name.endsWith(".bin");
+                    sheetIds = binary ? readBinaryWorkbook(part) : readWorkbook(part);
+                } else if (name.equals("xl/_rels/workbook.xml.rels") || name.equals("xl/_rels/workbook.bin.rels")) {
+                    readRelationships(part);
+                } else if (isPart(name, STYLES, "xl/styles.")) {
+                    final long start = System.nanoTime();
+                    final var counted = options.metrics.inflating(part);
+                    styles = name.endsWith(".bin") ? StyleCache.ofBinary(counted) : StyleCache.of(new StylesTable(counted));
+                    options.metrics.phase(ConversionMetrics.Phase.STYLES, start);
+                } else if (isPart(name, SHARED_STRINGS, "xl/sharedStrings.")) {
+                    final long start = System.nanoTime();
+                    strings = readStrings(name, options.metrics.inflating(part));
+                    options.metrics.phase(ConversionMetrics.Phase.STRINGS, start);
+                    options.metrics.strings(strings);
+                    Main.writeStringsDictionary(options, strings);
+                } else if (types != null ? WORKSHEET.equals(types.get(name)) : name.startsWith("xl/worksheets/")) {
+                    final int index = isReady() ? sheetIndex(name) : -1;
+                    if (!isReady()) {
+                        holdBack(name, part);
+                    } else if (index >= 0 && includesSheet(index)) {
+                        if (index == nextSheet()) {
+                            convertedUpTo = index + 1;
+                            now.submit(out -> convertSheet(part, index, out));
+                        } else {
+                            // a wanted sheet before it hasn't been converted yet
+                            holdBack(name, part);
+                        }
+                    }
+                }
+            }
+        }
+        now.finish();
+        if (sheetIds == null || types == null) {
+            throw new NotOfficeXmlFileException("Stream has no workbook part, not an XLSX or XLSB workbook");
+        }
+        if (strings == null) {
+            Main.writeStringsDictionary(options, null);
+        }
+        convertHeldBack();
+    }
+
+    /**
+     * Whether everything a sheet needs has been read.
+     */
+    private boolean isReady() {
+        return sheetIds != null && types != null
+                && (styles != null || !types.containsValue(STYLES))
+                && (strings != null || !types.containsValue(SHARED_STRINGS));
+    }
+
+    private boolean includesSheet(int index) {
+        return options.projection.includesSheet(sheetIds.get(index)[0], index);
+    }
+
+    /**
+     * The position of the first wanted sheet not converted off the stream,
+     * the only one that may be converted off it next to keep workbook order.
+     */
+    private int nextSheet() {
+        int index = convertedUpTo;
+        while (index < sheetIds.size() && !includesSheet(index)) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Whether the entry is the workbook's part of the given relationship,
+     * or before the relationships are known, has the usual name for it.
+     */
+    private boolean isPart(String name, String type, String usualName) {
+        if (types != null) {
+            return type.equals(types.get(name));
+        }
+        return name.equals(usualName + "xml") || name.equals(usualName + "bin");
+    }
+
+    /**
+     * The workbook position of a sheet part, -1 if the workbook doesn't list it.
+     */
+    private int sheetIndex(String partName) {
+        for (int i = 0; i < sheetIds.size(); i++) {
+            if (partName.equals(targets.get(sheetIds.get(i)[1]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void convertSheet(InputStream sheetPart, int index, WritableByteChannel out) throws Exception {
+        final String name = sheetIds.get(index)[0];
+        final var projection = options.projection.forSheet(name, index);
+        if (sheetStyles == null) {
+            sheetStyles = (styles != null ? styles : StyleCache.empty())
+                    .withDates(new SerialDates(options.zone, date1904));
+        }
+        final var part = Main.markable(options, sheetPart);
+        final var types = Main.sheetTypes(options, part, name, null, sheetStyles, strings, binary);
+        final var sink = sinks.open(out, projection.project(types));
+        if (binary) {
+            Main.convertXlsbSheet(part, name, sheetStyles, strings, types, projection, sink, options.metrics);
+        } else {
+            Main.convertXlsxSheet(part, name, sheetStyles, strings, types, projection, sink,
+                    options.scanXml, options.cells, options.metrics);
+        }
+    }
+
+    private void convertHeldBack() throws Exception {
+        if (heldBack.isEmpty()) {
+            return;
+        }
+        if (strings == null && types.containsValue(SHARED_STRINGS)) {
+            throw new NotOfficeXmlFileException("Workbook has shared strings, but they aren't in the stream");
+        }
+        for (HeldBack sheet : heldBack) {
+            sheet.index = sheetIndex(sheet.name);
+        }
+        heldBack.sort(Comparator.comparingInt(sheet -> sheet.index));
+        final var runner = new SheetRunner(options.threads, output);
+        for (HeldBack sheet : heldBack) {
+            if (sheet.index < 0 || !includesSheet(sheet.index)) {
+                sheet.delete();
+                continue;
+            }
+            runner.submit(out -> {
+                try (InputStream part = sheet.open()) {
+                    convertSheet(part, sheet.index, out);
+                } finally {
+                    sheet.delete();
+                }
+            });
+        }
+        runner.finish();
+    }
+
+    private void holdBack(String name, InputStream part) throws IOException {
+        logger.info("Holding back {}, it comes before the parts it needs", name);
+        final var sheet = new HeldBack(name);
+        final var buffer = new byte[1 << 16];
+        final var memory = new ByteArrayOutputStream();
+        OutputStream to = memory;
+        try {
+            for (int n; (n = part.read(buffer)) > 0; ) {
+                if (sheet.file == null && heldBackInMemory + n > options.streamBufferBytes) {
+                    sheet.file = File.createTempFile("sheet", ".part");
+                    to = new FileOutputStream(sheet.file);
+                    memory.writeTo(to);
+                    heldBackInMemory -= memory.size();
+                    memory.reset();
+                }
+                to.write(buffer, 0, n);
+                if (sheet.file == null) {
+                    heldBackInMemory += n;
+                }
+            }
+        } catch (IOException e) {
+            if (to != memory) {
+                to.close();
+            }
+            sheet.delete();
+            throw e;
+        }
+        if (to != memory) {
+            to.close();
+        }
+        if (sheet.file == null) {
+            sheet.bytes = memory.toByteArray();
+        }
+        heldBack.add(sheet);
+    }
+
+    private SharedStrings readStrings(String name, InputStream part) throws Exception {
+        final boolean binaryPart = name.endsWith(".bin");
+        if (!options.compactStrings && !binaryPart) {
+            return new ReadOnlySharedStringsTable(part);
+        }
+        if (!options.compactStrings) {
+            // POI only reads sharedStrings.bin from a package
+            logger.warn("--strings poi needs an XLSB file, reading the streamed one's strings as compact");
+        }
+        final var table = new CompactSharedStrings(options.stringsSpillBytes);
+        try {
+            if (binaryPart) {
+                table.readBinaryFrom(part);
+            } else {
+                table.readFrom(part);
+            }
+            table.finish();
+        } catch (Exception e) {
+            table.discard();
+            throw e;
+        }
+        return table;
+    }
+
+    private List<String[]> readWorkbook(InputStream part) throws Exception {
+        final List<String[]> sheets = new ArrayList<>();
+        final var reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("sheet".equals(localName)) {
+                    sheets.add(new String[]{attributes.getValue("name"), attributes.getValue(RELATIONSHIPS_NS, "id")});
+                } else if ("workbookPr".equals(localName)) {
+                    date1904 = SerialDates.isTrue(attributes.getValue("date1904"));
+                }
+            }
+        });
+        reader.parse(new InputSource(part));
+        return sheets;
+    }
+
+    private List<String[]> readBinaryWorkbook(InputStream part) throws IOException {
+        final List<String[]> sheets = new ArrayList<>();
+        final var reader = new Biff12Reader(part);
+        final var text = new StringBuilder();
+        while (reader.next()) {
+            if (reader.type() == SerialDates.BRT_WB_PROP) {
+                date1904 = SerialDates.isDate1904(reader);
+            }
+            if (reader.type() != BRT_BUNDLE_SH) {
+                continue;
+            }
+            // hsState, iTabID, then the relationship id, which may be null
+            int offset = 8;
+            String relationshipId = null;
+            text.setLength(0);
+            if (reader.int32(offset) == -1) {
+                offset += 4;
+            } else {
+                offset = reader.wideString(offset, text);
+                relationshipId = text.toString();
+            }
+            text.setLength(0);
+            reader.wideString(offset, text);
+            sheets.add(new String[]{text.toString(), relationshipId});
+        }
+        return sheets;
+    }
+
+    private void readRelationships(InputStream part) throws Exception {
+        final Map<String, String> ids = new HashMap<>();
+        final Map<String, String> partTypes = new HashMap<>();
+        final var reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if (PACKAGE_RELATIONSHIPS_NS.equals(uri) && "Relationship".equals(localName)
+                        && !"External".equals(attributes.getValue("TargetMode"))) {
+                    final String target = resolve(attributes.getValue("Target"));
+                    ids.put(attributes.getValue("Id"), target);
+                    partTypes.put(target, attributes.getValue("Type"));
+                }
+            }
+        });
+        reader.parse(new InputSource(part));
+        targets = ids;
+        types = partTypes;
+    }
+
+    /**
+     * The ZIP entry name of a relationship target, relative to xl/ unless absolute.
+     */
+    static String resolve(String target) {
+        try {
+            return URI.create("/xl/").resolve(target.replace(" ", "%20")).getPath().substring(1);
+        } catch (IllegalArgumentException e) {
+            return target.startsWith("/") ? target.substring(1) : "xl/" + target;
+        }
+    }
+
+    /**
+     * A sheet part read before the workbook was ready for it.
+     */
+    private static final class HeldBack {
+        final String name;
+        int index;
+        byte[] bytes;
+        File file;
+
+        HeldBack(String name) {
+            this.name = name;
+        }
+
+        InputStream open() throws IOException {
+            return file != null ? Files.newInputStream(file.toPath()) : new ByteArrayInputStream(bytes);
+        }
+
+        void delete() {
+            bytes = null;
+            if (file != null && file.exists() && !file.delete()) {
+                logger.warn("Couldn't delete {}", file);
+            }
+        }
+    }
+}
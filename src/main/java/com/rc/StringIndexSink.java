@@ -0,0 +1,74 @@
+package com.rc;
+
+import java.util.function.IntFunction;
+
+/**
+ * Writes shared strings as their index in the workbook's table, for
+ * --strings-dictionary; the table itself goes to the dictionary file,
+ * see Main.writeStringsDictionary. Everything else, inline strings
+ * included, is passed on as it is.
+ *
+ * The index is written as text, so a STRING column keeps its type in
+ * every format, and the sink underneath still keeps what it wrote by
+ * index.
+ */
+final class StringIndexSink implements RowSink {
+
+    private static final IntFunction<CharSequence> DIGITS = Integer::toString;
+
+    private final RowSink sink;
+
+    StringIndexSink(RowSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void sharedString(int column, int index, IntFunction<CharSequence> strings) {
+        sink.sharedString(column, index, DIGITS);
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+        sink.startSheet(sheetName);
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        sink.startRow(rowNum);
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        sink.cell(column, value);
+    }
+
+    @Override
+    public void number(int column, double value) {
+        sink.number(column, value);
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        sink.datetime(column, epochMillis);
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        sink.bool(column, value);
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        sink.endRow(rowNum);
+    }
+
+    @Override
+    public void endSheet() {
+        sink.endSheet();
+    }
+
+    @Override
+    public void flush() {
+        sink.flush();
+    }
+}
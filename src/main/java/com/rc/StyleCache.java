@@ -0,0 +1,182 @@
+package com.rc;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.model.Styles;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What each cell style of a workbook means for its numbers, and how its
+ * date serials become instants.
+ *
+ * Looking up a style and deciding whether its number format is a date
+ * is slow (XmlBeans and a regex), yet a workbook only has a handful of
+ * styles. So it's done once per workbook, and after that a cell's format
+ * is a single array read. Built once and then only read, a cache is
+ * shared by all the sheets of its workbook.
+ */
+final class StyleCache {
+
+    /**
+     * The number format of a style, and how its numbers are converted.
+     */
+    static final class CellFormat {
+        final short formatIndex;
+        final String formatString;
+        final boolean isDate;
+        // DATETIME for date formats, DECIMAL otherwise
+        final ColumnType type;
+
+        CellFormat(short formatIndex, String formatString) {
+            if (formatString == null) {
+                formatString = BuiltinFormats.getBuiltinFormat(formatIndex);
+            }
+            this.formatIndex = formatIndex;
+            this.formatString = formatString;
+            this.isDate = formatString != null && DateUtil.isADateFormat(formatIndex, formatString);
+            this.type = isDate ? ColumnType.DATETIME : ColumnType.DECIMAL;
+        }
+    }
+
+    // BIFF12 records of styles.bin
+    private static final int BRT_FMT = 44;
+    private static final int BRT_XF = 47;
+    private static final int BRT_BEGIN_CELL_XFS = 617;
+    private static final int BRT_END_CELL_XFS = 618;
+
+    // Used for cells with no style, in a workbook without styles
+    static final CellFormat GENERAL = new CellFormat((short) -1, null);
+
+    private final CellFormat[] byStyle;
+    // Filled as formats are seen, only for callers that know the format but not the style
+    private volatile CellFormat[] byFormat = new CellFormat[256];
+    private final SerialDates dates;
+
+    private StyleCache(CellFormat[] byStyle, SerialDates dates) {
+        this.byStyle = byStyle;
+        this.dates = dates;
+    }
+
+    private StyleCache(CellFormat[] byStyle) {
+        this(byStyle, new SerialDates(SerialDates.DEFAULT_ZONE, false));
+    }
+
+    /**
+     * The same styles, with dates in the given zone and date system.
+     */
+    StyleCache withDates(SerialDates dates) {
+        return new StyleCache(byStyle, dates);
+    }
+
+    SerialDates dates() {
+        return dates;
+    }
+
+    /**
+     * A cache without styles, that only fills in formats through
+     * {@link #forFormat(int, String)}. Format ids are per workbook, so
+     * each workbook needs its own.
+     */
+    static StyleCache empty() {
+        return new StyleCache(new CellFormat[0]);
+    }
+
+    /**
+     * Resolves every cell style of an XLSX workbook up front.
+     */
+    static StyleCache of(Styles styles) {
+        if (styles == null) {
+            return empty();
+        }
+        final var formats = new CellFormat[styles.getNumCellStyles()];
+        for (int i = 0; i < formats.length; i++) {
+            XSSFCellStyle style = styles.getStyleAt(i);
+            if (style == null) {
+                formats[i] = GENERAL;
+                continue;
+            }
+            formats[i] = new CellFormat(style.getDataFormat(), style.getDataFormatString());
+        }
+        return new StyleCache(formats);
+    }
+
+    /**
+     * Resolves every cell style of an XLSB workbook, read from its
+     * styles.bin part: the custom number formats, then the format of
+     * each cell XF.
+     */
+    static StyleCache ofBinary(InputStream stylesPart) throws IOException {
+        if (stylesPart == null) {
+            return empty();
+        }
+        final var reader = new Biff12Reader(stylesPart);
+        final Map<Integer, String> formatStrings = new HashMap<>();
+        final List<CellFormat> formats = new ArrayList<>();
+        final var text = new StringBuilder();
+        boolean inCellXfs = false;
+        while (reader.next()) {
+            switch (reader.type()) {
+                case BRT_FMT -> {
+                    text.setLength(0);
+                    reader.wideString(2, text);
+                    formatStrings.put(reader.uint16(0), text.toString());
+                }
+                case BRT_BEGIN_CELL_XFS -> inCellXfs = true;
+                case BRT_END_CELL_XFS -> inCellXfs = false;
+                case BRT_XF -> {
+                    if (inCellXfs) {
+                        final int formatIndex = reader.uint16(2);
+                        formats.add(new CellFormat((short) formatIndex, formatStrings.get(formatIndex)));
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        return new StyleCache(formats.toArray(new CellFormat[0]));
+    }
+
+    /**
+     * The format of a cell's s attribute. Missing or unknown styles fall
+     * back to the default style 0, as Excel does.
+     */
+    CellFormat forStyle(int styleIndex) {
+        if (styleIndex >= 0 && styleIndex < byStyle.length) {
+            return byStyle[styleIndex];
+        }
+        return byStyle.length > 0 ? byStyle[0] : GENERAL;
+    }
+
+    /**
+     * The format with the given id, for callers that are handed a format
+     * rather than a style, such as a DataFormatter. Entries are immutable, so
+     * racing threads at worst both compute the same one.
+     */
+    CellFormat forFormat(int formatIndex, String formatString) {
+        if (formatIndex < 0) {
+            return new CellFormat((short) formatIndex, formatString);
+        }
+        var formats = byFormat;
+        if (formatIndex < formats.length) {
+            final var format = formats[formatIndex];
+            if (format != null) {
+                return format;
+            }
+        } else {
+            final var grown = new CellFormat[Math.max(formatIndex + 1, formats.length * 2)];
+            System.arraycopy(formats, 0, grown, 0, formats.length);
+            formats = grown;
+        }
+        final var format = new CellFormat((short) formatIndex, formatString);
+        formats[formatIndex] = format;
+        byFormat = formats;
+        return format;
+    }
+}
@@ -0,0 +1,34 @@
+package com.rc;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Tab separated rows. Tabs, line breaks and backslashes inside values
+ * are written as backslash escapes, so every row stays on one line.
+ */
+class TsvRowSink extends DelimitedRowSink {
+
+    TsvRowSink(WritableByteChannel channel) {
+        super(channel, '\t');
+    }
+
+    @Override
+    protected void writeText(CharSequence value) {
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char escape = switch (value.charAt(i)) {
+                case '\t' -> 't';
+                case '\n' -> 'n';
+                case '\r' -> 'r';
+                case '\\' -> '\\';
+                default -> 0;
+            };
+            if (escape != 0) {
+                out.append(value, start, i).putAscii('\\').putAscii(escape);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, length);
+    }
+}
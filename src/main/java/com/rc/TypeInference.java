@@ -0,0 +1,239 @@
+package com.rc;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out the type of each column of a sheet from its first rows, for
+ * when --types isn't given.
+ *
+ * The sample is read by the sheet's own handler, with every column
+ * typed as its cells come, into a sink that only notes what it was sent:
+ * numbers, numbers with a date format, booleans or text. A column only
+ * ever sent one kind gets that type, dates mixed with plain numbers are
+ * DATETIME, booleans with numbers DECIMAL, and anything else, text or a
+ * column with nothing in the sample, is STRING, which takes any cell.
+ *
+ * The sample is bounded by rows and by bytes of the sheet part, the part
+ * being marked before it and reset after, so it's read from the start
+ * for the full pass without being opened again. A schema is kept by
+ * sheet name for the workbook, and with --cache written there under the
+ * sheet's fingerprint, see SheetCache.schemaKey, so later runs skip the
+ * sample until the sheet or what it depends on changes.
+ */
+final class TypeInference {
+
+    static final Logger logger = LogManager.getLogger(TypeInference.class.getName());
+
+    static final int DEFAULT_ROWS = 1000;
+    // Most of the sheet part read for a sample, and so held by the mark
+    static final int SAMPLE_BYTES = 4 << 20;
+
+    private static final int MAX_COLUMNS = 16384;
+    // Types for the sample, null for every column: each cell as it comes
+    private static final ColumnType[] AS_THEY_COME = new ColumnType[MAX_COLUMNS];
+
+    private static final int NUMBER = 1;
+    private static final int DATE = 2;
+    private static final int BOOLEAN = 4;
+    private static final int TEXT = 8;
+
+    private final int rows;
+    private final Path dir;
+    private final Map<String, ColumnType[]> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * @param rows     the most rows sampled from each sheet, after its header
+     * @param cacheDir where schemas are kept between runs, null for nowhere
+     */
+    TypeInference(int rows, String cacheDir) {
+        this.rows = rows;
+        this.dir = cacheDir == null ? null : Paths.get(cacheDir);
+    }
+
+    /**
+     * The column types of a sheet, sampled from part unless known already.
+     *
+     * @param part      a stream that supports mark, left at the start of the sheet
+     * @param schemaKey the sheet's fingerprint in --cache, null to keep its types only in memory
+     */
+    ColumnType[] columnTypes(InputStream part, String sheetName, String schemaKey, StyleCache styles,
+                             SharedStrings strings, boolean binary, boolean scanXml) throws Exception {
+        ColumnType[] types = schemas.get(sheetName);
+        if (types == null) {
+            types = load(schemaKey, sheetName);
+        }
+        if (types == null) {
+            types = sample(part, styles, strings, binary, scanXml);
+            logger.debug("Sampled {} as {}", sheetName, Arrays.toString(types));
+            if (types.length == 0) {
+                // nothing below the header to go on, a later sample may have
+                return types;
+            }
+            save(schemaKey, types);
+        }
+        schemas.put(sheetName, types);
+        return types;
+    }
+
+    private ColumnType[] sample(InputStream part, StyleCache styles, SharedStrings strings,
+                                boolean binary, boolean scanXml) throws Exception {
+        final var sample = new Sample(rows);
+        part.mark(SAMPLE_BYTES);
+        final var bounded = new BoundedInputStream(part, SAMPLE_BYTES);
+        bounded.setPropagateClose(false);
+        try {
+            if (binary) {
+                new XlsbSheetHandler(styles, strings, AS_THEY_COME, sample).parse(bounded);
+            } else {
+                final var handler = new XlsxSheetHandler(styles, strings, AS_THEY_COME, sample);
+                if (scanXml) {
+                    SheetXmlScanner.parse(bounded, handler);
+                } else {
+                    SheetXmlScanner.parseWithSax(bounded, handler);
+                }
+            }
+        } catch (Projection.EndOfRange e) {
+            // sampled enough rows
+        } catch (Exception e) {
+            // A sheet cut short at the byte limit ends in a parse error, but what was read counts.
+            // A sheet that's really malformed is reported by the full pass
+            logger.debug("Sample ended by {}", e.toString());
+        }
+        part.reset();
+        return sample.types();
+    }
+
+    private ColumnType[] load(String schemaKey, String sheetName) throws IOException {
+        if (dir == null || schemaKey == null) {
+            return null;
+        }
+        try {
+            final String[] names = Files.readString(file(schemaKey), StandardCharsets.UTF_8).trim().split(",");
+            final var types = new ColumnType[names.length];
+            for (int i = 0; i < names.length; i++) {
+                types[i] = ColumnType.valueOf(names[i]);
+            }
+            return types;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring the schema of {}, it isn't a list of types", sheetName);
+            return null;
+        }
+    }
+
+    private void save(String schemaKey, ColumnType[] types) throws IOException {
+        if (dir == null || schemaKey == null) {
+            return;
+        }
+        Files.createDirectories(dir);
+        final var text = new StringBuilder();
+        for (ColumnType type : types) {
+            text.append(text.length() > 0 ? "," : "").append(type);
+        }
+        final Path temp = Files.createTempFile(dir, "schema", ".part");
+        try {
+            Files.writeString(temp, text, StandardCharsets.UTF_8);
+            Files.move(temp, file(schemaKey), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path file(String schemaKey) {
+        return dir.resolve("schema-" + schemaKey + ".types");
+    }
+
+    /**
+     * Notes the kinds of value each column is sent, until it has seen enough rows.
+     */
+    private static final class Sample implements RowSink {
+        private final int limit;
+        private int rows;
+        private int[] kinds = new int[16];
+        private int width;
+
+        Sample(int limit) {
+            this.limit = limit;
+        }
+
+        private void seen(int column, int kind) {
+            if (column >= kinds.length) {
+                kinds = Arrays.copyOf(kinds, Math.max(column + 1, kinds.length * 2));
+            }
+            kinds[column] |= kind;
+            width = Math.max(width, column + 1);
+        }
+
+        ColumnType[] types() {
+            final var types = new ColumnType[width];
+            for (int c = 0; c < width; c++) {
+                types[c] = switch (kinds[c]) {
+                    case NUMBER, NUMBER | BOOLEAN -> ColumnType.DECIMAL;
+                    case DATE, DATE | NUMBER -> ColumnType.DATETIME;
+                    case BOOLEAN -> ColumnType.BOOLEAN;
+                    default -> ColumnType.STRING;
+                };
+            }
+            return types;
+        }
+
+        @Override
+        public void startSheet(String sheetName) {
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+        }
+
+        @Override
+        public void cell(int column, CharSequence value) {
+            seen(column, TEXT);
+        }
+
+        @Override
+        public void number(int column, double value) {
+            seen(column, NUMBER);
+        }
+
+        @Override
+        public void datetime(int column, long epochMillis) {
+            seen(column, DATE);
+        }
+
+        @Override
+        public void bool(int column, boolean value) {
+            seen(column, BOOLEAN);
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (++rows >= limit) {
+                throw new Projection.EndOfRange();
+            }
+        }
+
+        @Override
+        public void endSheet() {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -1,46 +1,164 @@
 package com.rc;
 
-import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
-import org.apache.poi.xssf.usermodel.XSSFComment;
+import com.rc.XlsxSheetHandler.xssfDataType;
+import org.apache.poi.xssf.model.SharedStrings;
 
-class XlsbSheetHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+import java.io.IOException;
+import java.io.InputStream;
 
-    private final StringBuilder sb = new StringBuilder();
+/**
+ * Reads the sheet part of an XLSB workbook record by record, and sends
+ * its rows to a sink.
+ *
+ * Cells are decoded from their BIFF12 records straight into typed values,
+ * a double, a shared string index or a boolean, without going through
+ * POI's XSSFBSheetHandler and DataFormatter, which turn every cell into a
+ * String first. Conversion is the same as for XLSX: the first row is the
+ * header and is skipped, and each value is converted to the type of its
+ * column.
+ */
+class XlsbSheetHandler {
 
-    public void startSheet(String sheetName) {
-        System.out.println( sheetName ) ;
+    // BIFF12 records of a sheet part
+    private static final int BRT_ROW_HDR = 0;
+    private static final int BRT_CELL_BLANK = 1;
+    private static final int BRT_CELL_RK = 2;
+    private static final int BRT_CELL_ERROR = 3;
+    private static final int BRT_CELL_BOOL = 4;
+    private static final int BRT_CELL_REAL = 5;
+    private static final int BRT_CELL_ST = 6;
+    private static final int BRT_CELL_ISST = 7;
+    private static final int BRT_FMLA_STRING = 8;
+    private static final int BRT_FMLA_NUM = 9;
+    private static final int BRT_FMLA_BOOL = 10;
+    private static final int BRT_FMLA_ERROR = 11;
+    private static final int BRT_END_SHEET_DATA = 146;
+
+    // Cell records start with the column, the style and a flags byte
+    private static final int CELL_HEADER = 8;
+
+    // What each cell record, by type, would be in an XLSX sheet, for the counts
+    private static final xssfDataType[] CELL_TYPES = {
+            null, null, xssfDataType.NUMBER, xssfDataType.ERROR, xssfDataType.BOOLEAN, xssfDataType.NUMBER,
+            xssfDataType.INLINE_STRING, xssfDataType.SST_STRING, xssfDataType.INLINE_STRING,
+            xssfDataType.NUMBER, xssfDataType.BOOLEAN, xssfDataType.ERROR};
+
+    private final StyleCache styles;
+    private final ColumnType[] outputTypes;
+    private final RowSink sink;
+    private final CellConverter converter;
+    private final Projection.Sheet projection;
+    private final StringBuilder text = new StringBuilder(64);
+
+    private ConversionMetrics.SheetCounts counts = new ConversionMetrics.SheetCounts(null);
+
+    private int rowNum;
+    private boolean inRow;
+    private boolean hasProcessedHeaders;
+    private boolean skipRow;
+
+    XlsbSheetHandler(StyleCache styles, SharedStrings strings, ColumnType[] outputTypes, RowSink sink) {
+        this(styles, strings, outputTypes, sink, Projection.Sheet.ALL);
     }
 
-    public void endSheet() {
-        System.out.println( "--------------------------------------------------------" ) ;
+    /**
+     * @param projection the rows and columns to convert. Once the last row has
+     *                   been seen the parse is ended with {@link Projection.EndOfRange}
+     */
+    XlsbSheetHandler(StyleCache styles, SharedStrings strings, ColumnType[] outputTypes, RowSink sink,
+                     Projection.Sheet projection) {
+        this.styles = styles;
+        this.outputTypes = outputTypes;
+        this.sink = sink;
+        this.converter = new CellConverter(sink, strings, styles.dates());
+        this.projection = projection;
     }
 
-    @Override
-    public void startRow(int rowNum) {
-        System.out.print( rowNum );
+    /**
+     * Counts the rows and cells output into counts, owned by this handler's thread.
+     */
+    void countInto(ConversionMetrics.SheetCounts counts) {
+        this.counts = counts;
     }
 
-    @Override
-    public void endRow(int rowNum) {
-        System.out.println();
+    /**
+     * Reads the sheet's cells. Doesn't start or end the sheet on the sink.
+     */
+    void parse(InputStream sheetPart) throws IOException {
+        final var reader = new Biff12Reader(sheetPart);
+        while (reader.next()) {
+            final int type = reader.type();
+            if (type == BRT_ROW_HDR) {
+                endRow();
+                startRow(reader.int32(0));
+            } else if (type <= BRT_FMLA_ERROR) {
+                cell(reader, type);
+            } else if (type == BRT_END_SHEET_DATA) {
+                break;
+            }
+        }
+        endRow();
     }
 
-    @Override
-    public void cell(String cellReference, String formattedValue, XSSFComment comment) {
-        System.out.print( "\t" + formattedValue );
+    private void startRow(int row) {
+        rowNum = row;
+        inRow = true;
+        skipRow = false;
+        if (hasProcessedHeaders) {
+            if (projection.pastEnd(rowNum)) {
+                throw new Projection.EndOfRange();
+            }
+            skipRow = !projection.wantsRow(rowNum);
+            if (!skipRow) {
+                sink.startRow(rowNum);
+            }
+        }
     }
 
-    @Override
-    public void headerFooter(String text, boolean isHeader, String tagName) {
-        if (isHeader) {
-            System.out.print( "\n" + text );
-        } else {
-            System.out.print(  text + "\n" );
+    private void endRow() {
+        if (!inRow) {
+            return;
+        }
+        inRow = false;
+        if (hasProcessedHeaders) {
+            if (!skipRow) {
+                sink.endRow(rowNum);
+                counts.rows++;
+            }
+            if (rowNum >= projection.lastRow) {
+                throw new Projection.EndOfRange();
+            }
         }
+        hasProcessedHeaders = true;
     }
 
-    @Override
-    public String toString() {
-        return sb.toString();
+    private void cell(Biff12Reader reader, int type) throws IOException {
+        if (!hasProcessedHeaders || skipRow || type == BRT_CELL_BLANK) {
+            return;
+        }
+        final int sourceColumn = reader.int32(0);
+        final int column = projection.column(sourceColumn);
+        if (column < 0) {
+            return;
+        }
+        counts.cell(CELL_TYPES[type]);
+        // Columns past the declared types are passed through as text
+        final var expected = sourceColumn < outputTypes.length ? outputTypes[sourceColumn] : ColumnType.STRING;
+        switch (type) {
+            case BRT_CELL_RK -> converter.number(column, expected, reader.rk(CELL_HEADER),
+                    styles.forStyle(reader.uint24(4)));
+            case BRT_CELL_REAL, BRT_FMLA_NUM -> converter.number(column, expected, reader.float64(CELL_HEADER),
+                    styles.forStyle(reader.uint24(4)));
+            case BRT_CELL_ISST -> converter.sharedString(column, expected, reader.int32(CELL_HEADER));
+            case BRT_CELL_BOOL, BRT_FMLA_BOOL -> converter.bool(column, expected, reader.uint8(CELL_HEADER) != 0);
+            case BRT_CELL_ST, BRT_FMLA_STRING -> {
+                text.setLength(0);
+                reader.wideString(CELL_HEADER, text);
+                converter.string(column, expected, text);
+            }
+            case BRT_CELL_ERROR, BRT_FMLA_ERROR -> converter.error(column);
+            default -> {
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -4,7 +4,6 @@ package com.rc;
 import org.apache.poi.ss.formula.ConditionalFormattingEvaluator;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.DateUtil;
 import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.util.CellAddress;
 import org.apache.poi.ss.util.CellReference;
@@ -14,16 +13,23 @@ import org.apache.poi.xssf.usermodel.XSSFComment;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
 
 class XlsxDataFormatter extends DataFormatter {
     final char columnTypes[] ;
     final NumberFormat numberFormat = new DecimalFormat("0.#############");
+    final StyleCache styles;
 
     XlsxDataFormatter( char columnTypes[] ) {
+        this(columnTypes, StyleCache.empty());
+    }
+
+    /**
+     * @param styles the workbook's style cache, remembers which formats are dates
+     */
+    XlsxDataFormatter( char columnTypes[], StyleCache styles ) {
         this.columnTypes = new char[columnTypes.length];
-        System.arraycopy(this.columnTypes,0,columnTypes,0,columnTypes.length);
+        System.arraycopy(columnTypes,0,this.columnTypes,0,columnTypes.length);
+        this.styles = styles;
     }
 
     protected int getColumnIndex() {
@@ -42,10 +48,8 @@ class XlsxDataFormatter extends DataFormatter {
         return super.formatCellValue(cell, evaluator, cfEvaluator);
     }
     public String formatRawCellContents(double value, int formatIndex, String formatString) {
-        if(DateUtil.isADateFormat(formatIndex,formatString)){
-            final var tf = DateTimeFormatter.ISO_INSTANT;
-            Date d = DateUtil.getJavaDate(value);
-            return tf.format(d.toInstant());
+        if(styles.forFormat(formatIndex,formatString).isDate && SerialDates.isValid(value)){
+            return SerialDates.isoInstant(styles.dates().toEpochMillis(value));
         }
         return numberFormat.format(value);
     }
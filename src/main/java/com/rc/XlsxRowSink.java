@@ -0,0 +1,498 @@
+package com.rc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes rows back out as an XLSX workbook, the other way to
+ * XlsxSheetHandler.
+ *
+ * The sheet XML is written as the rows come, deflated straight into the
+ * ZIP on the channel, so memory is the same whatever the number of rows.
+ * SXSSF, by comparison, keeps a window of rows as objects, writes the
+ * whole sheet to a temporary file and only zips it at the end. The parts
+ * describing the workbook follow the sheet once it ends.
+ *
+ * Text goes into the shared strings table as it's built: a new entry is
+ * appended to a temporary file, copied into the ZIP at the end. Repeats
+ * are found with a hash table of a fixed size, direct mapped as in
+ * EncodedStrings, so text it has lost track of is entered again, which
+ * only costs space in the table. Shared strings of the workbook read are
+ * looked up by their index first.
+ *
+ * Numbers and booleans are written as they are; datetimes as serials, in
+ * local time of the zone they were read in, with a yyyy-mm-dd hh:mm:ss
+ * style. Rows are numbered as they're written, under a header row of
+ * the columns' names, A, B, ... as in ParquetRowSink, which is what the
+ * reader skips. A sheet holds 1,048,576 rows, past that they go on to
+ * another sheet named after the first, and cells past column XFD are
+ * dropped.
+ */
+final class XlsxRowSink implements RowSink {
+
+    static final Logger logger = LogManager.getLogger(XlsxRowSink.class.getName());
+
+    static final int MAX_ROWS = 1 << 20;
+    static final int MAX_COLUMNS = 1 << 14;
+    static final int DEFAULT_SLOTS = 1 << 14;
+    private static final int MAX_SHEET_NAME = 31;
+    // Width of a DATETIME column, so the date shows rather than ####
+    private static final int DATETIME_WIDTH = 19;
+    // Style of DATETIME cells in STYLES, the rest have the default, General
+    private static final int DATETIME_STYLE = 1;
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String DOCUMENT = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String CONTENT = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+    private static final String STYLES = XML
+            + "<styleSheet xmlns=\"" + MAIN + "\">"
+            + "<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"yyyy\\-mm\\-dd hh:mm:ss\"/></numFmts>"
+            + "<fonts count=\"1\"><font><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font></fonts>"
+            + "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill></fills>"
+            + "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+            + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+            + "<cellXfs count=\"2\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>"
+            + "<xf numFmtId=\"164\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/></cellXfs>"
+            + "<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>"
+            + "</styleSheet>";
+
+    private final ZipOutputStream zip;
+    private final OutputBuffer out;
+    private final ColumnType[] types;
+    private final SerialDates dates;
+    private final NumberText numberText = new NumberText();
+    private final int maxRows;
+    // Scratch space for dates before Excel's epoch, written as text
+    private final byte[] iso = new byte[32];
+    // Column letters, by column
+    private byte[][] columnRefs = new byte[0][];
+    // Digits of the row being written
+    private final byte[] rowRef = new byte[10];
+    private int rowRefLength;
+    private int sheetRows;
+    private String sheetName = "Sheet1";
+    private final List<String> sheetNames = new ArrayList<>();
+    private boolean warnedWide;
+
+    // The shared strings table, written to a temporary file as entries are added
+    private FileChannel stringsChannel;
+    private OutputBuffer strings;
+    private int uniqueStrings;
+    private long stringCells;
+    // Text of recent entries and their index, by hash
+    private final String[] keys = new String[DEFAULT_SLOTS];
+    private final int[] keyIndexes = new int[DEFAULT_SLOTS];
+    // index + 1 of the source's shared strings and the entry each became, by index
+    private final int[] sourceTags = new int[DEFAULT_SLOTS];
+    private final int[] sourceIndexes = new int[DEFAULT_SLOTS];
+
+    /**
+     * @param zone the zone datetimes were read in, they're written in its local time
+     */
+    XlsxRowSink(WritableByteChannel channel, ColumnType[] columnTypes, ZoneId zone) {
+        this(channel, columnTypes, zone, MAX_ROWS);
+    }
+
+    XlsxRowSink(WritableByteChannel channel, ColumnType[] columnTypes, ZoneId zone, int maxRows) {
+        this.zip = new ZipOutputStream(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+        // Rows come out of the parser faster than a higher level deflates them
+        zip.setLevel(Deflater.BEST_SPEED);
+        this.out = new OutputBuffer(new ZipChannel(zip));
+        this.types = columnTypes;
+        this.dates = new SerialDates(zone, false);
+        this.maxRows = maxRows;
+    }
+
+    @Override
+    public void startSheet(String sheetName) {
+        this.sheetName = sheetNameOf(sheetName, "");
+        try {
+            final File stringsFile = File.createTempFile("sst", ".xml");
+            stringsChannel = FileChannel.open(stringsFile.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        strings = new OutputBuffer(stringsChannel);
+        startPart();
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        if (sheetRows == maxRows) {
+            endPart();
+            startPart();
+        }
+        beginRow();
+    }
+
+    private void beginRow() {
+        sheetRows++;
+        rowRefLength = 0;
+        for (int n = sheetRows; n > 0; n /= 10) {
+            rowRef[rowRefLength++] = (byte) ('0' + n % 10);
+        }
+        for (int i = 0, j = rowRefLength - 1; i < j; i++, j--) {
+            final byte b = rowRef[i];
+            rowRef[i] = rowRef[j];
+            rowRef[j] = b;
+        }
+        out.putAscii("<row r=\"").put(rowRef, 0, rowRefLength).putAscii("\">");
+    }
+
+    @Override
+    public void cell(int column, CharSequence value) {
+        if (fits(column)) {
+            stringCell(column, entry(value));
+        }
+    }
+
+    @Override
+    public void sharedString(int column, int index, IntFunction<CharSequence> strings) {
+        if (!fits(column)) {
+            return;
+        }
+        final int slot = index & (sourceTags.length - 1);
+        if (sourceTags[slot] != index + 1) {
+            sourceTags[slot] = index + 1;
+            sourceIndexes[slot] = entry(strings.apply(index));
+        }
+        stringCell(column, sourceIndexes[slot]);
+    }
+
+    @Override
+    public void number(int column, double value) {
+        // Excel has no cell for NaN or infinity
+        if (!fits(column) || !Double.isFinite(value)) {
+            return;
+        }
+        startCell(column);
+        out.putAscii("\"><v>");
+        numberText.appendExact(out, value);
+        out.putAscii("</v></c>");
+    }
+
+    @Override
+    public void datetime(int column, long epochMillis) {
+        if (!fits(column)) {
+            return;
+        }
+        final double serial = dates.toSerial(epochMillis);
+        if (!SerialDates.isValid(serial)) {
+            stringCell(column, entry(new String(iso, 0, SerialDates.isoInstant(epochMillis, iso), StandardCharsets.US_ASCII)));
+            return;
+        }
+        startCell(column);
+        out.putAscii("\" s=\"").putAscii((char) ('0' + DATETIME_STYLE)).putAscii("\"><v>");
+        numberText.appendExact(out, serial);
+        out.putAscii("</v></c>");
+    }
+
+    @Override
+    public void bool(int column, boolean value) {
+        if (fits(column)) {
+            startCell(column);
+            out.putAscii(value ? "\" t=\"b\"><v>1</v></c>" : "\" t=\"b\"><v>0</v></c>");
+        }
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        out.putAscii("</row>");
+    }
+
+    /**
+     * Ends the last sheet part and writes the rest of the workbook.
+     */
+    @Override
+    public void endSheet() {
+        endPart();
+        try {
+            writeStrings();
+            putEntry("xl/styles.xml", STYLES);
+            writeWorkbook();
+            zip.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+        try {
+            zip.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean fits(int column) {
+        if (column < MAX_COLUMNS) {
+            return true;
+        }
+        if (!warnedWide) {
+            warnedWide = true;
+            logger.warn("{} has cells past column XFD, the last of an XLSX sheet, they're left out", sheetName);
+        }
+        return false;
+    }
+
+    /**
+     * Writes a cell's start up to the end of its reference, the caller closes the attribute.
+     */
+    private void startCell(int column) {
+        if (column >= columnRefs.length) {
+            final var refs = new byte[Math.min(MAX_COLUMNS, Math.max(column + 1, columnRefs.length * 2))][];
+            System.arraycopy(columnRefs, 0, refs, 0, columnRefs.length);
+            columnRefs = refs;
+        }
+        byte[] ref = columnRefs[column];
+        if (ref == null) {
+            ref = columnRefs[column] = XlsxSheetHandler.columnName(column).getBytes(StandardCharsets.US_ASCII);
+        }
+        out.putAscii("<c r=\"").put(ref, 0, ref.length).put(rowRef, 0, rowRefLength);
+    }
+
+    private void stringCell(int column, int index) {
+        startCell(column);
+        out.putAscii("\" t=\"s\"><v>");
+        numberText.appendLong(out, index, 1);
+        out.putAscii("</v></c>");
+        stringCells++;
+    }
+
+    /**
+     * The index of text in the shared strings table, added unless the hash table still has it.
+     */
+    private int entry(CharSequence text) {
+        int hash = 0;
+        for (int i = 0; i < text.length(); i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (keys.length - 1);
+        final String key = keys[slot];
+        if (key != null && key.contentEquals(text)) {
+            return keyIndexes[slot];
+        }
+        final int index = uniqueStrings++;
+        strings.putAscii(needsPreserve(text) ? "<si><t xml:space=\"preserve\">" : "<si><t>");
+        escape(strings, text);
+        strings.putAscii("</t></si>");
+        if (text.length() <= EncodedStrings.MAX_CHARS) {
+            keys[slot] = text.toString();
+            keyIndexes[slot] = index;
+        }
+        return index;
+    }
+
+    private static boolean needsPreserve(CharSequence text) {
+        final int n = text.length();
+        return n > 0 && (Character.isWhitespace(text.charAt(0)) || Character.isWhitespace(text.charAt(n - 1)));
+    }
+
+    /**
+     * Writes text as XML character data. Characters XML can't hold, and
+     * an underscore that would read as one of them, take the _xHHHH_
+     * escape Excel uses, which CompactSharedStrings undoes.
+     */
+    static void escape(OutputBuffer out, CharSequence text) {
+        final int n = text.length();
+        int plain = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = text.charAt(i);
+            final String entity = switch (c) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '_' -> isEscape(text, i) ? "_x005F_" : null;
+                default -> (c < 0x20 && c != '\t' && c != '\n') || c == 0xFFFE || c == 0xFFFF ? "" : null;
+            };
+            if (entity == null) {
+                continue;
+            }
+            out.append(text, plain, i);
+            if (entity.isEmpty()) {
+                out.putAscii("_x").putAscii(String.format("%04X", (int) c)).putAscii('_');
+            } else {
+                out.putAscii(entity);
+            }
+            plain = i + 1;
+        }
+        out.append(text, plain, n);
+    }
+
+    private static boolean isEscape(CharSequence text, int i) {
+        if (i + 6 >= text.length() || text.charAt(i + 1) != 'x' || text.charAt(i + 6) != '_') {
+            return false;
+        }
+        for (int j = i + 2; j < i + 6; j++) {
+            if (Character.digit(text.charAt(j), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A name Excel takes for a sheet, with a suffix for the sheets a long one goes on to.
+     */
+    static String sheetNameOf(String name, String suffix) {
+        String clean = name == null || name.isBlank() ? "Sheet1" : name.replaceAll("[\\[\\]:*?/\\\\]", "_");
+        clean = clean.substring(0, Math.min(clean.length(), MAX_SHEET_NAME - suffix.length()));
+        return clean + suffix;
+    }
+
+    /**
+     * Starts the next sheet part.
+     */
+    private void startPart() {
+        final int number = sheetNames.size() + 1;
+        sheetNames.add(number == 1 ? sheetName : sheetNameOf(sheetName, " (" + number + ")"));
+        sheetRows = 0;
+        try {
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + number + ".xml"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        out.putAscii(XML).putAscii("<worksheet xmlns=\"" + MAIN + "\" xmlns:r=\"" + DOCUMENT + "\">");
+        boolean cols = false;
+        for (int c = 0; c < Math.min(types.length, MAX_COLUMNS); c++) {
+            if (types[c] == ColumnType.DATETIME) {
+                if (!cols) {
+                    out.putAscii("<cols>");
+                    cols = true;
+                }
+                final String index = Integer.toString(c + 1);
+                out.putAscii("<col min=\"" + index + "\" max=\"" + index + "\" width=\"" + DATETIME_WIDTH
+                        + "\" customWidth=\"1\"/>");
+            }
+        }
+        if (cols) {
+            out.putAscii("</cols>");
+        }
+        out.putAscii("<sheetData>");
+        // The first row is read as the header, see XlsxSheetHandler, so the rows written start on the second
+        beginRow();
+        for (int c = 0; c < Math.min(types.length, MAX_COLUMNS); c++) {
+            stringCell(c, entry(XlsxSheetHandler.columnName(c)));
+        }
+        out.putAscii("</row>");
+    }
+
+    private void endPart() {
+        out.putAscii("</sheetData></worksheet>");
+        out.flush();
+        try {
+            zip.closeEntry();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies the entries gathered in the temporary file into the ZIP, between the table's start and end.
+     */
+    private void writeStrings() throws IOException {
+        strings.flush();
+        zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+        zip.write((XML + "<sst xmlns=\"" + MAIN + "\" count=\"" + stringCells + "\" uniqueCount=\"" + uniqueStrings + "\">")
+                .getBytes(StandardCharsets.UTF_8));
+        final var buffer = ByteBuffer.allocate(1 << 16);
+        try (var channel = stringsChannel) {
+            for (long position = 0; channel.read(buffer.clear(), position) > 0; position += buffer.position()) {
+                zip.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        zip.write("</sst>".getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private void writeWorkbook() throws IOException {
+        final var workbook = new OutputBuffer(new ZipChannel(zip), 1 << 12);
+        final var rels = new StringBuilder(XML).append("<Relationships xmlns=\"" + RELATIONSHIPS + "\">");
+        final var types = new StringBuilder(XML)
+                .append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+                .append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+                .append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+                .append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"" + CONTENT + "sheet.main+xml\"/>")
+                .append("<Override PartName=\"/xl/styles.xml\" ContentType=\"" + CONTENT + "styles+xml\"/>")
+                .append("<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"" + CONTENT + "sharedStrings+xml\"/>");
+        zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+        workbook.putAscii(XML).putAscii("<workbook xmlns=\"" + MAIN + "\" xmlns:r=\"" + DOCUMENT + "\"><sheets>");
+        for (int i = 1; i <= sheetNames.size(); i++) {
+            workbook.putAscii("<sheet name=\"").append(sheetNames.get(i - 1).replace("&", "&amp;")
+                    .replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;"));
+            workbook.putAscii("\" sheetId=\"" + i + "\" r:id=\"rId" + i + "\"/>");
+            rels.append("<Relationship Id=\"rId").append(i).append("\" Type=\"" + DOCUMENT + "/worksheet\" Target=\"worksheets/sheet")
+                    .append(i).append(".xml\"/>");
+            types.append("<Override PartName=\"/xl/worksheets/sheet").append(i)
+                    .append(".xml\" ContentType=\"" + CONTENT + "worksheet+xml\"/>");
+        }
+        workbook.putAscii("</sheets></workbook>").flush();
+        zip.closeEntry();
+        final int n = sheetNames.size();
+        rels.append("<Relationship Id=\"rId").append(n + 1).append("\" Type=\"" + DOCUMENT + "/styles\" Target=\"styles.xml\"/>")
+                .append("<Relationship Id=\"rId").append(n + 2)
+                .append("\" Type=\"" + DOCUMENT + "/sharedStrings\" Target=\"sharedStrings.xml\"/>")
+                .append("</Relationships>");
+        putEntry("xl/_rels/workbook.xml.rels", rels.toString());
+        putEntry("_rels/.rels", XML + "<Relationships xmlns=\"" + RELATIONSHIPS + "\">"
+                + "<Relationship Id=\"rId1\" Type=\"" + DOCUMENT + "/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                + "</Relationships>");
+        putEntry("[Content_Types].xml", types.append("</Types>").toString());
+    }
+
+    private void putEntry(String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    /**
+     * Hands an OutputBuffer's bytes to the ZIP entry being written.
+     */
+    private static final class ZipChannel implements WritableByteChannel {
+        private final ZipOutputStream zip;
+
+        ZipChannel(ZipOutputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            final int n = src.remaining();
+            zip.write(src.array(), src.arrayOffset() + src.position(), n);
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
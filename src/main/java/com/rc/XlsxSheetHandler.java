@@ -18,10 +18,6 @@ package com.rc;
 
 import static org.apache.poi.xssf.usermodel.XSSFRelation.NS_SPREADSHEETML;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 import org.apache.logging.log4j.LogManager;
@@ -66,15 +62,15 @@ public class XlsxSheetHandler extends DefaultHandler {
     }
 
     /**
-     * Table with the styles used for formatting
+     * The workbook's styles, resolved to their number formats
      */
-    private final Styles stylesTable;
+    private final StyleCache stylesTable;
 
     /**
-     * Read only access to the shared strings table, for looking
-     *  up (most) string cell's contents
+     * Turns cell values into the types of their columns, looking up
+     *  shared strings as needed
      */
-    private final SharedStrings sharedStringsTable;
+    private final CellConverter converter;
 
 
     // Set when V start element is seen
@@ -87,43 +83,106 @@ public class XlsxSheetHandler extends DefaultHandler {
     // Set when cell start element is seen;
     // used when cell close element is seen.
     private xssfDataType nextDataType;
-    private boolean isFormula ;
+    // si of the cell's shared formula, -1 if it has its own, and whether the cell defines it
+    private int sharedIndex;
+    private boolean definesShared;
 
     // Used to format numeric cell values.
-    private short formatIndex;
-    private String formatString;
+    private StyleCache.CellFormat cellFormat;
     private int rowNum;
     private int nextRowNum;      // some sheets do not have rowNums, Excel can read them so we should try to handle them correctly as well
     private int previousColumnIndex;
+    private int columnIndex;
     private String cellRef;
+    // Set for rows and cells outside the projection, their content is ignored
+    private boolean skipRow;
+    private boolean skipCell;
 
     // Gathers characters as they are seen.
     private final StringBuilder value = new StringBuilder(64);
     private final StringBuilder formula = new StringBuilder(64);
 
+    // Whether formula cells are output as their formula, rather than their cached value
+    private boolean formulas;
+    private final SharedFormulas sharedFormulas = new SharedFormulas();
+
     private boolean hasProcessedHeaders ;
 
     private final ColumnType outputTypes[] ;
 
-    private NumberFormat numberFormat = new DecimalFormat("0.#############");
+    // Where the converted rows are written
+    private final RowSink sink;
+
+    // The rows and columns wanted from this sheet
+    private final Projection.Sheet projection;
+
+    // Rows and cells output, by type
+    private ConversionMetrics.SheetCounts counts = new ConversionMetrics.SheetCounts(null);
+
     /**
      * Accepts objects needed while parsing.
      *
-     * @param styles  Table of styles
+     * @param styles  Formats of the workbook's styles
      * @param strings Table of shared strings
+     * @param sink    Destination of the converted rows
+     */
+    public XlsxSheetHandler(
+            StyleCache styles,
+            SharedStrings strings,
+            ColumnType outputTypes[],
+            RowSink sink) {
+        this(styles, strings, outputTypes, sink, Projection.Sheet.ALL);
+    }
+
+    /**
+     * Accepts objects needed while parsing.
+     *
+     * @param styles     Formats of the workbook's styles
+     * @param strings    Table of shared strings
+     * @param sink       Destination of the converted rows
+     * @param projection The rows and columns to convert, the rest are skipped
      */
     public XlsxSheetHandler(
-            Styles styles,
+            StyleCache styles,
             SharedStrings strings,
-            ColumnType outputTypes[]) {
+            ColumnType outputTypes[],
+            RowSink sink,
+            Projection.Sheet projection) {
+        this.sink = sink;
+        this.projection = projection;
         this.stylesTable = styles;
-        this.sharedStringsTable = strings;
+        this.converter = new CellConverter(sink, strings, styles.dates());
         this.nextDataType = xssfDataType.NUMBER;
         this.outputTypes = outputTypes;
         this.hasProcessedHeaders=false;
     }
 
 
+    /**
+     * Sets the handler up for a part of sheetData that starts mid sheet,
+     * see {@link ChunkedSheetParser}: the header has already been seen,
+     * and rows without an r attribute are numbered from firstRow.
+     */
+    void startAtRow(int firstRow) {
+        hasProcessedHeaders = true;
+        nextRowNum = firstRow;
+    }
+
+    /**
+     * Outputs the formula of formula cells, instead of the value Excel
+     * saved for it. Shared formulas are worked out for each cell.
+     */
+    void outputFormulas(boolean formulas) {
+        this.formulas = formulas;
+    }
+
+    /**
+     * Counts the rows and cells output into counts, owned by this handler's thread.
+     */
+    void countInto(ConversionMetrics.SheetCounts counts) {
+        this.counts = counts;
+    }
+
     private boolean isTextTag(String name) {
         if("v".equals(name)) {
             // Easy, normal v text tag
@@ -151,83 +210,42 @@ public class XlsxSheetHandler extends DefaultHandler {
         }
 
         if (isTextTag(localName)) {
-            vIsOpen = true;
-            // Clear contents cache
-            if (!isIsOpen) {
-                value.setLength(0);
-            }
+            startText();
         } else if ("is".equals(localName)) {
-            // Inline string outer tag
-            isIsOpen = true;
+            startInlineString();
         } else if ("f".equals(localName)) {
-            // Clear contents cache
-            formula.setLength(0);
-            isFormula = true;
-
-            // Decide where to get the formula string from
-            String type = attributes.getValue("t");
-            if(type != null && type.equals("shared")) {
-                // Is it the one that defines the shared, or uses it?
-                String ref = attributes.getValue("ref");
-                String si = attributes.getValue("si");
-
-                if(ref != null) {
-                    // This one defines it
-                    // TODO Save it somewhere
-                    fIsOpen = true;
-                } else {
-                    // This one uses a shared formula :(
-                }
-            } else {
-                fIsOpen = true;
+            if (!formulas) {
+                return;
             }
+            // Shared, and either the one that defines it (with its ref) or one that uses it
+            String si = attributes.getValue("si");
+            boolean shared = "shared".equals(attributes.getValue("t")) && si != null;
+            startFormula(shared ? Integer.parseInt(si) : -1, attributes.getValue("ref") != null);
         }
         else if("row".equals(localName)) {
             String rowNumStr = attributes.getValue("r");
-            previousColumnIndex=0;
-            if(rowNumStr != null) {
-                rowNum = Integer.parseInt(rowNumStr) - 1;
-            } else {
-                rowNum = nextRowNum;
-            }
+            startRow(rowNumStr == null ? -1 : Integer.parseInt(rowNumStr) - 1);
         }
         // c => cell
         else if ("c".equals(localName)) {
-            // Set up defaults.
-            this.nextDataType = xssfDataType.NUMBER;
-            this.formatIndex = -1;
-            this.formatString = null;
             cellRef = attributes.getValue("r");
+            if (!startCell(cellRef == null ? -1 : columnIndex(cellRef))) {
+                return;
+            }
             String cellType = attributes.getValue("t");
             String cellStyleStr = attributes.getValue("s");
+            xssfDataType type = xssfDataType.NUMBER;
             if ("b".equals(cellType))
-                nextDataType = xssfDataType.BOOLEAN;
+                type = xssfDataType.BOOLEAN;
             else if ("e".equals(cellType))
-                nextDataType = xssfDataType.ERROR;
+                type = xssfDataType.ERROR;
             else if ("inlineStr".equals(cellType))
-                nextDataType = xssfDataType.INLINE_STRING;
+                type = xssfDataType.INLINE_STRING;
             else if ("s".equals(cellType))
-                nextDataType = xssfDataType.SST_STRING;
+                type = xssfDataType.SST_STRING;
             else if ("str".equals(cellType))
-                nextDataType = xssfDataType.INLINE_STRING;
-            else {
-                // Number, but almost certainly with a special style or format
-                XSSFCellStyle style = null;
-                if (stylesTable != null) {
-                    if (cellStyleStr != null) {
-                        int styleIndex = Integer.parseInt(cellStyleStr);
-                        style = stylesTable.getStyleAt(styleIndex);
-                    } else if (stylesTable.getNumCellStyles() > 0) {
-                        style = stylesTable.getStyleAt(0);
-                    }
-                }
-                if (style != null) {
-                    this.formatIndex = style.getDataFormat();
-                    this.formatString = style.getDataFormatString();
-                    if (this.formatString == null)
-                        this.formatString = BuiltinFormats.getBuiltinFormat(this.formatIndex);
-                }
-            }
+                type = xssfDataType.INLINE_STRING;
+            cellType(type, cellStyleStr == null ? 0 : Integer.parseInt(cellStyleStr));
         }
     }
 
@@ -241,34 +259,191 @@ public class XlsxSheetHandler extends DefaultHandler {
 
         // v => contents of a cell
         if (isTextTag(localName)) {
-            vIsOpen = false;
-
-            if (!isIsOpen) {
-                if( hasProcessedHeaders ) {
-                    outputCell();
-                }
-                value.setLength(0);
-                isFormula = false;
-            }
+            endText();
         } else if ("f".equals(localName)) {
-            fIsOpen = false;
+            endFormula();
+        } else if ("c".equals(localName)) {
+            endCell();
         } else if ("is".equals(localName)) {
-            isIsOpen = false;
-            if( hasProcessedHeaders ) {
+            endInlineString();
+        } else if ("row".equals(localName)) {
+            endRow();
+        } else if ("sheetData".equals(localName)) {
+            // indicate that this sheet is now done
+        }
+    }
+
+    /*
+     * The events of a sheet, whoever parses it: the SAX callbacks above,
+     * or SheetXmlScanner straight from the bytes.
+     */
+
+    /**
+     * @param rowIndex zero based, -1 when the row has no r attribute
+     */
+    void startRow(int rowIndex) {
+        previousColumnIndex=-1;
+        rowNum = rowIndex >= 0 ? rowIndex : nextRowNum;
+        skipRow = false;
+        if( hasProcessedHeaders ) {
+            if (projection.pastEnd(rowNum)) {
+                throw new Projection.EndOfRange();
+            }
+            skipRow = !projection.wantsRow(rowNum);
+            if (!skipRow) {
+                sink.startRow(rowNum);
+            }
+        }
+    }
+
+    void endRow() {
+        // some sheets do not have rowNum set in the XML, Excel can read them so we should try to read them as well
+        nextRowNum = rowNum + 1;
+        if( hasProcessedHeaders ) {
+            if (!skipRow) {
+                sink.endRow(rowNum);
+                counts.rows++;
+            }
+            if (rowNum >= projection.lastRow) {
+                // Nothing further down is wanted, don't read the rest of sheetData
+                throw new Projection.EndOfRange();
+            }
+        }
+        hasProcessedHeaders=true;
+    }
+
+    /**
+     * Starts a cell, a number of style 0 until {@link #cellType} says otherwise.
+     *
+     * @param column zero based, -1 when the cell has no r attribute
+     * @return false when the cell is skipped, its type and content don't matter
+     */
+    boolean startCell(int column) {
+        this.nextDataType = xssfDataType.NUMBER;
+        this.sharedIndex = -1;
+        this.cellFormat = StyleCache.GENERAL;
+        columnIndex = column >= 0 ? column : previousColumnIndex + 1;
+        previousColumnIndex = columnIndex;
+        // The header row, and anything not projected, is never gathered or converted
+        skipCell = !hasProcessedHeaders || skipRow || projection.column(columnIndex) < 0;
+        if (!skipCell) {
+            // Number, but almost certainly with a special style or format
+            this.cellFormat = stylesTable.forStyle(0);
+        }
+        return !skipCell;
+    }
+
+    /**
+     * @param style the cell's s attribute, only used for numbers
+     */
+    void cellType(xssfDataType type, int style) {
+        nextDataType = type;
+        if (type == xssfDataType.NUMBER) {
+            this.cellFormat = stylesTable.forStyle(style);
+        } else {
+            this.cellFormat = StyleCache.GENERAL;
+        }
+    }
+
+    /**
+     * A v element, or t within is, opens. Returns whether its text is wanted.
+     */
+    boolean startText() {
+        if (skipCell) {
+            return false;
+        }
+        vIsOpen = true;
+        // Clear contents cache
+        if (!isIsOpen) {
+            value.setLength(0);
+        }
+        return true;
+    }
+
+    /**
+     * Where the text of the open element goes, see {@link #startText()}.
+     */
+    StringBuilder text() {
+        return value;
+    }
+
+    void endText() {
+        vIsOpen = false;
+
+        if (!isIsOpen) {
+            // Formula cells are output at their end, their value may be missing
+            if( !skipCell && nextDataType != xssfDataType.FORMULA ) {
                 outputCell();
             }
             value.setLength(0);
-        } else if ("row".equals(localName)) {
-            // Finish up the row
+        }
+    }
+
+    void endCell() {
+        if (!skipCell && nextDataType == xssfDataType.FORMULA) {
+            outputCell();
+        }
+    }
 
-            // some sheets do not have rowNum set in the XML, Excel can read them so we should try to read them as well
-            nextRowNum = rowNum + 1;
-            hasProcessedHeaders=true;
-            System.out.println();
+    /**
+     * Whether formulas are wanted at all, when they aren't f elements can be skipped.
+     */
+    boolean readsFormulas() {
+        return formulas;
+    }
 
-        } else if ("sheetData".equals(localName)) {
-            // indicate that this sheet is now done
+    /**
+     * An f element opens. Returns whether its text is wanted, which goes to
+     * {@link #formulaText()}.
+     *
+     * @param sharedIndex si of a shared formula, -1 for a formula of the cell's own
+     * @param defines     whether the cell holds the text of its shared formula,
+     *                    rather than just pointing at it
+     */
+    boolean startFormula(int sharedIndex, boolean defines) {
+        definesShared = sharedIndex >= 0 && defines;
+        // A shared formula is kept even from a cell that isn't output, others may use it
+        if (!formulas || skipCell && !definesShared) {
+            return false;
         }
+        this.sharedIndex = sharedIndex;
+        formula.setLength(0);
+        fIsOpen = true;
+        return true;
+    }
+
+    StringBuilder formulaText() {
+        return formula;
+    }
+
+    void endFormula() {
+        if (!fIsOpen) {
+            return;
+        }
+        fIsOpen = false;
+        if (definesShared) {
+            sharedFormulas.define(sharedIndex, formula.toString(), rowNum, columnIndex);
+        }
+        if (!skipCell) {
+            nextDataType = xssfDataType.FORMULA;
+        }
+    }
+
+    void startInlineString() {
+        // Inline string outer tag
+        isIsOpen = true;
+    }
+
+    boolean inInlineString() {
+        return isIsOpen;
+    }
+
+    void endInlineString() {
+        isIsOpen = false;
+        if( !skipCell && nextDataType != xssfDataType.FORMULA ) {
+            outputCell();
+        }
+        value.setLength(0);
     }
 
     /**
@@ -287,73 +462,72 @@ public class XlsxSheetHandler extends DefaultHandler {
     }
 
     protected void outputCell() {
-        final var columnIndex = new CellReference(cellRef).getCol();
-        final var expectedType = outputTypes[columnIndex];
-        final var outputValue = switch (nextDataType) {
-            case NUMBER -> processNumber(expectedType,Double.parseDouble(value.toString()));
-            case ERROR -> "**ERR**";
-            case FORMULA -> processFormula(expectedType,value.toString());
-            case SST_STRING -> processString(expectedType,Short.parseShort(value.toString()));
-            case INLINE_STRING -> processString(expectedType,value.toString());
-            case BOOLEAN -> processBoolean(expectedType,value.toString());
-        };
-
-        for( var i=previousColumnIndex ; i<columnIndex ; i++) {
-            System.out.print(',');
+        // Columns past the declared types are passed through as text
+        final var expectedType = columnIndex < outputTypes.length ? outputTypes[columnIndex] : ColumnType.STRING;
+        final var column = projection.column(columnIndex);
+        counts.cell(nextDataType);
+        switch (nextDataType) {
+            case NUMBER -> processNumber(column, expectedType, NumberText.parseDouble(value));
+            case ERROR -> converter.error(column);
+            case FORMULA -> processFormula(column, expectedType, formula);
+            case SST_STRING -> processString(column, expectedType, NumberText.parseInt(value));
+            case INLINE_STRING -> processString(column, expectedType, value);
+            case BOOLEAN -> processBoolean(column, expectedType, value);
         }
-        System.out.print(outputValue);
-        previousColumnIndex = columnIndex;
     }
 
-    protected String processNumber(ColumnType expected, double value) {
-
-        if(expected==ColumnType.DATETIME && DateUtil.isADateFormat(formatIndex,formatString)) {
-            final var tf = DateTimeFormatter.ISO_INSTANT;
-            final var tz = TimeZone.getTimeZone("America/Los_Angeles");
-            Date d = DateUtil.getJavaDate(value, tz);
-            return tf.format(d.toInstant());
+    /**
+     * Zero based column of a cell reference such as "AB12", the same as
+     * new CellReference(ref).getCol() but without parsing the whole thing.
+     */
+    static int columnIndex(CharSequence ref) {
+        int column = 0;
+        for (int i = 0; i < ref.length(); i++) {
+            final char c = ref.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                column = column * 26 + (c - 'A' + 1);
+            } else if (c >= 'a' && c <= 'z') {
+                column = column * 26 + (c - 'a' + 1);
+            } else if (c != '$') {
+                break;
+            }
         }
-        if( expected==ColumnType.BOOLEAN ) {
-            return (value==0) ? "FALSE" : "TRUE" ;
+        return column - 1;
+    }
+
+    /**
+     * A, B, ... Z, AA, ... as Excel names columns, the inverse of columnIndex.
+     */
+    static String columnName(int column) {
+        final var name = new StringBuilder();
+        for (int c = column + 1; c > 0; c = (c - 1) / 26) {
+            name.append((char) ('A' + (c - 1) % 26));
         }
-        return numberFormat.format(value);
+        return name.reverse().toString();
     }
-    protected String processString(ColumnType expected, short index) {
-        return processString(expected, sharedStringsTable.getItemAt(index).toString());
+
+    protected void processNumber(int column, ColumnType expected, double value) {
+        converter.number(column, expected, value, cellFormat);
     }
-    protected String processString(ColumnType expected, String value) {
-        if(expected==ColumnType.STRING) {
-            return value;
-        }
-        if(expected==ColumnType.DECIMAL) {
-            final var num = Double.parseDouble(value);
-            return numberFormat.format(num);
-        }
-        if(expected==ColumnType.BOOLEAN) {
-            char c = Character.toUpperCase(value.charAt(0));
-            return c=='T'||c=='1'||c=='Y' ? "TRUE" : "FALSE";
-        }
-        final var dt = DateTimeFormatter.ISO_LOCAL_DATE.parse(value);
-        final var tf = DateTimeFormatter.ISO_INSTANT;
-        return tf.format(dt);
-    }
-    protected String processBoolean(ColumnType expected, String value) {
-        if(expected==ColumnType.STRING) {
-            char c = Character.toUpperCase(value.charAt(0));
-            return c=='T'||c=='1'||c=='Y' ? "TRUE" : "FALSE";
-        }
-        if(expected==ColumnType.DECIMAL) {
-            char c = Character.toUpperCase(value.charAt(0));
-            return c=='T' ? "1" : "0";
-        }
-        if(expected==ColumnType.BOOLEAN) {
-            char c = Character.toUpperCase(value.charAt(0));
-            return c=='T'||c=='1'||c=='Y' ? "TRUE" : "FALSE";
-        }
-        throw new RuntimeException("Can't convert excel true/false to a date");
+    protected void processString(int column, ColumnType expected, int index) {
+        converter.sharedString(column, expected, index);
     }
-    protected String processFormula(ColumnType expected, String value) {
-        return value;
+    protected void processString(int column, ColumnType expected, CharSequence value) {
+        converter.string(column, expected, value);
+    }
+    protected void processBoolean(int column, ColumnType expected, CharSequence value) {
+        converter.bool(column, expected, CellConverter.isTrue(value));
+    }
+    protected void processFormula(int column, ColumnType expected, CharSequence value) {
+        if (sharedIndex >= 0 && !definesShared) {
+            // Only the cells that are output have their shared formula worked out
+            formula.setLength(0);
+            if (!sharedFormulas.expand(sharedIndex, rowNum, columnIndex, formula)) {
+                // Its range starts in a cell that hasn't been read, nothing to go on
+                return;
+            }
+        }
+        sink.cell(column, value);
     }
 
 }
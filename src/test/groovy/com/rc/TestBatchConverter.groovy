@@ -0,0 +1,60 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class TestBatchConverter extends Specification {
+	@TempDir
+	Path dir
+
+	def "Should convert every workbook found and carry on past a broken one"() {
+		def input = dir.resolve("in")
+		def output = dir.resolve("out")
+		Files.createDirectories(input.resolve("sub"))
+		write(input.resolve("first.xlsx"), "First", 2)
+		write(input.resolve("sub/second.xlsx"), "Second", 3)
+		Files.writeString(input.resolve("broken.xlsx"), "not a workbook")
+		def options = new Options(["--batch", input.toString() + "/**.xlsx", "--output-dir", output.toString(),
+				"--batch-threads", threads, "--types", "decimal,string"] as String[])
+
+		when:
+		def failures = new BatchConverter(options).run()
+
+		then:
+		failures == 1
+		output.resolve("first.csv").toFile().readLines() == ['2,a', '4,b']
+		output.resolve("sub/second.csv").toFile().readLines() == ['3,a', '6,b']
+		!Files.exists(output.resolve("broken.csv"))
+		options.metrics.toJson().contains('"workbooks":2')
+
+		where:
+		threads << ["1", "3"]
+	}
+
+	def "Should find the workbooks of a directory or a manifest"() {
+		["a.xlsx", "b.xlsb", "C.XLSB", "notes.txt", "~\$a.xlsx"].each { Files.writeString(dir.resolve(it), "") }
+		def manifest = dir.resolve("manifest")
+		Files.writeString(manifest, "# workbooks\n/data/x.xlsx\n\n/data/y.xlsb\n")
+
+		expect:
+		BatchConverter.find(dir.toString())*.fileName*.toString() as Set == ["a.xlsx", "b.xlsb", "C.XLSB"] as Set
+		["b.xlsb", "C.XLSB"].every { Main.isBinary(it) }
+		!Main.isBinary("a.xlsx")
+		BatchConverter.find("@" + manifest)*.toString() == ["/data/x.xlsx", "/data/y.xlsb"]
+	}
+
+	private static void write(Path file, String sheetName, int factor) {
+		def workbook = new XSSFWorkbook()
+		def sheet = workbook.createSheet(sheetName)
+		(0..2).each { r ->
+			def row = sheet.createRow(r)
+			row.createCell(0).setCellValue(r * factor)
+			row.createCell(1).setCellValue(r == 1 ? "a" : "b")
+		}
+		new FileOutputStream(file.toFile()).withCloseable { workbook.write(it) }
+	}
+}
@@ -0,0 +1,89 @@
+package com.rc
+
+import org.apache.poi.util.XMLHelper
+import org.xml.sax.InputSource
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.util.concurrent.Executors
+
+class TestChunkedSheetParser extends Specification {
+	@Shared
+	def pool = Executors.newFixedThreadPool(3)
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.STRING]
+
+	def cleanupSpec() {
+		pool.shutdown()
+	}
+
+	def "Should cut a sheet into chunks of rows and put the output back in order"() {
+		def sheet = sheetXml(prefix, numbered, 200)
+
+	expect:
+		chunked(sheet, 64, Projection.Sheet.ALL) == singlePass(sheet, Projection.Sheet.ALL)
+		chunked(sheet, 64, Projection.Sheet.ALL).size() == 199
+		chunked(sheet, 100, rows) == singlePass(sheet, rows)
+		chunked(sheet, 100, rows) == ['50,"r50, x"', '51,"r51, x"', '52,"r52, x"']
+		chunked(sheet, 100, ranges) == singlePass(sheet, ranges)
+		chunked(sheet, 100, ranges) == ['1,"r1, x"', '2,"r2, x"', '50,"r50, x"', '51,"r51, x"', '52,"r52, x"']
+
+	where:
+		prefix | numbered
+		""     | true
+		"x:"   | true
+		""     | false
+
+		rows = Projection.parse(null, null, "51:53").forSheet("Sheet1", 0)
+		ranges = Projection.parse(null, null, "51:52,2:3,Sheet2!7,52:53").forSheet("Sheet1", 0)
+	}
+
+	def "Should write shared strings the same from every chunk a thread converts"() {
+		def table = new CompactSharedStrings(CompactSharedStrings.DEFAULT_SPILL_THRESHOLD)
+		["plain", "has, comma", "quote \" x"].each { table.add(it) }
+		table.finish()
+		def xml = new StringBuilder('<?xml version="1.0"?><worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><sheetData>')
+		(0..<300).each { r ->
+			xml << "<row r=\"${r + 1}\"><c t=\"n\"><v>${r}</v></c><c t=\"s\"><v>${r % 3}</v></c></row>"
+		}
+		xml << "</sheetData></worksheet>"
+		def sheet = xml.toString()
+
+	expect:
+		chunked(sheet, 64, Projection.Sheet.ALL, table) == singlePass(sheet, Projection.Sheet.ALL, table)
+		chunked(sheet, 64, Projection.Sheet.ALL, table)[298] == '299,"quote "" x"'
+	}
+
+	private static String sheetXml(String prefix, boolean numbered, int rows) {
+		def ns = prefix ? "xmlns:${prefix[0..-2]}" : "xmlns"
+		def xml = new StringBuilder("""<?xml version="1.0"?><${prefix}worksheet ${ns}="http://schemas.openxmlformats.org/spreadsheetml/2006/main">""")
+		xml << "<${prefix}dimension ref=\"A1:B${rows}\"/><${prefix}sheetData>"
+		(0..<rows).each { r ->
+			xml << (numbered ? "<${prefix}row r=\"${r + 1}\">" : "<${prefix}row>")
+			xml << "<${prefix}c t=\"inlineStr\"><${prefix}is><${prefix}t>${r}</${prefix}t></${prefix}is></${prefix}c>"
+			xml << "<${prefix}c t=\"inlineStr\"><${prefix}is><${prefix}t>r${r}, x</${prefix}t></${prefix}is></${prefix}c></${prefix}row>"
+		}
+		xml << "</${prefix}sheetData><${prefix}rowBreaks count=\"0\"/></${prefix}worksheet>"
+		xml.toString()
+	}
+
+	private List<String> chunked(String sheet, int chunkBytes, Projection.Sheet projection, CompactSharedStrings strings = null) {
+		def out = new ByteArrayOutputStream()
+		new ChunkedSheetParser(pool, 3, chunkBytes, true).convert(new ByteArrayInputStream(sheet.getBytes("UTF-8")), "Sheet1",
+				StyleCache.empty(), strings, types, projection, OutputFormat.CSV, Channels.newChannel(out), new ConversionMetrics())
+		out.toString("UTF-8").readLines()
+	}
+
+	private List<String> singlePass(String sheet, Projection.Sheet projection, CompactSharedStrings strings = null) {
+		def out = new ByteArrayOutputStream()
+		def sink = OutputFormat.CSV.open(Channels.newChannel(out), types)
+		def parser = XMLHelper.newXMLReader()
+		parser.setContentHandler(new XlsxSheetHandler(StyleCache.empty(), strings, types, sink, projection))
+		try {
+			parser.parse(new InputSource(new ByteArrayInputStream(sheet.getBytes("UTF-8"))))
+		} catch (Projection.EndOfRange ignored) {
+		}
+		sink.flush()
+		out.toString("UTF-8").readLines()
+	}
+}
@@ -0,0 +1,62 @@
+package com.rc
+
+import spock.lang.Specification
+
+class TestColumnarRowSink extends Specification {
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.STRING, ColumnType.DATETIME, ColumnType.BOOLEAN]
+
+	def "Should fill typed batches and hand them over every N rows"() {
+		def batches = []
+		def sink = new ColumnarRowSink(types, 4, { ColumnBatch batch ->
+			def strings = batch.columns[1] as ColumnBatch.StringVector
+			batches << [rows: batch.rowCount,
+						numbers: (0..<batch.rowCount).collect { batch.columns[0].isValid(it) ? batch.columns[0].values[it] : null },
+						strings: (0..<batch.rowCount).collect { strings.isValid(it) ? strings.get(it) : null },
+						dictionary: strings.dictionarySize(),
+						dates: (0..<batch.rowCount).collect { batch.columns[2].isValid(it) ? batch.columns[2].values[it] : null },
+						flags: (0..<batch.rowCount).collect { batch.columns[3].isValid(it) ? batch.columns[3].get(it) : null }]
+		})
+
+		sink.startSheet("Sheet1")
+		(0..<6).each { row ->
+			sink.startRow(row)
+			if (row != 2) sink.number(0, row * 1.5d)
+			sink.cell(1, row % 2 == 0 ? "even" : "odd ü")
+			sink.datetime(2, 1000L * row)
+			if (row != 3) sink.bool(3, row % 3 == 0)
+			sink.endRow(row)
+		}
+		sink.endSheet()
+
+	expect:
+		batches.size() == 2
+		batches[0].rows == 4
+		batches[0].numbers == [0d, 1.5d, null, 4.5d]
+		batches[0].strings == ["even", "odd ü", "even", "odd ü"]
+		batches[0].dictionary == 2
+		batches[0].dates == [0L, 1000L, 2000L, 3000L]
+		batches[0].flags == [true, false, false, null]
+		batches[1].rows == 2
+		batches[1].numbers == [6d, 7.5d]
+		batches[1].flags == [false, false]
+	}
+
+	def "Should leave values that don't fit their column empty"() {
+		def seen = [:]
+		def sink = new ColumnarRowSink(types, 10, { ColumnBatch batch ->
+			seen = [rows: batch.rowCount, number: batch.columns[0].isValid(0), string: batch.columns[1].isValid(0)]
+		})
+
+		sink.startSheet("Sheet1")
+		sink.startRow(1)
+		sink.cell(0, "**ERR**")
+		sink.number(1, 3d)
+		sink.endRow(1)
+		sink.endSheet()
+
+	expect:
+		seen.rows == 1
+		!seen.number
+		!seen.string
+	}
+}
@@ -0,0 +1,60 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class TestCompactSharedStrings extends Specification {
+
+	def sst(String... items) {
+		def xml = '<?xml version="1.0" encoding="UTF-8"?>' +
+				'<sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" count="' + items.length + '" uniqueCount="' + items.length + '">' +
+				items.collect { "<si>$it</si>" }.join() + '</sst>'
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))
+	}
+
+	def "Should read plain and rich text entries"() {
+		def strings = new CompactSharedStrings(CompactSharedStrings.DEFAULT_SPILL_THRESHOLD)
+		strings.readFrom(sst('<t>plain</t>', '<r><t>rich </t></r><r><t>text</t></r>', '<t/>', '<t>café 😀</t>', '<t>a_x000D_b</t>'))
+		strings.finish()
+
+	expect:
+		strings.uniqueCount == 5
+		!strings.mapped
+		strings.getString(0) == 'plain'
+		strings.getString(1) == 'rich text'
+		strings.getString(2) == ''
+		strings.getString(3) == 'café 😀'
+		strings.getItemAt(4).string == 'a\rb'
+		strings.bytes(3).remaining() == 'café 😀'.getBytes(StandardCharsets.UTF_8).length
+	}
+
+	def "Should spill large tables to a mapped file"() {
+		def strings = new CompactSharedStrings(1000)
+		(0..<50000).each { strings.add("value é " + it) }
+		strings.finish()
+
+	expect:
+		strings.mapped
+		strings.uniqueCount == 50000
+		strings.getString(0) == 'value é 0'
+		strings.getString(32767) == 'value é 32767'
+		strings.getString(49999) == 'value é 49999'
+	}
+
+	def "Should take the declared number of strings as a hint only"() {
+		def xml = '<sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" uniqueCount="' + uniqueCount + '">' +
+				'<si><t>a</t></si><si><t>b</t></si></sst>'
+		def strings = new CompactSharedStrings(CompactSharedStrings.DEFAULT_SPILL_THRESHOLD)
+		strings.readFrom(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+		strings.finish()
+
+	expect:
+		strings.uniqueCount == 2
+		strings.getString(1) == 'b'
+		strings.peakHeapBytes() < 1 << 20
+
+	where:
+		uniqueCount << ['2147483647', '1000000000', '0', '-5']
+	}
+}
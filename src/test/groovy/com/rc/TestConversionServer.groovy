@@ -0,0 +1,82 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.AutoCleanup
+import spock.lang.Shared
+import spock.lang.Specification
+
+class TestConversionServer extends Specification {
+	@Shared
+	@AutoCleanup("stop")
+	ConversionServer server = new ConversionServer("127.0.0.1", 0, 2)
+
+	def setupSpec() {
+		server.start()
+	}
+
+	def "Should convert an uploaded workbook"() {
+		def workbook = new XSSFWorkbook()
+		def sheet = workbook.createSheet("Trades")
+		(0..2).each { r ->
+			def row = sheet.createRow(r)
+			row.createCell(0).setCellValue(r)
+			row.createCell(1).setCellValue("trade " + r)
+		}
+		def bytes = new ByteArrayOutputStream()
+		workbook.write(bytes)
+
+		def connection = request("/convert?stream-buffer-mb=0")
+		connection.requestMethod = "POST"
+		connection.doOutput = true
+		connection.outputStream.withCloseable { it.write(bytes.toByteArray()) }
+
+	expect:
+		connection.responseCode == 200
+		connection.contentType.startsWith("text/csv")
+		connection.inputStream.getText("UTF-8").readLines() == ['1,trade 1', '2,trade 2']
+	}
+
+	def "Should sum the metrics of every request"() {
+		def connection = request("/metrics")
+		def json = connection.inputStream.getText("UTF-8")
+
+	expect:
+		connection.responseCode == 200
+		json.startsWith('{"activeRequests":1,')
+		json.contains('"workbooks":1,')
+		json.contains('"rows":2,"cells":{"boolean":0,"error":0,"formula":0,"inline_string":0,"sst_string":2,"number":2}')
+		!json.contains('"sheets":[')
+	}
+
+	def "Should turn away a bad request"() {
+		def connection = request(path)
+
+	expect:
+		connection.responseCode == status
+
+	where:
+		path                                 || status
+		"/convert?output=/tmp/x.csv"         || 400
+		"/convert?outp=/tmp/x.csv"           || 400
+		"/convert?strings-d=/tmp/x.csv"      || 400
+		"/convert?cache=/tmp"                || 400
+		"/convert?format=xml"                || 400
+		"/convert"                           || 400
+		"/convert?file=/no/such/sheets.xlsx" || 400
+		"/health"                            || 200
+	}
+
+	def "Should turn away an upload that isn't a workbook"() {
+		def connection = request("/convert")
+		connection.requestMethod = "POST"
+		connection.doOutput = true
+		connection.outputStream.withCloseable { it.write("id,name\n1,a\n".getBytes("UTF-8")) }
+
+	expect:
+		connection.responseCode == 400
+	}
+
+	private HttpURLConnection request(String path) {
+		(HttpURLConnection) new URL("http://localhost:${server.port()}${path}").openConnection()
+	}
+}
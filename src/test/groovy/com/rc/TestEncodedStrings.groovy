@@ -0,0 +1,79 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.channels.Channels
+import java.nio.file.Path
+import java.util.function.IntFunction
+
+class TestEncodedStrings extends Specification {
+	@TempDir
+	Path dir
+
+	def table = ["plain", "has, comma", "quote \" ü", "line\nbreak"]
+	IntFunction<CharSequence> strings = { int i -> table[i] } as IntFunction<CharSequence>
+
+	def "Should write repeated shared strings as the sink escapes them"() {
+		def out = new ByteArrayOutputStream()
+		def sink = format.open(Channels.newChannel(out), [ColumnType.STRING] as ColumnType[])
+		def indexes = [0, 1, 2, 3, 3, 2, 1, 0]
+		indexes.eachWithIndex { int index, int row ->
+			sink.startRow(row)
+			sink.sharedString(0, index, strings)
+			sink.endRow(row)
+		}
+		sink.flush()
+
+		def plain = new ByteArrayOutputStream()
+		def plainSink = format.open(Channels.newChannel(plain), [ColumnType.STRING] as ColumnType[])
+		indexes.eachWithIndex { int index, int row ->
+			plainSink.startRow(row)
+			plainSink.cell(0, table[index])
+			plainSink.endRow(row)
+		}
+		plainSink.flush()
+
+	expect:
+		out.toByteArray() == plain.toByteArray()
+
+	where:
+		format << [OutputFormat.CSV, OutputFormat.TSV, OutputFormat.JSON]
+	}
+
+	def "Should still write every string once slots clash and the arena fills"() {
+		def encoded = new EncodedStrings(2, 16)
+		def out = new ByteArrayOutputStream()
+		def buffer = new OutputBuffer(Channels.newChannel(out))
+		def writer = { CharSequence text -> buffer.append(text) } as EncodedStrings.Writer
+		def indexes = [0, 2, 0, 1, 3, 1, 2, 2]
+		indexes.each { encoded.write(buffer, it, strings, writer) }
+		buffer.flush()
+
+	expect:
+		out.toString("UTF-8") == indexes.collect { table[it] }.join()
+		encoded.hits() == 1
+	}
+
+	def "Should write shared strings as indexes with the table beside them"() {
+		def workbook = new XSSFWorkbook()
+		def sheet = workbook.createSheet("Sheet1")
+		(0..4).each { r ->
+			def row = sheet.createRow(r)
+			row.createCell(0).setCellValue(r % 2 ? "odd" : "even, really")
+			row.createCell(1).setCellValue(r)
+		}
+		def file = dir.resolve("book.xlsx").toFile()
+		file.withOutputStream { workbook.write(it) }
+		def dictionary = dir.resolve("strings.csv").toFile()
+		def options = new Options(["--file", file.path, "--strings-dictionary", dictionary.path, "--types", "string,decimal"] as String[])
+
+		def out = new ByteArrayOutputStream()
+		Main.convert(options, null, Channels.newChannel(out))
+
+	expect:
+		out.toString("UTF-8").readLines() == ['1,1', '0,2', '1,3', '0,4']
+		dictionary.readLines() == ['"even, really"', 'odd']
+	}
+}
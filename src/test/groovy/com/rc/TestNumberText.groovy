@@ -0,0 +1,54 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.text.DecimalFormat
+
+class TestNumberText extends Specification {
+	NumberText instance = new NumberText()
+
+	def format(double value) {
+		def bytes = new ByteArrayOutputStream()
+		def out = new OutputBuffer(Channels.newChannel(bytes), 16)
+		instance.append(out, value)
+		out.flush()
+		return bytes.toString("UTF-8")
+	}
+
+	def "Should parse numbers the same as the JDK"() {
+	expect:
+		NumberText.parseDouble(new StringBuilder(text)) == Double.parseDouble(text)
+
+	where:
+		text << [ "0", "-0", "1", "12345.6789", "0.1", "-0.001", "1.5E-3", "4.4E+20",
+				  "0.30000000000000004", "123456789012345678901", "1e-400", "9007199254740993" ]
+	}
+
+	def "Should parse shared string indexes"() {
+	expect:
+		NumberText.parseInt(new StringBuilder("40000")) == 40000
+	}
+
+	def "Should format numbers the same as DecimalFormat"() {
+		def expected = new DecimalFormat("0.#############").format(number)
+
+	expect:
+		format(number) == expected
+
+	where:
+		number << [ 0d, -0d, 1d, -1d, 12345.6789d, 0.1d, 1.05d, 100d, 1d/3d, 2d/3d, 1e-14d,
+					1.5e-13d, 44000.25d, 123456789012.5d, 9.007199254740992E15d, 1e20d, -7.125d ]
+	}
+
+	def "Should format random numbers the same as DecimalFormat"() {
+		def random = new Random(42)
+		def reference = new DecimalFormat("0.#############")
+
+	expect:
+		(1..20000).every {
+			def number = Math.round(random.nextGaussian() * 1e6) / Math.pow(10, random.nextInt(8))
+			format(number) == reference.format(number)
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+
+class TestParquetRowSink extends Specification {
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.STRING, ColumnType.DATETIME, ColumnType.BOOLEAN]
+
+	def "Should write typed rows as row groups with a footer"() {
+		def out = new ByteArrayOutputStream()
+		def sink = new ParquetRowSink(Channels.newChannel(out), types, 4)
+
+		sink.startSheet("Sheet1")
+		(0..<6).each { row ->
+			sink.startRow(row)
+			if (row != 2) sink.number(0, row * 1.5d)
+			sink.cell(1, row % 2 == 0 ? "even" : "odd ü")
+			sink.datetime(2, 1000L * row)
+			if (row != 3) sink.bool(3, row % 3 == 0)
+			sink.cell(4, "past the schema")
+			sink.endRow(row)
+		}
+		sink.endSheet()
+		sink.flush()
+
+		def file = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN)
+		def footerLength = file.getInt(file.limit() - 8)
+		def footer = new Thrift(file.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(file.limit() - 8 - footerLength)).struct()
+		def groups = footer[4]
+		def decimal = groups[0][1][0][3]
+		def string = groups[0][1][1][3]
+		def date = groups[1][1][2][3]
+		def flags = groups[0][1][3][3]
+
+	expect:
+		new String(out.toByteArray(), 0, 4) == "PAR1"
+		new String(out.toByteArray(), out.size() - 4, 4) == "PAR1"
+		footer[3] == 6
+		footer[2]*.get(4).collect { new String(it) } == ["schema", "A", "B", "C", "D"]
+		footer[2][1..4]*.get(1) == [5, 6, 2, 0]
+		groups*.get(3) == [4, 2]
+		new String(footer[5][0][2]) == "Sheet1"
+
+		decimal[12][3] == 1
+		values(file, decimal, 4) == [0d, 1.5d, null, 4.5d]
+		string[12][3] == 0
+		string[11] < string[9]
+		dictionary(file, string) == ["even", "odd ü"]
+		date[12][3] == 0
+		ByteBuffer.wrap(date[12][6]).order(ByteOrder.LITTLE_ENDIAN).getLong() == 4000L
+		ByteBuffer.wrap(date[12][5]).order(ByteOrder.LITTLE_ENDIAN).getLong() == 5000L
+		flags[12][3] == 1
+	}
+
+	def "Should pack runs and odd values with the hybrid encoding"() {
+		def bytes = new ParquetRowSink.Bytes()
+		long[] values = [1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 1, 2, 3, 2]
+		bytes.rleHybrid(values, values.length, 2)
+
+	expect:
+		hybrid(ByteBuffer.wrap(bytes.bytes, 0, bytes.size()), 2, values.length) == values as List
+	}
+
+	def "Should name columns as Excel does"() {
+	expect:
+		XlsxSheetHandler.columnName(column) == name
+		XlsxSheetHandler.columnIndex(name) == column
+
+	where:
+		column | name
+		0      | "A"
+		25     | "Z"
+		26     | "AA"
+		701    | "ZZ"
+		702    | "AAA"
+	}
+
+	/**
+	 * The DOUBLE values of a column chunk's data page, null where the definition level is 0.
+	 */
+	private static List values(ByteBuffer file, Map meta, int count) {
+		def page = file.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(meta[9] as int)
+		new Thrift(page).struct()
+		def levelsLength = page.getInt()
+		def levels = hybrid(page.slice().limit(levelsLength), 1, count)
+		page.position(page.position() + levelsLength)
+		levels.collect { it ? page.getDouble() : null }
+	}
+
+	private static List dictionary(ByteBuffer file, Map meta) {
+		def page = file.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(meta[11] as int)
+		def header = new Thrift(page).struct()
+		(0..<header[7][1]).collect {
+			def bytes = new byte[page.getInt()]
+			page.get(bytes)
+			new String(bytes, "UTF-8")
+		}
+	}
+
+	private static List hybrid(ByteBuffer buffer, int width, int count) {
+		def reader = new Thrift(buffer)
+		def values = []
+		while (values.size() < count) {
+			long header = reader.varint()
+			if (header & 1) {
+				int groups = header >> 1
+				def bits = new BigInteger(1, (0..<groups * width).collect { buffer.get() }.reverse() as byte[])
+				(0..<groups * 8).each { int i -> values << bits.shiftRight(i * width).and(BigInteger.ONE.shiftLeft(width) - 1).longValue() }
+			} else {
+				long value = 0
+				((width + 7).intdiv(8)).times { value |= (buffer.get() & 0xFF) << (8 * it) }
+				(header >> 1).times { values << value }
+			}
+		}
+		values.take(count)
+	}
+
+	/**
+	 * Reads Thrift's compact protocol into maps of field id to value.
+	 */
+	static class Thrift {
+		ByteBuffer buffer
+
+		Thrift(ByteBuffer buffer) {
+			this.buffer = buffer
+		}
+
+		long varint() {
+			long value = 0
+			for (int shift = 0; ; shift += 7) {
+				int b = buffer.get()
+				value |= (long) (b & 0x7F) << shift
+				if ((b & 0x80) == 0) return value
+			}
+		}
+
+		long zigzag() {
+			long v = varint()
+			(v >>> 1) ^ -(v & 1)
+		}
+
+		Map struct() {
+			def fields = [:]
+			int last = 0
+			while (true) {
+				int header = buffer.get() & 0xFF
+				if (header == 0) return fields
+				int delta = header >> 4
+				last = delta ? last + delta : zigzag() as int
+				fields[last] = value(header & 0x0F)
+			}
+		}
+
+		def value(int type) {
+			switch (type) {
+				case 1: return true
+				case 2: return false
+				case 5: case 6: return zigzag()
+				case 8:
+					def bytes = new byte[varint() as int]
+					buffer.get(bytes)
+					return bytes
+				case 9:
+					int header = buffer.get() & 0xFF
+					int size = header >> 4 == 15 ? varint() as int : header >> 4
+					return (0..<size).collect { value(header & 0x0F) }
+				case 12: return struct()
+				default: throw new IllegalStateException("type " + type)
+			}
+		}
+	}
+}
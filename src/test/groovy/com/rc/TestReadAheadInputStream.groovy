@@ -0,0 +1,60 @@
+package com.rc
+
+import spock.lang.Specification
+
+class TestReadAheadInputStream extends Specification {
+
+	def "Should read the source through as it is"() {
+		def bytes = new byte[100_000]
+		new Random(7).nextBytes(bytes)
+		def stream = new ReadAheadInputStream(new ByteArrayInputStream(bytes), 1 << 14)
+
+		def out = new ByteArrayOutputStream()
+		out.write(stream.read())
+		out.write(stream.readNBytes(333))
+		stream.transferTo(out)
+
+	expect:
+		out.toByteArray() == bytes
+		stream.read() == -1
+	}
+
+	def "Should throw an error reading the source to the reader"() {
+		def source = new InputStream() {
+			int left = 10_000
+
+			@Override
+			int read() {
+				if (left-- <= 0) throw new IOException("corrupt part")
+				0
+			}
+		}
+		def stream = new ReadAheadInputStream(source, 1 << 14)
+
+	when:
+		stream.readAllBytes()
+
+	then:
+		def e = thrown(IOException)
+		e.message == "corrupt part"
+	}
+
+	def "Should stop reading ahead and close the source when closed early"() {
+		def closed = false
+		def source = new InputStream() {
+			@Override
+			int read() { 1 }
+
+			@Override
+			void close() { closed = true }
+		}
+		def stream = new ReadAheadInputStream(source, 1 << 14)
+		stream.read()
+
+	when:
+		stream.close()
+
+	then:
+		closed
+	}
+}
@@ -0,0 +1,72 @@
+package com.rc
+
+import org.apache.poi.ss.usermodel.DateUtil
+import spock.lang.Specification
+
+import java.time.Instant
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
+
+class TestSerialDates extends Specification {
+
+	def "Should convert serials as DateUtil does"() {
+		def dates = new SerialDates(ZoneId.of(zone), date1904)
+		def tz = TimeZone.getTimeZone(ZoneId.of(zone))
+		def random = new Random(zone.hashCode())
+		def serials = [0d, 1d, 59.5d, 60d, 61d, 0.999999d, 45000.25d] + (0..<20000).collect { random.nextDouble() * 60000 }
+		// every quarter hour around the 2024 transitions
+		serials += (0..<(8 * 96)).collect { 45360 + it / 96d } + (0..<(8 * 96)).collect { 45592 + it / 96d }
+
+		expect:
+		serials.findAll { it >= from }.each { serial ->
+			assert dates.toEpochMillis(serial) == DateUtil.getJavaDate(serial, date1904, tz).time
+		}
+
+		where:
+		zone                  | date1904 | from
+		'America/Los_Angeles' | false    | 0
+		'Europe/London'       | false    | 0
+		'UTC'                 | true     | 0
+		'+05:30'              | false    | 0
+		'America/New_York'    | true     | 0
+		// TimeZone only has Lord Howe's history from 1981
+		'Australia/Lord_Howe' | false    | 29587
+	}
+
+	def "Should turn instants back into serials as DateUtil does"() {
+		def dates = new SerialDates(ZoneId.of(zone), date1904)
+		def tz = TimeZone.getTimeZone(ZoneId.of(zone))
+		def random = new Random(zone.hashCode())
+		// 1901 to 2064, past Excel's 29 February 1900
+		def instants = (0..<20000).collect { (long) (-2.2e12 + random.nextDouble() * 5e12) }
+
+		expect:
+		instants.each { millis ->
+			def calendar = Calendar.getInstance(tz)
+			calendar.setTimeInMillis(millis)
+			def serial = DateUtil.getExcelDate(calendar, date1904)
+			// -1 before the epoch
+			assert serial < 0 ? dates.toSerial(millis) < 0 : Math.abs(dates.toSerial(millis) - serial) < 1e-9
+		}
+
+		where:
+		zone                  | date1904
+		'America/Los_Angeles' | false
+		'Europe/London'       | false
+		'UTC'                 | true
+		'+05:30'              | false
+	}
+
+	def "Should write instants as ISO_INSTANT does"() {
+		def bytes = new byte[32]
+		def random = new Random(42)
+		def instants = [0L, -1L, 1L, 999L, 1000L, -2208988800000L, 253402300799999L, 253402300800000L, -62135596800001L] +
+				(0..<20000).collect { (long) ((random.nextDouble() - 0.3) * 6e12) }
+
+		expect:
+		instants.each { millis ->
+			def length = SerialDates.isoInstant(millis, bytes)
+			assert new String(bytes, 0, length, "US-ASCII") == DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(millis))
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class TestSharedFormulas extends Specification {
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.DECIMAL, ColumnType.DECIMAL]
+
+	def "Should move relative references"() {
+		def out = new StringBuilder()
+		SharedFormulas.shift(formula, rows, columns, out)
+
+		expect:
+		out.toString() == expected
+
+		where:
+		formula                              | rows | columns || expected
+		'A1*2'                               | 3    | 0       || 'A4*2'
+		'SUM($A1:A$1)+$B$2'                  | 1    | 2       || 'SUM($A2:C$1)+$B$2'
+		'Z9+AA10'                            | 0    | 1       || 'AA9+AB10'
+		'LOG10(A1)&"A1"'                     | 1    | 1       || 'LOG10(B2)&"A1"'
+		"'Sheet A1'!A1+Sheet2!B2"            | 1    | 0       || "'Sheet A1'!A2+Sheet2!B3"
+		'SUM(A:B)+SUM($C:C)+SUM(2:3)'        | 1    | 1       || 'SUM(B:C)+SUM($C:D)+SUM(3:4)'
+		'Table1[[#This Row],[A1]]*1.5E3'     | 5    | 5       || 'Table1[[#This Row],[A1]]*1.5E3'
+		'A2-A1'                              | -1   | 0       || 'A1-#REF!'
+		'IF(TRUE,TAX_2023,XFD1)'             | 0    | 1       || 'IF(TRUE,TAX_2023,#REF!)'
+	}
+
+	def "Should output formulas, shared ones worked out for each cell"() {
+		def sheet = """<?xml version="1.0" encoding="UTF-8"?>
+<worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><sheetData>
+<row r="1"><c r="A1"><v>0</v></c><c r="C1"><f t="shared" ref="C1:C4" si="0">A1+B1</f><v>0</v></c></row>
+<row r="2"><c r="A2"><v>1</v></c><c r="B2"><f>A2*2</f><v>2</v></c><c r="C2"><f t="shared" si="0"/><v>3</v></c></row>
+<row r="3"><c r="A3"><v>2</v></c><c r="B3"><f t="shared" ref="B3:B4" si="1">\$A3+1</f><v>3</v></c><c r="C3"><f t="shared" si="0"/></c></row>
+<row r="4"><c r="A4"><v>3</v></c><c r="B4"><f t="shared" si="1"/><v>4</v></c><c r="C4"><f t="shared" si="0"/><v>7</v></c></row>
+</sheetData></worksheet>"""
+
+		expect:
+		convert(sheet, scanXml, cells) == expected
+
+		where:
+		scanXml | cells                || expected
+		true    | CellOutput.FORMULAS  || ['1,A2*2,A2+B2', '2,$A3+1,A3+B3', '3,$A4+1,A4+B4']
+		false   | CellOutput.FORMULAS  || ['1,A2*2,A2+B2', '2,$A3+1,A3+B3', '3,$A4+1,A4+B4']
+		true    | CellOutput.VALUES    || ['1,2,3', '2,3', '3,4,7']
+		false   | CellOutput.VALUES    || ['1,2,3', '2,3', '3,4,7']
+	}
+
+	private List<String> convert(String sheet, boolean scanXml, CellOutput cells) {
+		def out = new ByteArrayOutputStream()
+		def sink = OutputFormat.CSV.open(Channels.newChannel(out), types)
+		Main.convertXlsxSheet(new ByteArrayInputStream(sheet.getBytes("UTF-8")), "Sheet1", StyleCache.empty(), null, types,
+				Projection.Sheet.ALL, sink, scanXml, cells, new ConversionMetrics())
+		out.toString("UTF-8").readLines()
+	}
+}
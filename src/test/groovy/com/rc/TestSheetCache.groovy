@@ -0,0 +1,77 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.channels.Channels
+import java.nio.file.Path
+
+class TestSheetCache extends Specification {
+	@TempDir
+	Path dir
+
+	def "Should only convert the sheets that changed"() {
+		def file = dir.resolve("book.xlsx").toString()
+		def cache = dir.resolve("cache").toString()
+
+		when:
+		write(file, 2)
+		def first = convert(file, cache)
+		def again = convert(file, cache)
+		write(file, 3)
+		def changed = convert(file, cache)
+
+		then:
+		first.reused == 0
+		again.reused == 2
+		again.lines == first.lines
+		changed.reused == 1
+		changed.lines == ['1,a', '2,b', '3', '6']
+	}
+
+	def "Should keep the sampled types of each workbook's sheet apart"() {
+		def flags = dir.resolve("flags.xlsx").toString()
+		def numbers = dir.resolve("numbers.xlsx").toString()
+		def cache = dir.resolve("cache").toString()
+		[(flags): { r -> r % 2 == 0 }, (numbers): { r -> r + 1d }].each { file, value ->
+			def workbook = new XSSFWorkbook()
+			def sheet = workbook.createSheet("Sheet1")
+			(0..2).each { r -> sheet.createRow(r).createCell(0).setCellValue(value(r)) }
+			new FileOutputStream(file).withCloseable { workbook.write(it) }
+		}
+
+		when:
+		def first = convert(flags, cache, "auto")
+		def second = convert(numbers, cache, "auto")
+
+		then:
+		first.lines == ['FALSE', 'TRUE']
+		second.lines == ['2', '3']
+		new File(cache).list().findAll { it.startsWith("schema-") }.size() == 2
+	}
+
+	/**
+	 * A workbook whose second sheet's values are multiplied by factor, the first is always the same.
+	 */
+	private static void write(String file, int factor) {
+		def workbook = new XSSFWorkbook()
+		def first = workbook.createSheet("First")
+		def second = workbook.createSheet("Second")
+		(0..2).each { r ->
+			def row = first.createRow(r)
+			row.createCell(0).setCellValue(r)
+			row.createCell(1).setCellValue(r == 1 ? "a" : "b")
+			second.createRow(r).createCell(0).setCellValue(r * factor)
+		}
+		new FileOutputStream(file).withCloseable { workbook.write(it) }
+	}
+
+	private static Map convert(String file, String cache, String types = "decimal,string") {
+		def options = new Options(["--file", file, "--cache", cache, "--types", types] as String[])
+		def out = new ByteArrayOutputStream()
+		Main.convert(options, null, Channels.newChannel(out))
+		def reused = (options.metrics.toJson() =~ /"reusedSheets":(\d+)/)[0][1] as int
+		[lines: out.toString("UTF-8").readLines(), reused: reused]
+	}
+}
@@ -0,0 +1,66 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class TestSheetXmlScanner extends Specification {
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.STRING, ColumnType.STRING, ColumnType.BOOLEAN]
+
+	static final String NS = 'xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"'
+
+	def "Should read a sheet the same as SAX"() {
+		expect:
+		scan(sheet, true) == scan(sheet, false)
+		scan(sheet, true) == expected
+
+		where:
+		sheet << [
+				document("""<row r="1"><c r="A1" t="inlineStr"><is><t>head</t></is></c></row>
+<row r="2" spans="1:4"><c r="A2" s="0"><v>1.5</v></c><c r="B2" t="inlineStr"><is><t>a &amp; b &lt;&#233;&#x263A;&gt; &quot;q&quot;</t></is></c>
+<c r="C2" t="inlineStr"><is><r><rPr><b/></rPr><t xml:space="preserve">rich </t></r><r><t>text</t></r></is></c><c r="D2" t="b"><v>1</v></c></row>
+<row r="3"><c r="A3"><f>SUM(A1:A2)</f><v>3</v></c><c r="B3" t="str"><f t="shared" si="0"/><v><![CDATA[<cdata>]]></v></c>
+<!-- a comment, <row r="9"> --><?pi <c>?><c r="D3" t="e"><v>#DIV/0!</v></c></row>
+<row r="4"><c r="A4"/><c r="C4" t="inlineStr"><is><t>café 日本</t></is></c></row>""", ""),
+				document("""<row><c><v>0</v></c></row><row><c><v>7</v></c><c/><c t="inlineStr"><is><t>no refs</t></is></c></row>""", ""),
+				// not the default namespace, read by SAX
+				"""<?xml version="1.0"?><x:worksheet xmlns:x="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+<x:sheetData><x:row r="1"><x:c><x:v>0</x:v></x:c></x:row><x:row r="2"><x:c><x:v>2</x:v></x:c></x:row></x:sheetData></x:worksheet>""",
+				// not UTF-8, read by SAX
+				"""<?xml version="1.0" encoding="ISO-8859-1"?><worksheet ${NS}><sheetData><row r="1"/>
+<row r="2"><c r="B2" t="inlineStr"><is><t>é</t></is></c></row></sheetData></worksheet>""",
+		]
+		expected << [
+				['1.5,"a & b <é☺> ""q""",rich text,TRUE', '3,<cdata>,,**ERR**', ',,café 日本'],
+				['7,,no refs'],
+				['2'],
+				[',é'],
+		]
+	}
+
+	def "Should read values split across buffer refills"() {
+		def rows = new StringBuilder('<row r="1"><c r="A1"><v>0</v></c></row>')
+		(2..5000).each { r ->
+			rows << """<row r="${r}"><c r="A${r}"><v>${r}</v></c><c r="B${r}" t="inlineStr"><is><t>r&amp;${r} é☺</t></is></c></row>"""
+		}
+		def sheet = document(rows.toString(), '<sheetPr><tabColor rgb="FF000000"/></sheetPr>')
+
+		expect:
+		scan(sheet, true).size() == 4999
+		scan(sheet, true) == scan(sheet, false)
+	}
+
+	private static String document(String rows, String before) {
+		"""\uFEFF<?xml version="1.0" encoding="UTF-8" standalone="yes"?>\r\n<worksheet ${NS} xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships">""" +
+				"""${before}<dimension ref="A1:D4"/><sheetData>${rows}</sheetData><pageMargins left="0.7"/></worksheet>"""
+	}
+
+	private List<String> scan(String sheet, boolean scanXml) {
+		def out = new ByteArrayOutputStream()
+		def bytes = sheet.getBytes(sheet.contains("ISO-8859-1") ? "ISO-8859-1" : "UTF-8")
+		def sink = OutputFormat.CSV.open(Channels.newChannel(out), types)
+		Main.convertXlsxSheet(new ByteArrayInputStream(bytes), "Sheet1", StyleCache.empty(), null, types,
+				Projection.Sheet.ALL, sink, scanXml, CellOutput.VALUES, new ConversionMetrics())
+		out.toString("UTF-8").readLines()
+	}
+}
@@ -0,0 +1,68 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+class TestStreamingWorkbook extends Specification {
+
+	def "Should convert a workbook from a stream, whatever order its parts come in"() {
+		def workbook = new XSSFWorkbook()
+		["First", "Second"].eachWithIndex { name, s ->
+			def sheet = workbook.createSheet(name)
+			def header = sheet.createRow(0)
+			header.createCell(0).setCellValue("id")
+			header.createCell(1).setCellValue("name")
+			(1..3).each { r ->
+				def row = sheet.createRow(r)
+				row.createCell(0).setCellValue(s * 10 + r)
+				row.createCell(1).setCellValue("row, " + r)
+			}
+		}
+		def bytes = new ByteArrayOutputStream()
+		workbook.write(bytes)
+		def options = new Options(["--stream-buffer-mb", "0"] as String[])
+
+	expect:
+		convert(options, bytes.toByteArray()) == expected
+		convert(options, reorder(bytes.toByteArray()) { sheets, rest -> sheets.reverse() + rest }) == expected
+		convert(options, reorder(bytes.toByteArray()) { sheets, rest -> rest + sheets.reverse() }) == expected
+		convert(options, reorder(bytes.toByteArray()) { sheets, rest -> [sheets[0]] + rest + sheets.drop(1) }) == expected
+		convert(new Options(["--strings", "poi"] as String[]), bytes.toByteArray()) == expected
+
+	where:
+		expected = ['1,"row, 1"', '2,"row, 2"', '3,"row, 3"', '11,"row, 1"', '12,"row, 2"', '13,"row, 3"']
+	}
+
+	private static List<String> convert(Options options, byte[] workbook) {
+		def out = new ByteArrayOutputStream()
+		Main.openExcelStream(options, new ByteArrayInputStream(workbook), Channels.newChannel(out), OutputFormat.CSV)
+		out.toString("UTF-8").readLines()
+	}
+
+	/**
+	 * The same package with its entries in the order given, sheets and the rest as lists of names.
+	 */
+	private static byte[] reorder(byte[] workbook, Closure<List<String>> order) {
+		def entries = [:]
+		def zip = new ZipInputStream(new ByteArrayInputStream(workbook))
+		for (ZipEntry entry; (entry = zip.nextEntry) != null; ) {
+			entries[entry.name] = zip.readAllBytes()
+		}
+		def names = order(entries.keySet().findAll { it.contains("worksheets/") }.sort(),
+				entries.keySet().findAll { !it.contains("worksheets/") })
+		def bytes = new ByteArrayOutputStream()
+		new ZipOutputStream(bytes).withCloseable { out ->
+			names.each { name ->
+				out.putNextEntry(new ZipEntry(name))
+				out.write(entries[name])
+				out.closeEntry()
+			}
+		}
+		bytes.toByteArray()
+	}
+}
@@ -0,0 +1,77 @@
+package com.rc
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class TestTypeInference extends Specification {
+
+	def "Should infer the types of a sheet wider than any given"() {
+		def workbook = new XSSFWorkbook()
+		def dateStyle = workbook.createCellStyle()
+		dateStyle.dataFormat = workbook.createDataFormat().getFormat("yyyy-mm-dd")
+		def sheet = workbook.createSheet("Wide")
+		(0..2).each { r ->
+			def row = sheet.createRow(r)
+			row.createCell(0).setCellValue(r)
+			row.createCell(1).setCellValue("name " + r)
+			def date = row.createCell(2)
+			date.setCellValue(45292 + r)
+			date.cellStyle = dateStyle
+			row.createCell(3).setCellValue(r == 1)
+			(4..29).each { c -> row.createCell(c).setCellValue(c) }
+			if (r == 2) {
+				row.createCell(30).setCellValue("late")
+			}
+		}
+		def bytes = new ByteArrayOutputStream()
+		workbook.write(bytes)
+		def options = new Options(["--zone", "UTC", "--sample-rows", sampleRows] as String[])
+
+		def out = new ByteArrayOutputStream()
+		Main.openExcelStream(options, new ByteArrayInputStream(bytes.toByteArray()), Channels.newChannel(out), OutputFormat.CSV)
+		def lines = out.toString("UTF-8").readLines()
+
+	expect:
+		lines[0] == '1,name 1,2024-01-02T00:00:00Z,TRUE,' + (4..29).join(',')
+		lines[1] == '2,name 2,2024-01-03T00:00:00Z,FALSE,' + (4..29).join(',') + ',late'
+
+	where:
+		sampleRows << ["1", "1000"]
+	}
+
+	def "Should write text as it is under a column sampled as numbers or dates"() {
+		def workbook = new XSSFWorkbook()
+		def dateStyle = workbook.createCellStyle()
+		dateStyle.dataFormat = workbook.createDataFormat().getFormat("yyyy-mm-dd")
+		def sheet = workbook.createSheet("Totals")
+		(0..4).each { r ->
+			def row = sheet.createRow(r)
+			def date = row.createCell(1)
+			if (r < 4) {
+				row.createCell(0).setCellValue(r)
+				date.setCellValue(45292 + r)
+				date.cellStyle = dateStyle
+			} else {
+				row.createCell(0).setCellValue("N/A")
+				date.setCellValue("Total")
+			}
+			row.createCell(2).setCellValue(r == 4)
+		}
+		def bytes = new ByteArrayOutputStream()
+		workbook.write(bytes)
+		def options = new Options(["--zone", "UTC", "--sample-rows", "2", "--types", types] as String[])
+
+		def out = new ByteArrayOutputStream()
+		Main.openExcelStream(options, new ByteArrayInputStream(bytes.toByteArray()), Channels.newChannel(out), OutputFormat.CSV)
+		def lines = out.toString("UTF-8").readLines()
+
+	expect:
+		lines[0] == '1,2024-01-02T00:00:00Z,FALSE'
+		lines[3] == 'N/A,Total,TRUE'
+
+	where:
+		types << ["auto", "decimal,datetime,datetime"]
+	}
+}
@@ -0,0 +1,96 @@
+package com.rc
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+
+class TestXlsbSheetHandler extends Specification {
+	ColumnType[] types = [ColumnType.DECIMAL, ColumnType.STRING, ColumnType.DECIMAL, ColumnType.BOOLEAN]
+
+	def "Should decode typed cell records"() {
+		def strings = new CompactSharedStrings(CompactSharedStrings.DEFAULT_SPILL_THRESHOLD)
+		strings.add("shared, \"one\"")
+		strings.finish()
+		def sheet = new ByteArrayOutputStream()
+		row(sheet, 0)
+		record(sheet, 7, cell(1, 0, 4).putInt(0))
+		row(sheet, 1)
+		record(sheet, 2, cell(0, 0, 4).putInt((123 << 2) | 2))                   // integer RK
+		record(sheet, 7, cell(1, 0, 4).putInt(0))
+		record(sheet, 2, cell(2, 0, 4).putInt((12345 << 2) | 3))                 // integer RK / 100
+		record(sheet, 4, cell(3, 0, 1).put((byte) 1))
+		row(sheet, 2)
+		record(sheet, 5, cell(0, 0, 8).putDouble(-0.125d))
+		record(sheet, 6, cell(1, 0, 4 + 6).putInt(3).putChar('a' as char).putChar('é' as char).putChar('z' as char))
+		record(sheet, 2, cell(2, 0, 4).putInt((int) (Double.doubleToLongBits(2.5d) >>> 32)))  // float RK
+		record(sheet, 3, cell(3, 0, 1).put((byte) 7))
+		row(sheet, 3)
+		record(sheet, 1, cell(0, 0, 0))
+		record(sheet, 9, cell(2, 0, 8 + 8).putDouble(42d))
+		record(sheet, 146, ByteBuffer.allocate(0))
+
+		def out = new ByteArrayOutputStream()
+		def sink = OutputFormat.CSV.open(Channels.newChannel(out), types)
+		sink.startSheet("Sheet1")
+		new XlsbSheetHandler(StyleCache.empty(), strings, types, sink).parse(new ByteArrayInputStream(sheet.toByteArray()))
+		sink.endSheet()
+		sink.flush()
+
+	expect:
+		out.toString("UTF-8").readLines() == [
+				'123,"shared, ""one""",123.45,TRUE',
+				'-0.125,aéz,2.5,**ERR**',
+				',,42']
+	}
+
+	def "Should stop after the last projected row"() {
+		def sheet = new ByteArrayOutputStream()
+		(0..5).each { r ->
+			row(sheet, r)
+			record(sheet, 2, cell(0, 0, 4).putInt((r << 2) | 2))
+		}
+		def out = new ByteArrayOutputStream()
+		def sink = OutputFormat.CSV.open(Channels.newChannel(out), types)
+		def projection = Projection.parse(null, "A", "3:4").forSheet("Sheet1", 0)
+		def handler = new XlsbSheetHandler(StyleCache.empty(), null, types, sink, projection)
+
+	when:
+		handler.parse(new ByteArrayInputStream(sheet.toByteArray()))
+
+	then:
+		thrown(Projection.EndOfRange)
+
+	when:
+		sink.flush()
+
+	then:
+		out.toString("UTF-8").readLines() == ['2', '3']
+	}
+
+	private static ByteBuffer cell(int column, int style, int size) {
+		ByteBuffer.allocate(8 + size).order(ByteOrder.LITTLE_ENDIAN)
+				.putInt(column).put((byte) style).put((byte) 0).put((byte) 0).put((byte) 0)
+	}
+
+	private static void row(ByteArrayOutputStream out, int r) {
+		record(out, 0, ByteBuffer.allocate(17).order(ByteOrder.LITTLE_ENDIAN).putInt(r))
+	}
+
+	private static void record(ByteArrayOutputStream out, int id, ByteBuffer data) {
+		if (id < 0x80) {
+			out.write(id)
+		} else {
+			out.write((id & 0x7F) | 0x80)
+			out.write(id >> 7)
+		}
+		int length = data.capacity()
+		while (true) {
+			out.write((length & 0x7F) | (length > 0x7F ? 0x80 : 0))
+			length >>>= 7
+			if (length == 0) break
+		}
+		out.write(data.array(), 0, data.capacity())
+	}
+}
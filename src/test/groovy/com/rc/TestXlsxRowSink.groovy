@@ -0,0 +1,82 @@
+package com.rc
+
+import org.apache.poi.ss.usermodel.CellType
+import org.apache.poi.ss.usermodel.DateUtil
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.function.IntFunction
+
+class TestXlsxRowSink extends Specification {
+	ColumnType[] types = [ColumnType.STRING, ColumnType.DECIMAL, ColumnType.DATETIME, ColumnType.BOOLEAN]
+
+	def "Should write typed rows as a workbook POI reads back"() {
+		def out = new ByteArrayOutputStream()
+		def sink = new XlsxRowSink(Channels.newChannel(out), types, ZoneOffset.UTC)
+		def text = ["plain", "a & <b>", " padded ", "line\r\nbreak", "_x0041_ \u0001", "plain"]
+		def table = ["shared", "plain"]
+		def strings = { int i -> table[i] } as IntFunction<CharSequence>
+
+		sink.startSheet("Sheet/1")
+		text.eachWithIndex { String value, int row ->
+			sink.startRow(row)
+			sink.cell(0, value)
+			if (row != 2) sink.number(1, row * 1.5d - 2)
+			sink.datetime(2, Instant.parse("2020-06-19T06:00:00Z").toEpochMilli() + row * 86_400_000L)
+			sink.bool(3, row % 2 == 0)
+			sink.endRow(row)
+		}
+		sink.startRow(6)
+		sink.sharedString(0, 0, strings)
+		sink.sharedString(4, 1, strings)
+		sink.number(1, 1e-20d)
+		sink.number(2, Double.NaN)
+		sink.endRow(6)
+		sink.endSheet()
+		sink.flush()
+
+		def workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))
+		def sheet = workbook.getSheetAt(0)
+
+	expect:
+		workbook.numberOfSheets == 1
+		sheet.sheetName == "Sheet_1"
+		(0..3).collect { sheet.getRow(0).getCell(it).stringCellValue } == ["A", "B", "C", "D"]
+		(1..6).collect { sheet.getRow(it).getCell(0).stringCellValue } == text
+		(1..6).collect { sheet.getRow(it).getCell(1)?.numericCellValue } == [-2d, -0.5d, null, 2.5d, 4d, 5.5d]
+		sheet.getRow(1).getCell(2).numericCellValue == 44001.25d
+		DateUtil.isCellDateFormatted(sheet.getRow(6).getCell(2))
+		sheet.getRow(6).getCell(2).numericCellValue == 44006.25d
+		(1..6).collect { sheet.getRow(it).getCell(3).booleanCellValue } == [true, false] * 3
+		sheet.getRow(7).getCell(0).stringCellValue == "shared"
+		sheet.getRow(7).getCell(4).stringCellValue == "plain"
+		sheet.getRow(7).getCell(1).numericCellValue == 1e-20d
+		sheet.getRow(7).getCell(2) == null
+		workbook.sharedStringSource.uniqueCount == 10
+		workbook.sharedStringSource.count == 4 + 6 + 2
+	}
+
+	def "Should go on to another sheet past the rows a sheet holds"() {
+		def out = new ByteArrayOutputStream()
+		def sink = new XlsxRowSink(Channels.newChannel(out), [ColumnType.DECIMAL] as ColumnType[], ZoneOffset.UTC, 3)
+		sink.startSheet("A sheet with a long name, 31+")
+		(0..<7).each { row ->
+			sink.startRow(row)
+			sink.number(0, row)
+			sink.endRow(row)
+		}
+		sink.endSheet()
+		sink.flush()
+
+		def workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))
+
+	expect:
+		workbook.collect { it.sheetName } == ["A sheet with a long name, 31+"] + (2..4).collect { "A sheet with a long name, 3 ($it)" }
+		workbook.collect { sheet -> sheet.collect { row ->
+			row.getCell(0).cellType == CellType.STRING ? row.getCell(0).stringCellValue : row.getCell(0).numericCellValue
+		} } == [["A", 0d, 1d], ["A", 2d, 3d], ["A", 4d, 5d], ["A", 6d]]
+	}
+}